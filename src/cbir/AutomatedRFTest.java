@@ -43,18 +43,27 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
-import org.dom4j.DocumentException;
+import javax.xml.stream.XMLStreamException;
 
 import rf.Utility;
 import rf.Utility.Normalization;
+import rf.Utility.Statistics;
 import rf.bayesian.Bayesian;
+import cbir.image.Descriptor;
+import cbir.image.DescriptorArena;
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
+import cbir.image.QuerySession;
 import cbir.interfaces.Metric;
 import cbir.interfaces.RelevanceFeedback;
+import cbir.interfaces.Retriever;
 import cbir.metric.WeightedEuclidean;
+import cbir.reader.DescriptorArchive;
 import cbir.reader.FireReader;
+import cbir.reader.Snapshot;
+import cbir.reader.TieredDescriptorStore;
 import cbir.reader.XMLReader;
+import cbir.retriever.RetrieverCandidatePool;
 import cbir.retriever.RetrieverDistanceBased;
 
 /**
@@ -94,8 +103,42 @@ public class AutomatedRFTest {
 	/** The path of the xml file containing the descriptors for your database. **/
 	public static File xml_path = new File(
 			"C:\\Users\\Stanic\\Desktop\\CorelDB\\cedd_descriptors.xml");
+	/**
+	 * If specified, the color histograms are read from this archive (see
+	 * DescriptorArchive) instead of one file per image.
+	 **/
+	public static File histoArchive = null;
+	/**
+	 * If specified and existing, the prepared database and its k-d-trees are
+	 * read from this snapshot (see Snapshot). If it does not exist yet, it is
+	 * written after the database has been prepared.
+	 **/
+	public static File snapshotFile = null;
+	/**
+	 * If specified, all descriptor types except the one of interest are moved
+	 * into archives in this folder and loaded on demand (see
+	 * TieredDescriptorStore).
+	 **/
+	public static File coldStorageFolder = null;
+	/** The number of pages of each cold descriptor type kept in memory. **/
+	public static int coldPageBudget = 64;
+	/**
+	 * If specified, the descriptors of the database are moved out of the heap
+	 * (see DescriptorArena) and stored with this layout.
+	 **/
+	public static DescriptorArena.Layout offHeapLayout = null;
 	/** Indicates whether you want to use indexing or not. **/
 	public static boolean useIndexing = false;
+	/**
+	 * If greater than 0, the searches re-rank a pool of this many candidates
+	 * instead of the whole database (see RetrieverCandidatePool).
+	 **/
+	public static int candidatePoolSize = 0;
+	/**
+	 * The distance the query may move before the candidate pool is retrieved
+	 * again, by default the pool is retrieved once per query.
+	 **/
+	public static double candidatePoolDrift = Double.POSITIVE_INFINITY;
 	/**
 	 * The relevance feedback method that should be used has to be specified
 	 * here.
@@ -159,8 +202,8 @@ public class AutomatedRFTest {
 	 *            the result list of the previous iteration.
 	 */
 	public static void relevanceFeedbackDemo(RelevanceFeedback rf,
-			RetrieverDistanceBased retriever, ImageContainer query,
-			DescriptorType type, Metric metric, List<ImageContainer> result) {
+			Retriever retriever, ImageContainer query, DescriptorType type,
+			Metric metric, List<ImageContainer> result) {
 
 		int j = 0;
 		while (true) {
@@ -173,7 +216,7 @@ public class AutomatedRFTest {
 
 			for (int i = 0; i < numOfResults; i++) {
 				// if labels are equal mark as positive, else negative
-				if (result.get(i).getLabel().equals(query.getLabel())) {
+				if (result.get(i).hasSameLabel(query)) {
 					positives.add(result.get(i));
 					relevant.append(i);
 					relevant.append(" ");
@@ -224,51 +267,129 @@ public class AutomatedRFTest {
 	 * 
 	 */
 	public static void main(String[] args) {
+		// the stores of the cold descriptor types, closed at the end
+		List<TieredDescriptorStore> coldStores = new ArrayList<TieredDescriptorStore>();
 		try {
 
 			long starttime, endtime;
 			starttime = System.currentTimeMillis();
 
-			System.out.println("Reading and labelling databases...");
-			List<ImageContainer> database = new XMLReader()
-					.parseXMLFile(xml_path);
-			// set labels of images
-			LabelUtils.labelDatabase(database);
-			if (type.equals(DescriptorType.COLOR_HISTO)
-					|| type.equals(DescriptorType.MERGED))
-				new FireReader().readDescriptors(database,
-						DescriptorType.COLOR_HISTO);
-
-			endtime = System.currentTimeMillis();
-			Utils.printToFile(outputfile, "<p>read descriptors: "
-					+ (endtime - starttime) + " ms.</p>");
-			starttime = endtime;
-
-			// important this must be performed before calculating the index
-			// structure
-			Utility.normalizeDescriptors(database, type, normalization);
-
-			endtime = System.currentTimeMillis();
-			Utils.printToFile(outputfile, "<p>normalize MPEG_EHD descriptor: "
-					+ (endtime - starttime) + " ms.</p>");
-			starttime = endtime;
-
-			// Add indexing here
+			List<ImageContainer> database;
+			RetrieverDistanceBased retriever;
 			if (useIndexing) {
 				indexingFor = new DescriptorType[1];
 				indexingFor[0] = type;
 			}
-			RetrieverDistanceBased retriever;
-			if (indexingFor != null)
-				retriever = new RetrieverDistanceBased(database, metric,
-						indexingFor);
-			else
-				retriever = new RetrieverDistanceBased(database, metric);
+			// the files and descriptor types the database is prepared from
+			boolean readHisto = type.equals(DescriptorType.COLOR_HISTO)
+					|| type.equals(DescriptorType.MERGED);
+			File[] sources = readHisto && histoArchive != null ? new File[] {
+					xml_path, histoArchive } : new File[] { xml_path };
+			DescriptorType[] required = readHisto ? new DescriptorType[] {
+					type, DescriptorType.COLOR_HISTO }
+					: new DescriptorType[] { type };
+			Snapshot snapshot = null;
+			if (snapshotFile != null && snapshotFile.exists()) {
+				// a snapshot of other settings (or of an older format) is
+				// rebuilt and overwritten
+				try {
+					snapshot = Snapshot.read(snapshotFile);
+					if (!snapshot.matches(type, normalization, indexingFor,
+							required, sources))
+						snapshot = null;
+				} catch (IOException e) {
+					snapshot = null;
+				}
+				if (snapshot == null)
+					Utils.printToFile(outputfile, "<p>snapshot "
+							+ snapshotFile + " does not match the settings,"
+							+ " rebuilding it.</p>");
+			}
+			if (snapshot != null) {
+				database = snapshot.getDatabase();
+				retriever = snapshot.createRetriever(metric);
 
-			endtime = System.currentTimeMillis();
-			Utils.printToFile(outputfile, "<p>indexing: "
-					+ (endtime - starttime) + " ms.</p>");
-			starttime = endtime;
+				endtime = System.currentTimeMillis();
+				Utils.printToFile(outputfile, "<p>read snapshot: "
+						+ (endtime - starttime) + " ms.</p>");
+				starttime = endtime;
+			} else {
+				System.out.println("Reading and labelling databases...");
+				database = new XMLReader().parseXMLFile(xml_path);
+				// set labels of images
+				LabelUtils.labelDatabase(database);
+				LabelUtils.compactFilenames(database);
+				if (readHisto) {
+					if (histoArchive != null) {
+						DescriptorArchive archive = new DescriptorArchive(
+								histoArchive);
+						try {
+							archive.readDescriptors(database);
+						} finally {
+							archive.close();
+						}
+					} else
+						new FireReader().readDescriptors(database,
+								DescriptorType.COLOR_HISTO);
+				}
+
+				endtime = System.currentTimeMillis();
+				Utils.printToFile(outputfile, "<p>read descriptors: "
+						+ (endtime - starttime) + " ms.</p>");
+				starttime = endtime;
+
+				// important this must be performed before calculating the
+				// index structure
+				Statistics statistics = Utility.normalizeDescriptors(database,
+						type, normalization);
+
+				endtime = System.currentTimeMillis();
+				Utils.printToFile(outputfile,
+						"<p>normalize MPEG_EHD descriptor: "
+								+ (endtime - starttime) + " ms.</p>");
+				starttime = endtime;
+
+				// Add indexing here
+				if (indexingFor != null)
+					retriever = new RetrieverDistanceBased(database, metric,
+							indexingFor);
+				else
+					retriever = new RetrieverDistanceBased(database, metric);
+
+				endtime = System.currentTimeMillis();
+				Utils.printToFile(outputfile, "<p>indexing: "
+						+ (endtime - starttime) + " ms.</p>");
+				starttime = endtime;
+
+				if (snapshotFile != null) {
+					Snapshot.write(snapshotFile, database, statistics,
+							retriever, sources);
+					endtime = System.currentTimeMillis();
+					Utils.printToFile(outputfile, "<p>write snapshot: "
+							+ (endtime - starttime) + " ms.</p>");
+					starttime = endtime;
+				}
+			}
+			if (coldStorageFolder != null) {
+				ImageContainer first = database.get(0);
+				for (DescriptorType coldType : DescriptorType.values()) {
+					Descriptor descriptor = first.getDescriptor(coldType);
+					if (coldType != type && descriptor != null
+							&& descriptor.hasArray()
+							&& !first.isPartOf(coldType, type))
+						coldStores.add(TieredDescriptorStore.demote(database,
+								coldType, new File(coldStorageFolder, coldType
+										.name().toLowerCase() + ".cda"),
+								coldPageBudget));
+				}
+			}
+			if (offHeapLayout != null)
+				new DescriptorArena(offHeapLayout).store(database,
+						DescriptorType.values());
+			Retriever searcher = retriever;
+			if (candidatePoolSize > 0)
+				searcher = new RetrieverCandidatePool(retriever, metric,
+						candidatePoolSize, candidatePoolDrift);
 
 			List<ImageContainer> queries = new LinkedList<ImageContainer>();
 			if (!newRandoms)
@@ -278,27 +399,23 @@ public class AutomatedRFTest {
 			System.out.println("Choosing random queries...");
 			Random rnd = new Random();
 			for (int i = 0; i < numOfQueries; i++) {
-				try {
-					if (newRandoms)
-						randomQueryIndices.add(i, rnd.nextInt(database.size()));
-					queries.add(database.get(randomQueryIndices.get(i))
-							.deepCopy());
-				} catch (ClassNotFoundException e) {
-					e.printStackTrace();
-				}
+				if (newRandoms)
+					randomQueryIndices.add(i, rnd.nextInt(database.size()));
+				queries.add(new QuerySession(database.get(randomQueryIndices
+						.get(i))));
 			}
 
 			for (ImageContainer query : queries) {
 				System.out.println("Query " + currQuery + "...");
 				starttime = System.currentTimeMillis();
-				List<ImageContainer> results = retriever.search(query, type,
+				List<ImageContainer> results = searcher.search(query, type,
 						numOfResults);
-				retriever.printResultListHTML(results, type, outputfile);
+				searcher.printResultListHTML(results, type, outputfile);
 				endtime = System.currentTimeMillis();
 				queryTime += (endtime - starttime);
 				Utils.printToFile(outputfile, "<p> query: "
 						+ (endtime - starttime) + " ms.</p>");
-				relevanceFeedbackDemo(rf, retriever, query, type, metric,
+				relevanceFeedbackDemo(rf, searcher, query, type, metric,
 						results);
 				currQuery++;
 			}
@@ -342,8 +459,15 @@ public class AutomatedRFTest {
 			Utils.printToFile(outputfile, "<p>avg query time (only search): "
 					+ queryTime + "ms</p>\n");
 
-		} catch (DocumentException | IOException e) {
+		} catch (XMLStreamException | IOException e) {
 			e.printStackTrace();
+		} finally {
+			for (TieredDescriptorStore store : coldStores)
+				try {
+					store.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 		}
 
 		System.out.println("terminated");
@@ -36,11 +36,11 @@
  */
 package cbir;
 
-import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Pattern;
 
 import cbir.image.ImageContainer;
+import cbir.image.LabelDictionary;
+import cbir.image.PathDictionary;
 
 /**
  * An util class for labelling.
@@ -51,19 +51,37 @@ import cbir.image.ImageContainer;
 public class LabelUtils {
 
 	/**
-	 * Automatic labelling of images corresponding to their sub-folders.
+	 * Automatic labelling of images corresponding to their sub-folders. The
+	 * labels are stored as numbers in a label dictionary.
 	 * 
 	 * @param database
 	 *            database to be labelled
+	 * @return the label dictionary.
 	 */
-	public static void labelDatabase(List<ImageContainer> database) {
-		Iterator<ImageContainer> it = database.iterator();
-		while (it.hasNext()) {
-			ImageContainer temp = it.next();
-			String[] filename = temp.getFilename().split(Pattern.quote("\\"));
+	public static LabelDictionary labelDatabase(List<ImageContainer> database) {
+		LabelDictionary labels = new LabelDictionary();
+		for (ImageContainer temp : database) {
+			String filename = temp.getFilename();
 			// get last sub-folder
-			String label = filename[filename.length - 2];
-			temp.setLabel(label);
+			int end = filename.lastIndexOf('\\');
+			int start = filename.lastIndexOf('\\', end - 1) + 1;
+			temp.setLabel(labels, filename.substring(start, end));
 		}
+		return labels;
+	}
+
+	/**
+	 * Moves the filenames of all images into one path dictionary.
+	 * 
+	 * @param database
+	 *            the images.
+	 * @return the path dictionary.
+	 */
+	public static PathDictionary compactFilenames(List<ImageContainer> database) {
+		PathDictionary paths = new PathDictionary();
+		for (ImageContainer image : database)
+			image.setPaths(paths);
+		paths.trimToSize();
+		return paths;
 	}
 }
@@ -45,9 +45,12 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import cbir.image.ImageContainer;
 
@@ -153,20 +156,18 @@ public class RFAssistant {
 	 */
 	public static void printQueryHits(String filename, ImageContainer query)
 			throws IOException {
-		List<String> positives = new LinkedList<String>();
-		List<String> negatives = new LinkedList<String>();
+		Set<String> positives = new LinkedHashSet<String>();
+		Set<String> negatives = new LinkedHashSet<String>();
 		File file = new File(filename);
 		if (file.exists()) {
 			RFAssistant assi = createRFAssistant(filename);
-			positives = assi.getPositives();
-			negatives = assi.getNegatives();
+			positives.addAll(assi.getPositives());
+			negatives.addAll(assi.getNegatives());
 		}
 		for (ImageContainer curr : query.getPositives())
-			if (!positives.contains(curr.getFilename()))
-				positives.add(curr.getFilename());
+			positives.add(curr.getFilename());
 		for (ImageContainer curr : query.getNegatives())
-			if (!negatives.contains(curr.getFilename()))
-				negatives.add(curr.getFilename());
+			negatives.add(curr.getFilename());
 
 		FileWriter out = new FileWriter(file, false);
 		out.write("positives" + System.getProperty("line.separator"));
@@ -189,11 +190,13 @@ public class RFAssistant {
 	 */
 	public void revisePositivesAndNegatives(List<ImageContainer> positives,
 			List<ImageContainer> negatives) {
+		Set<String> knownPositives = new HashSet<String>(this.positives);
+		Set<String> knownNegatives = new HashSet<String>(this.negatives);
 		Iterator<ImageContainer> it = positives.iterator();
 		int falsePositives = 0, falseNegatives = 0;
 		while (it.hasNext()) {
 			ImageContainer curr = it.next();
-			if (this.negatives.contains(curr.getFilename())) {
+			if (knownNegatives.contains(curr.getFilename())) {
 				falsePositives++;
 				negatives.add(curr);
 				it.remove();
@@ -202,7 +205,7 @@ public class RFAssistant {
 		it = negatives.iterator();
 		while (it.hasNext()) {
 			ImageContainer curr = it.next();
-			if (this.positives.contains(curr.getFilename())) {
+			if (knownPositives.contains(curr.getFilename())) {
 				falseNegatives++;
 				positives.add(curr);
 				it.remove();
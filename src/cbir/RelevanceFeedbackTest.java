@@ -40,22 +40,32 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
-import org.dom4j.DocumentException;
+import javax.xml.stream.XMLStreamException;
 
 import rf.Utility;
 import rf.Utility.Normalization;
+import rf.Utility.Statistics;
 import rf.bayesian.Bayesian;
+import cbir.image.Descriptor;
+import cbir.image.DescriptorArena;
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
+import cbir.image.QuerySession;
 import cbir.interfaces.Metric;
 import cbir.interfaces.RelevanceFeedback;
+import cbir.interfaces.Retriever;
 import cbir.metric.WeightedEuclidean;
+import cbir.reader.DescriptorArchive;
 import cbir.reader.FireReader;
+import cbir.reader.Snapshot;
+import cbir.reader.TieredDescriptorStore;
 import cbir.reader.XMLReader;
+import cbir.retriever.RetrieverCandidatePool;
 import cbir.retriever.RetrieverDistanceBased;
 
 /**
@@ -82,8 +92,42 @@ public class RelevanceFeedbackTest {
 	/** The path of the xml file containing the descriptors for your database. **/
 	public static File xml_path = new File(
 			"C:\\Users\\Stanic\\Desktop\\CorelDB\\cedd_descriptors.xml");
+	/**
+	 * If specified, the color histograms are read from this archive (see
+	 * DescriptorArchive) instead of one file per image.
+	 **/
+	public static File histoArchive = null;
+	/**
+	 * If specified and existing, the prepared database and its k-d-trees are
+	 * read from this snapshot (see Snapshot). If it does not exist yet, it is
+	 * written after the database has been prepared.
+	 **/
+	public static File snapshotFile = null;
+	/**
+	 * If specified, all descriptor types except the one of interest are moved
+	 * into archives in this folder and loaded on demand (see
+	 * TieredDescriptorStore).
+	 **/
+	public static File coldStorageFolder = null;
+	/** The number of pages of each cold descriptor type kept in memory. **/
+	public static int coldPageBudget = 64;
+	/**
+	 * If specified, the descriptors of the database are moved out of the heap
+	 * (see DescriptorArena) and stored with this layout.
+	 **/
+	public static DescriptorArena.Layout offHeapLayout = null;
 	/** Indicates whether you want to use indexing or not. **/
 	public static boolean useIndexing = false;
+	/**
+	 * If greater than 0, the searches re-rank a pool of this many candidates
+	 * instead of the whole database (see RetrieverCandidatePool).
+	 **/
+	public static int candidatePoolSize = 0;
+	/**
+	 * The distance the query may move before the candidate pool is retrieved
+	 * again, by default the pool is retrieved once per query.
+	 **/
+	public static double candidatePoolDrift = Double.POSITIVE_INFINITY;
 	/**
 	 * Alternatively you can add all the types that you want to index into this
 	 * array manually. (care that if you set useIndexing true the element on
@@ -134,8 +178,8 @@ public class RelevanceFeedbackTest {
 	 *            the result list of the previous iteration.
 	 */
 	public static void relevanceFeedbackDemo(RelevanceFeedback rf,
-			RetrieverDistanceBased retriever, ImageContainer query,
-			DescriptorType type, Metric metric, List<ImageContainer> result) {
+			Retriever retriever, ImageContainer query, DescriptorType type,
+			Metric metric, List<ImageContainer> result) {
 		List<ImageContainer> positives;
 		List<ImageContainer> negatives;
 		BufferedReader stdin = new BufferedReader(new InputStreamReader(
@@ -242,76 +286,157 @@ public class RelevanceFeedbackTest {
 	 * 
 	 */
 	public static void main(String[] args) {
+		// the stores of the cold descriptor types, closed at the end
+		List<TieredDescriptorStore> coldStores = new ArrayList<TieredDescriptorStore>();
 		try {
 
 			long starttime, endtime;
 			starttime = System.currentTimeMillis();
 
-			List<ImageContainer> database = new XMLReader()
-					.parseXMLFile(xml_path);
+			List<ImageContainer> database;
+			RetrieverDistanceBased retriever;
+			if (useIndexing) {
+				indexingFor = new DescriptorType[1];
+				indexingFor[0] = type;
+			}
+			// the files and descriptor types the database is prepared from
+			boolean readHisto = type.equals(DescriptorType.COLOR_HISTO)
+					|| type.equals(DescriptorType.MERGED);
+			File[] sources = readHisto && histoArchive != null ? new File[] {
+					xml_path, histoArchive } : new File[] { xml_path };
+			DescriptorType[] required = readHisto ? new DescriptorType[] {
+					type, DescriptorType.COLOR_HISTO }
+					: new DescriptorType[] { type };
+			Snapshot snapshot = null;
+			if (snapshotFile != null && snapshotFile.exists()) {
+				// a snapshot of other settings (or of an older format) is
+				// rebuilt and overwritten
+				try {
+					snapshot = Snapshot.read(snapshotFile);
+					if (!snapshot.matches(type, normalization, indexingFor,
+							required, sources))
+						snapshot = null;
+				} catch (IOException e) {
+					snapshot = null;
+				}
+				if (snapshot == null)
+					Utils.printToFile(outputfile, "<p>snapshot "
+							+ snapshotFile + " does not match the settings,"
+							+ " rebuilding it.</p>");
+			}
+			if (snapshot != null) {
+				database = snapshot.getDatabase();
+				retriever = snapshot.createRetriever(metric);
+
+				endtime = System.currentTimeMillis();
+				Utils.printToFile(outputfile, "<p>read snapshot: "
+						+ (endtime - starttime) + " ms.</p>");
+				starttime = endtime;
+			} else {
+				database = new XMLReader().parseXMLFile(xml_path);
+
+				LabelUtils.labelDatabase(database);
+				LabelUtils.compactFilenames(database);
+				if (readHisto) {
+					if (histoArchive != null) {
+						DescriptorArchive archive = new DescriptorArchive(
+								histoArchive);
+						try {
+							archive.readDescriptors(database);
+						} finally {
+							archive.close();
+						}
+					} else
+						new FireReader().readDescriptors(database,
+								DescriptorType.COLOR_HISTO);
+				}
 
-			LabelUtils.labelDatabase(database);
-			if (type.equals(DescriptorType.COLOR_HISTO)
-					|| type.equals(DescriptorType.MERGED))
-				new FireReader().readDescriptors(database,
-						DescriptorType.COLOR_HISTO);
+				endtime = System.currentTimeMillis();
+				Utils.printToFile(outputfile, "<p>read descriptors: "
+						+ (endtime - starttime) + " ms.</p>");
+				starttime = endtime;
 
-			endtime = System.currentTimeMillis();
-			Utils.printToFile(outputfile, "<p>read descriptors: "
-					+ (endtime - starttime) + " ms.</p>");
-			starttime = endtime;
+				// important this must be performed before calculating the
+				// index structure
+				Statistics statistics = Utility.normalizeDescriptors(database,
+						type, normalization);
 
-			// important this must be performed before calculating the index
-			// structure
-			Utility.normalizeDescriptors(database, type, normalization);
+				endtime = System.currentTimeMillis();
+				Utils.printToFile(outputfile,
+						"<p>normalize MPEG_EHD descriptor: "
+								+ (endtime - starttime) + " ms.</p>");
+				starttime = endtime;
 
-			endtime = System.currentTimeMillis();
-			Utils.printToFile(outputfile, "<p>normalize MPEG_EHD descriptor: "
-					+ (endtime - starttime) + " ms.</p>");
-			starttime = endtime;
+				// Add indexing here
+				if (indexingFor != null)
+					retriever = new RetrieverDistanceBased(database, metric,
+							indexingFor);
+				else
+					retriever = new RetrieverDistanceBased(database, metric);
 
-			// Add indexing here
-			if (useIndexing) {
-				indexingFor = new DescriptorType[1];
-				indexingFor[0] = type;
-			}
-			RetrieverDistanceBased retriever;
-			if (indexingFor != null)
-				retriever = new RetrieverDistanceBased(database, metric,
-						indexingFor);
-			else
-				retriever = new RetrieverDistanceBased(database, metric);
+				endtime = System.currentTimeMillis();
+				Utils.printToFile(outputfile, "<p>indexing: "
+						+ (endtime - starttime) + " ms.</p>");
+				starttime = endtime;
 
-			endtime = System.currentTimeMillis();
-			Utils.printToFile(outputfile, "<p>indexing: "
-					+ (endtime - starttime) + " ms.</p>");
-			starttime = endtime;
+				if (snapshotFile != null) {
+					Snapshot.write(snapshotFile, database, statistics,
+							retriever, sources);
+					endtime = System.currentTimeMillis();
+					Utils.printToFile(outputfile, "<p>write snapshot: "
+							+ (endtime - starttime) + " ms.</p>");
+					starttime = endtime;
+				}
+			}
+			if (coldStorageFolder != null) {
+				ImageContainer first = database.get(0);
+				for (DescriptorType coldType : DescriptorType.values()) {
+					Descriptor descriptor = first.getDescriptor(coldType);
+					if (coldType != type && descriptor != null
+							&& descriptor.hasArray()
+							&& !first.isPartOf(coldType, type))
+						coldStores.add(TieredDescriptorStore.demote(database,
+								coldType, new File(coldStorageFolder, coldType
+										.name().toLowerCase() + ".cda"),
+								coldPageBudget));
+				}
+			}
+			if (offHeapLayout != null)
+				new DescriptorArena(offHeapLayout).store(database,
+						DescriptorType.values());
+			Retriever searcher = retriever;
+			if (candidatePoolSize > 0)
+				searcher = new RetrieverCandidatePool(retriever, metric,
+						candidatePoolSize, candidatePoolDrift);
 
 			List<ImageContainer> queries = new LinkedList<ImageContainer>();
-			try {
-				for (int i = 0; i < queryAmount; i++) {
-					Random rand = new Random();
-					queries.add(database.get(rand.nextInt(database.size()))
-							.deepCopy());
-				}
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
+			for (int i = 0; i < queryAmount; i++) {
+				Random rand = new Random();
+				queries.add(new QuerySession(database.get(rand
+						.nextInt(database.size()))));
 			}
 
 			for (ImageContainer query : queries) {
 				starttime = System.currentTimeMillis();
-				List<ImageContainer> results = retriever
+				List<ImageContainer> results = searcher
 						.search(query, type, 20);
-				retriever.printResultListHTML(results, type, outputfile);
+				searcher.printResultListHTML(results, type, outputfile);
 				endtime = System.currentTimeMillis();
 				Utils.printToFile(outputfile, "<p> query: "
 						+ (endtime - starttime) + " ms.</p>");
-				relevanceFeedbackDemo(rf, retriever, query, type, metric,
+				relevanceFeedbackDemo(rf, searcher, query, type, metric,
 						results);
 			}
 
-		} catch (DocumentException | IOException e) {
+		} catch (XMLStreamException | IOException e) {
 			e.printStackTrace();
+		} finally {
+			for (TieredDescriptorStore store : coldStores)
+				try {
+					store.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 		}
 
 	}
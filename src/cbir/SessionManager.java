@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+import cbir.image.QuerySession;
+import cbir.interfaces.Metric;
+import cbir.interfaces.RelevanceFeedback;
+import cbir.interfaces.Retriever;
+
+/**
+ * Keeps the query sessions of many users who search one database at the same
+ * time (e.g. the labelling sessions of a web frontend). The database, the
+ * index structures of the retriever and the RF method are shared by all
+ * sessions. The state of a session is its QuerySession: it shares the
+ * descriptors of the database and keeps the marked images and the state of
+ * the RF method and the scores, so starting a session is cheap.
+ * 
+ * Different sessions are searched concurrently, the iterations of one session
+ * one after another. Sessions which have not been used for a while are
+ * evicted, and a session may mark only a limited number of images.
+ * 
+ * The memory of the sessions is bounded with the size estimates of the
+ * QuerySessions (see QuerySession.estimateSize()), which include the state
+ * growing with the database, e.g. the distances of an NN score (see
+ * FeedbackDistances) or a candidate pool. After every search the cached
+ * state of a session larger than maxSessionBytes is dropped (it is computed
+ * again when it is needed), a session whose other state is still too large is
+ * rejected. If all sessions together keep more than maxTotalBytes, the least
+ * recently used sessions are evicted.
+ * 
+ * @author Chris Wendler
+ * 
+ */
+public class SessionManager {
+	/** The retriever which is shared by all sessions. **/
+	private final Retriever retriever;
+	/** The RF method which is shared by all sessions. **/
+	private final RelevanceFeedback feedback;
+	/** The metric the RF method is used with. **/
+	private final Metric metric;
+	/** Milliseconds after which an unused session is evicted. **/
+	private final long maxIdleTime;
+	/** The number of images a session may mark. **/
+	private final int maxMarked;
+	/** The estimated number of bytes a session may keep. **/
+	private final long maxSessionBytes;
+	/** The estimated number of bytes all sessions may keep together. **/
+	private final long maxTotalBytes;
+	/** The sessions, the key is the id of the session. **/
+	private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+	/** The estimated number of bytes all sessions keep. **/
+	private final AtomicLong totalBytes = new AtomicLong();
+	/** The id of the last session that was started. **/
+	private final AtomicLong lastId = new AtomicLong();
+	/** The time the idle sessions were evicted last. **/
+	private final AtomicLong lastEviction = new AtomicLong(
+			System.currentTimeMillis());
+
+	/**
+	 * Constructor for sessions whose memory is not bounded.
+	 * 
+	 * @param retriever
+	 *            the retriever which is shared by all sessions.
+	 * @param feedback
+	 *            the RF method which is shared by all sessions, it has to
+	 *            keep the state of a query in its QuerySession (like all RF
+	 *            methods of this project).
+	 * @param metric
+	 *            the metric the RF method is used with.
+	 * @param maxIdleTime
+	 *            milliseconds after which an unused session is evicted.
+	 * @param maxMarked
+	 *            the number of images a session may mark (positive and
+	 *            negative ones).
+	 */
+	public SessionManager(Retriever retriever, RelevanceFeedback feedback,
+			Metric metric, long maxIdleTime, int maxMarked) {
+		this(retriever, feedback, metric, maxIdleTime, maxMarked,
+				Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param retriever
+	 *            the retriever which is shared by all sessions.
+	 * @param feedback
+	 *            the RF method which is shared by all sessions, it has to
+	 *            keep the state of a query in its QuerySession (like all RF
+	 *            methods of this project).
+	 * @param metric
+	 *            the metric the RF method is used with.
+	 * @param maxIdleTime
+	 *            milliseconds after which an unused session is evicted.
+	 * @param maxMarked
+	 *            the number of images a session may mark (positive and
+	 *            negative ones).
+	 * @param maxSessionBytes
+	 *            the estimated number of bytes a session may keep.
+	 * @param maxTotalBytes
+	 *            the estimated number of bytes all sessions may keep
+	 *            together.
+	 */
+	public SessionManager(Retriever retriever, RelevanceFeedback feedback,
+			Metric metric, long maxIdleTime, int maxMarked,
+			long maxSessionBytes, long maxTotalBytes) {
+		this.retriever = retriever;
+		this.feedback = feedback;
+		this.metric = metric;
+		this.maxIdleTime = maxIdleTime;
+		this.maxMarked = maxMarked;
+		this.maxSessionBytes = maxSessionBytes;
+		this.maxTotalBytes = maxTotalBytes;
+	}
+
+	/**
+	 * Starts a session for a query image.
+	 * 
+	 * @param image
+	 *            the query image.
+	 * @return the id of the session.
+	 */
+	public long startSession(ImageContainer image) {
+		evictIdleSessionsIfDue();
+		long id = lastId.incrementAndGet();
+		sessions.put(id, new Session(id, new QuerySession(image)));
+		return id;
+	}
+
+	/**
+	 * Performs a search for the query of a session.
+	 * 
+	 * @param id
+	 *            the id of the session.
+	 * @param type
+	 *            the descriptortype of the query.
+	 * @param resultAmount
+	 *            the number of desired results.
+	 * @return the best "resultAmount" results in a list.
+	 * @throws IllegalStateException
+	 *             if the session keeps too much state which cannot be
+	 *             dropped.
+	 */
+	public List<ImageContainer> search(long id, DescriptorType type,
+			int resultAmount) {
+		evictIdleSessionsIfDue();
+		Session session = getSession(id);
+		List<ImageContainer> results;
+		synchronized (session) {
+			checkSize(session);
+			results = retriever.search(session.query, type, resultAmount);
+			account(session);
+		}
+		limitTotalSize();
+		return results;
+	}
+
+	/**
+	 * Performs a relevance feedback iteration for the query of a session.
+	 * 
+	 * @param id
+	 *            the id of the session.
+	 * @param type
+	 *            the descriptortype of the query.
+	 * @param positives
+	 *            the images marked as positive.
+	 * @param negatives
+	 *            the images marked as negative.
+	 * @param resultAmount
+	 *            the number of desired results.
+	 * @return the results after considering the user feedback.
+	 * @throws IllegalStateException
+	 *             if the session would mark too many images or keeps too much
+	 *             state which cannot be dropped.
+	 */
+	public List<ImageContainer> relevanceFeedbackIteration(long id,
+			DescriptorType type, List<ImageContainer> positives,
+			List<ImageContainer> negatives, int resultAmount) {
+		evictIdleSessionsIfDue();
+		Session session = getSession(id);
+		List<ImageContainer> results;
+		synchronized (session) {
+			QuerySession query = session.query;
+			int marked = count(query.getPositiveIds(), positives)
+					+ count(query.getNegativeIds(), negatives);
+			if (marked > maxMarked)
+				throw new IllegalStateException("session " + id + " would mark "
+						+ marked + " images, at most " + maxMarked
+						+ " are allowed");
+			checkSize(session);
+			results = feedback.relevanceFeedbackIteration(retriever, query,
+					type, metric, positives, negatives, resultAmount);
+			account(session);
+		}
+		limitTotalSize();
+		return results;
+	}
+
+	/**
+	 * @return the number of images which are marked after adding some images
+	 *         to the marked ones.
+	 */
+	private static int count(BitSet marked, List<ImageContainer> images) {
+		BitSet ids = (BitSet) marked.clone();
+		int unknown = 0;
+		for (ImageContainer image : images)
+			if (image.getId() >= 0)
+				ids.set(image.getId());
+			else
+				unknown++;
+		return ids.cardinality() + unknown;
+	}
+
+	/**
+	 * Rejects a session which keeps more than maxSessionBytes although its
+	 * cached state has been dropped. The caller holds the lock of the
+	 * session.
+	 */
+	private void checkSize(Session session) {
+		if (session.bytes > maxSessionBytes)
+			throw new IllegalStateException("session " + session.id
+					+ " keeps about " + session.bytes + " bytes, at most "
+					+ maxSessionBytes + " are allowed");
+	}
+
+	/**
+	 * Drops the cached state of a session which keeps more than
+	 * maxSessionBytes and updates the size of all sessions. The caller holds
+	 * the lock of the session.
+	 */
+	private void account(Session session) {
+		long bytes = session.query.dropCachedState(maxSessionBytes);
+		if (!session.removed) {
+			totalBytes.addAndGet(bytes - session.bytes);
+			session.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Evicts the least recently used sessions while all sessions together
+	 * keep more than maxTotalBytes.
+	 */
+	private void limitTotalSize() {
+		if (totalBytes.get() <= maxTotalBytes)
+			return;
+		// the access times are copied, they may change while sorting
+		final Map<Session, Long> access = new ConcurrentHashMap<Session, Long>();
+		for (Session session : sessions.values())
+			access.put(session, session.lastAccess);
+		List<Session> lru = new ArrayList<Session>(access.keySet());
+		Collections.sort(lru, new Comparator<Session>() {
+			@Override
+			public int compare(Session a, Session b) {
+				return Long.compare(access.get(a), access.get(b));
+			}
+		});
+		for (Session session : lru) {
+			if (totalBytes.get() <= maxTotalBytes)
+				break;
+			remove(session);
+		}
+	}
+
+	/**
+	 * Removes a session and its size from the size of all sessions.
+	 * 
+	 * @return true if the session was removed by this call.
+	 */
+	private boolean remove(Session session) {
+		if (!sessions.remove(session.id, session))
+			return false;
+		synchronized (session) {
+			session.removed = true;
+			totalBytes.addAndGet(-session.bytes);
+			session.bytes = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the query of a session.
+	 * 
+	 * @param id
+	 *            the id of the session.
+	 * @return the query session.
+	 */
+	public QuerySession getQuery(long id) {
+		return getSession(id).query;
+	}
+
+	/**
+	 * @return the session with the given id, its idle time starts again.
+	 */
+	private Session getSession(long id) {
+		Session session = sessions.get(id);
+		if (session == null)
+			throw new IllegalArgumentException("no session " + id
+					+ " (it has ended or was evicted)");
+		session.lastAccess = System.currentTimeMillis();
+		return session;
+	}
+
+	/**
+	 * Ends a session.
+	 * 
+	 * @param id
+	 *            the id of the session.
+	 * @return true if the session existed.
+	 */
+	public boolean endSession(long id) {
+		Session session = sessions.get(id);
+		return session != null && remove(session);
+	}
+
+	/**
+	 * Evicts the idle sessions if this has not been done for the maximal idle
+	 * time, it is called whenever the sessions are used.
+	 */
+	private void evictIdleSessionsIfDue() {
+		long now = System.currentTimeMillis();
+		long last = lastEviction.get();
+		if (now - last > maxIdleTime && lastEviction.compareAndSet(last, now))
+			evictIdleSessions();
+	}
+
+	/**
+	 * Evicts the sessions which have not been used for longer than the
+	 * maximal idle time.
+	 * 
+	 * @return the number of evicted sessions.
+	 */
+	public int evictIdleSessions() {
+		long now = System.currentTimeMillis();
+		int evicted = 0;
+		for (Session session : sessions.values())
+			if (now - session.lastAccess > maxIdleTime && remove(session))
+				evicted++;
+		return evicted;
+	}
+
+	/**
+	 * @return the number of sessions.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * @return the estimated number of bytes all sessions keep, as of their
+	 *         last search.
+	 */
+	public long getTotalBytes() {
+		return totalBytes.get();
+	}
+
+	/**
+	 * A query session, the time it was used last and its estimated size.
+	 */
+	private static final class Session {
+		private final long id;
+		private final QuerySession query;
+		private volatile long lastAccess = System.currentTimeMillis();
+		/** The estimated size as of the last search, guarded by the lock. */
+		private long bytes = 0;
+		/** True if the session has ended or was evicted. */
+		private boolean removed = false;
+
+		Session(long id, QuerySession query) {
+			this.id = id;
+			this.query = query;
+		}
+	}
+
+}
@@ -43,6 +43,10 @@ import java.util.Arrays;
  * A class which implements a image descriptor. A descriptor has a type (Color
  * Histogram, MPEG-EHD...) and the actual values computed from an image.
  * 
+ * The values are kept in an array on the heap. Subclasses may store them
+ * elsewhere (see OffHeapDescriptor), code that reads many descriptors should
+ * therefore use size() and get(i) instead of getValues().
+ * 
  * @author Matej Stanic
  * 
  */
@@ -78,6 +82,28 @@ public class Descriptor implements Serializable {
 		this.values = values;
 	}
 
+	/**
+	 * @return the number of values.
+	 */
+	public int size() {
+		return values.length;
+	}
+
+	/**
+	 * @return the value with the given index.
+	 */
+	public double get(int i) {
+		return values[i];
+	}
+
+	/**
+	 * @return true if getValues() returns the values themselves, false if it
+	 *         returns a copy.
+	 */
+	public boolean hasArray() {
+		return true;
+	}
+
 	public double getMaxValue() {
 		return maxValue;
 	}
@@ -85,7 +111,8 @@ public class Descriptor implements Serializable {
 	@Override
 	public String toString() {
 		return "Descriptor [type=" + type + ", values="
-				+ Arrays.toString(values) + ", maxValue=" + maxValue + "]";
+				+ Arrays.toString(getValues()) + ", maxValue=" + maxValue
+				+ "]";
 	}
 
 }
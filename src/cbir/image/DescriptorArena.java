@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.image;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+/**
+ * Stores descriptor values outside of the Java heap. The arena allocates big
+ * direct buffers (blocks) and places the values of many descriptors into each
+ * of them, so a database of millions of images does not put millions of
+ * arrays on the heap that the garbage collector has to trace and move.
+ * 
+ * The values are stored as doubles or, to halve the memory needed, as floats.
+ * The blocks are released by the garbage collector once neither the arena nor
+ * any of its descriptors is referenced anymore.
+ * 
+ * @author Matej Stanic
+ * 
+ */
+public class DescriptorArena {
+	/** Default size of a block in bytes. */
+	public static final int DEFAULT_BLOCK_SIZE = 64 << 20;
+
+	/**
+	 * The layout of the stored values.
+	 */
+	public enum Layout {
+		DOUBLE, FLOAT
+	}
+
+	/** The layout of all values of this arena. */
+	private final Layout layout;
+	/** Size of a new block in bytes. */
+	private final int blockSize;
+	/** The block that is currently filled. */
+	private ByteBuffer block = null;
+	/** Bytes allocated in all blocks so far. */
+	private long allocated = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param layout
+	 *            the layout of the stored values.
+	 */
+	public DescriptorArena(Layout layout) {
+		this(layout, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param layout
+	 *            the layout of the stored values.
+	 * @param blockSize
+	 *            the size of a block in bytes.
+	 */
+	public DescriptorArena(Layout layout, int blockSize) {
+		this.layout = layout;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Copies a descriptor into the arena.
+	 * 
+	 * @param descriptor
+	 *            the descriptor to copy.
+	 * @return an off-heap descriptor with the same type, values and maximum
+	 *         value.
+	 */
+	public synchronized OffHeapDescriptor allocate(Descriptor descriptor) {
+		int size = descriptor.size();
+		boolean floats = layout == Layout.FLOAT;
+		int bytes = size * (floats ? 4 : 8);
+		if (block == null || block.capacity() - block.position() < bytes) {
+			block = ByteBuffer.allocateDirect(Math.max(blockSize, bytes))
+					.order(ByteOrder.nativeOrder());
+			allocated += block.capacity();
+		}
+		int offset = block.position();
+		block.position(offset + bytes);
+		OffHeapDescriptor result = new OffHeapDescriptor(descriptor.getType(),
+				descriptor.getMaxValue(), block, offset, size, floats);
+		for (int i = 0; i < size; i++)
+			if (floats)
+				block.putFloat(offset + 4 * i, (float) descriptor.get(i));
+			else
+				block.putDouble(offset + 8 * i, descriptor.get(i));
+		return result;
+	}
+
+	/**
+	 * Moves the descriptors of the given types of all images into the arena.
+	 * The merged descriptor of an image follows its moved components (see
+	 * ImageContainer.replaceDescriptor()), a merged view is not copied.
+	 * 
+	 * @param database
+	 *            the images.
+	 * @param types
+	 *            the descriptor types to move.
+	 */
+	public void store(List<ImageContainer> database, DescriptorType... types) {
+		for (ImageContainer image : database)
+			for (DescriptorType type : types) {
+				Descriptor descriptor = image.getDescriptor(type);
+				if (descriptor == null || !descriptor.hasArray())
+					continue;
+				OffHeapDescriptor moved = allocate(descriptor);
+				image.replaceDescriptor(descriptor, moved);
+			}
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * @return the number of bytes allocated outside of the heap.
+	 */
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.image;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Gives every image of a database a dense integer id and finds images by id or
+ * by filename in constant time. Sets of images (e.g. the images marked during
+ * RF) can then be represented as bit sets of ids.
+ * 
+ * Images which already have an id keep it (e.g. if the catalog is built for a
+ * part of a database or for a second retriever), the others get the next free
+ * ids. Two different images with the same id are rejected. The catalog is not
+ * changed after it has been built and can be used by many threads.
+ * 
+ * @author Matej Stanic
+ */
+public class ImageCatalog {
+	/** The images, the index is the id. */
+	private final ImageContainer[] images;
+	/** Maps the filenames to the ids. */
+	private final HashMap<String, Integer> ids;
+
+	/**
+	 * Constructor. Assigns ids to the images which do not have one yet.
+	 * 
+	 * @param database
+	 *            the images.
+	 * @throws IllegalArgumentException
+	 *             if two different images have the same id.
+	 */
+	public ImageCatalog(List<ImageContainer> database) {
+		int next = 0;
+		for (ImageContainer image : database)
+			next = Math.max(next, image.getId() + 1);
+		for (ImageContainer image : database)
+			if (image.getId() < 0)
+				image.setId(next++);
+		images = new ImageContainer[next];
+		for (ImageContainer image : database) {
+			ImageContainer other = images[image.getId()];
+			if (other != null && other != image)
+				throw new IllegalArgumentException("images "
+						+ other.getFilename() + " and " + image.getFilename()
+						+ " have the same id " + image.getId());
+			images[image.getId()] = image;
+		}
+		ids = new HashMap<String, Integer>(images.length * 4 / 3 + 1);
+		for (ImageContainer image : images)
+			if (image != null && !ids.containsKey(image.getFilename()))
+				ids.put(image.getFilename(), image.getId());
+	}
+
+	/**
+	 * @return the image with the given id, null if there is none.
+	 */
+	public ImageContainer getImage(int id) {
+		return id >= 0 && id < images.length ? images[id] : null;
+	}
+
+	/**
+	 * @return the image with the given filename, null if there is none.
+	 */
+	public ImageContainer getImage(String filename) {
+		int id = getId(filename);
+		return id < 0 ? null : images[id];
+	}
+
+	/**
+	 * @return the id of the image with the given filename, -1 if there is
+	 *         none.
+	 */
+	public int getId(String filename) {
+		Integer id = ids.get(filename);
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * @return one more than the largest id.
+	 */
+	public int size() {
+		return images.length;
+	}
+
+	/**
+	 * @return the set of the ids of the given images.
+	 */
+	public static BitSet toBitSet(List<ImageContainer> images) {
+		BitSet set = new BitSet();
+		for (ImageContainer image : images)
+			if (image.getId() >= 0)
+				set.set(image.getId());
+		return set;
+	}
+
+	/**
+	 * Adds images to a list which do not occur in it yet. Images with an id
+	 * are looked up in the set of the ids of the list, which is updated. If
+	 * the id is in the set, the list is searched for the image itself, since
+	 * an image of another database can have the same id.
+	 * 
+	 * @param list
+	 *            the list where the new images should be added.
+	 * @param ids
+	 *            the ids of the images of the list.
+	 * @param toAdd
+	 *            the images that should be added.
+	 */
+	public static void addImages(List<ImageContainer> list, BitSet ids,
+			List<ImageContainer> toAdd) {
+		for (ImageContainer image : toAdd) {
+			int id = image.getId();
+			if (id >= 0 && !ids.get(id)) {
+				list.add(image);
+				ids.set(id);
+			} else if (!containsIdentical(list, image))
+				list.add(image);
+		}
+	}
+
+	/**
+	 * @return true if the list contains the image object itself.
+	 */
+	private static boolean containsIdentical(List<ImageContainer> list,
+			ImageContainer image) {
+		for (ImageContainer curr : list)
+			if (curr == image)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the images of the given ids in ascending order of the ids.
+	 */
+	public List<ImageContainer> getImages(BitSet set) {
+		List<ImageContainer> result = new ArrayList<ImageContainer>(
+				set.cardinality());
+		for (int id = set.nextSetBit(0); id >= 0; id = set.nextSetBit(id + 1))
+			if (id < images.length && images[id] != null)
+				result.add(images[id]);
+		return result;
+	}
+
+}
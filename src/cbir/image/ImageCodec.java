@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.image;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of images, used instead of Java serialization for
+ * snapshots, deep copies and for sending images to other processes. All
+ * numbers are little-endian, the values of the descriptors are written and
+ * read in bulk.
+ * 
+ * An encoded image consists of:
+ * <ul>
+ * <li>the id (int)</li>
+ * <li>the filename and the label (int length and UTF-8 bytes, length -1 for no
+ * label)</li>
+ * <li>the order of the descriptors (byte count and the type ordinals)</li>
+ * <li>how the merged descriptor is stored (byte, see MERGED_*) and for
+ * MERGED_ALIAS the type ordinal</li>
+ * <li>the descriptors (byte count and per descriptor type ordinal, maximum
+ * value (double), int length and the values (doubles))</li>
+ * <li>the ids of the positive and of the negative images (int count and ids),
+ * marked images without id are left out</li>
+ * </ul>
+ * 
+ * @author Matej Stanic
+ */
+public class ImageCodec {
+	/** The image has no merged descriptor. */
+	public static final byte MERGED_NONE = 0;
+	/** The merged descriptor is stored like the other descriptors. */
+	public static final byte MERGED_STORED = 1;
+	/** The merged descriptor is another descriptor (only one descriptor). */
+	public static final byte MERGED_ALIAS = 2;
+	/** The merged descriptor is a view over the others (see order). */
+	public static final byte MERGED_VIEW = 3;
+
+	private static final DescriptorType[] TYPES = DescriptorType.values();
+
+	/**
+	 * @return the number of bytes of the encoded image.
+	 */
+	public static int encodedSize(ImageContainer image) {
+		int size = 4 + stringSize(image.getFilename())
+				+ stringSize(image.getLabel()) + 1 + image.getOrder().size()
+				+ 2 + 1;
+		for (DescriptorType type : storedTypes(image))
+			size += 1 + 8 + 4 + 8 * image.getDescriptor(type).size();
+		size += 4 + 4 * countIds(image.getPositives());
+		size += 4 + 4 * countIds(image.getNegatives());
+		return size;
+	}
+
+	/**
+	 * Encodes an image.
+	 */
+	public static byte[] encode(ImageContainer image) {
+		byte[] bytes = new byte[encodedSize(image)];
+		write(image, ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+
+	/**
+	 * Decodes an image.
+	 * 
+	 * @param catalog
+	 *            the catalog the marked images are looked up in, null if they
+	 *            are left out.
+	 */
+	public static ImageContainer decode(byte[] bytes, ImageCatalog catalog) {
+		return read(ByteBuffer.wrap(bytes), catalog);
+	}
+
+	/**
+	 * Writes an image at the position of the buffer, which is switched to
+	 * little-endian byte order.
+	 */
+	public static void write(ImageContainer image, ByteBuffer buffer) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(image.getId());
+		putString(buffer, image.getFilename());
+		putString(buffer, image.getLabel());
+		buffer.put((byte) image.getOrder().size());
+		for (DescriptorType type : image.getOrder())
+			buffer.put((byte) type.ordinal());
+
+		byte merged = mergedMode(image);
+		buffer.put(merged);
+		buffer.put((byte) (merged == MERGED_ALIAS ? aliasOf(image).ordinal()
+				: -1));
+		List<DescriptorType> types = storedTypes(image);
+		buffer.put((byte) types.size());
+		for (DescriptorType type : types) {
+			Descriptor descriptor = image.getDescriptor(type);
+			buffer.put((byte) type.ordinal());
+			buffer.putDouble(descriptor.getMaxValue());
+			buffer.putInt(descriptor.size());
+			double[] values = descriptor.getValues();
+			buffer.asDoubleBuffer().put(values);
+			buffer.position(buffer.position() + 8 * values.length);
+		}
+
+		putIds(buffer, image.getPositives());
+		putIds(buffer, image.getNegatives());
+	}
+
+	/**
+	 * Reads an image from the position of the buffer, which is switched to
+	 * little-endian byte order.
+	 * 
+	 * @param catalog
+	 *            the catalog the marked images are looked up in, null if they
+	 *            are left out.
+	 */
+	public static ImageContainer read(ByteBuffer buffer, ImageCatalog catalog) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		int id = buffer.getInt();
+		ImageContainer image = new ImageContainer(getString(buffer));
+		image.setId(id);
+		image.setLabel(getString(buffer));
+		List<DescriptorType> order = new ArrayList<DescriptorType>();
+		for (int i = buffer.get(); i > 0; i--)
+			order.add(TYPES[buffer.get()]);
+
+		byte merged = buffer.get();
+		byte alias = buffer.get();
+		for (int i = buffer.get(); i > 0; i--) {
+			DescriptorType type = TYPES[buffer.get()];
+			double maxValue = buffer.getDouble();
+			double[] values = new double[buffer.getInt()];
+			buffer.asDoubleBuffer().get(values);
+			buffer.position(buffer.position() + 8 * values.length);
+			image.getDescriptors().put(type,
+					new Descriptor(type, values, maxValue));
+		}
+		image.getOrder().addAll(order);
+		if (merged == MERGED_ALIAS)
+			image.getDescriptors().put(DescriptorType.MERGED,
+					image.getDescriptor(TYPES[alias]));
+		else if (merged == MERGED_VIEW) {
+			Descriptor[] components = new Descriptor[order.size()];
+			for (int i = 0; i < components.length; i++)
+				components[i] = image.getDescriptor(order.get(i));
+			image.getDescriptors().put(DescriptorType.MERGED,
+					new MergedDescriptor(components));
+		}
+
+		getIds(buffer, catalog, image.getPositives());
+		getIds(buffer, catalog, image.getNegatives());
+		return image;
+	}
+
+	/**
+	 * Writes images to a channel (e.g. a socket or a pipe), every image is
+	 * preceded by its size.
+	 */
+	public static void writeImages(List<ImageContainer> images,
+			WritableByteChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(
+				ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(images.size());
+		for (ImageContainer image : images) {
+			int size = encodedSize(image);
+			if (buffer.remaining() < 4 + size) {
+				drain(buffer, channel);
+				if (buffer.capacity() < 4 + size)
+					buffer = ByteBuffer.allocate(4 + size).order(
+							ByteOrder.LITTLE_ENDIAN);
+			}
+			buffer.putInt(size);
+			write(image, buffer);
+		}
+		drain(buffer, channel);
+	}
+
+	/**
+	 * Reads images written by writeImages() from a channel.
+	 * 
+	 * @param catalog
+	 *            the catalog the marked images are looked up in, null if they
+	 *            are left out.
+	 */
+	public static List<ImageContainer> readImages(ReadableByteChannel channel,
+			ImageCatalog catalog) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4).order(
+				ByteOrder.LITTLE_ENDIAN);
+		fill(buffer, channel);
+		int count = buffer.getInt(0);
+		List<ImageContainer> images = new ArrayList<ImageContainer>(count);
+		for (int i = 0; i < count; i++) {
+			buffer.clear().limit(4);
+			fill(buffer, channel);
+			int size = buffer.getInt(0);
+			if (buffer.capacity() < size)
+				buffer = ByteBuffer.allocate(size).order(
+						ByteOrder.LITTLE_ENDIAN);
+			buffer.clear().limit(size);
+			fill(buffer, channel);
+			images.add(read(buffer, catalog));
+		}
+		return images;
+	}
+
+	private static void drain(ByteBuffer buffer, WritableByteChannel channel)
+			throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/** Fills the buffer up to its limit and rewinds it. */
+	private static void fill(ByteBuffer buffer, ReadableByteChannel channel)
+			throws IOException {
+		while (buffer.hasRemaining())
+			if (channel.read(buffer) < 0)
+				throw new EOFException("truncated image stream");
+		buffer.flip();
+	}
+
+	private static byte mergedMode(ImageContainer image) {
+		Descriptor merged = image.getDescriptor(DescriptorType.MERGED);
+		if (merged == null)
+			return MERGED_NONE;
+		if (merged instanceof MergedDescriptor)
+			return MERGED_VIEW;
+		return aliasOf(image) != null ? MERGED_ALIAS : MERGED_STORED;
+	}
+
+	/**
+	 * @return the type of the descriptor which is also the merged descriptor,
+	 *         null if there is none.
+	 */
+	private static DescriptorType aliasOf(ImageContainer image) {
+		Descriptor merged = image.getDescriptor(DescriptorType.MERGED);
+		for (Map.Entry<DescriptorType, Descriptor> entry : image
+				.getDescriptors().entrySet())
+			if (entry.getKey() != DescriptorType.MERGED
+					&& entry.getValue() == merged)
+				return entry.getKey();
+		return null;
+	}
+
+	/**
+	 * @return the types of the descriptors which are written, MERGED only if
+	 *         it is stored like the others.
+	 */
+	private static List<DescriptorType> storedTypes(ImageContainer image) {
+		boolean merged = mergedMode(image) == MERGED_STORED;
+		List<DescriptorType> types = new ArrayList<DescriptorType>();
+		for (DescriptorType type : image.getDescriptors().keySet())
+			if (type != DescriptorType.MERGED || merged)
+				types.add(type);
+		return types;
+	}
+
+	private static int stringSize(String string) {
+		return 4 + (string == null ? 0 : string
+				.getBytes(StandardCharsets.UTF_8).length);
+	}
+
+	private static void putString(ByteBuffer buffer, String string) {
+		if (string == null) {
+			buffer.putInt(-1);
+			return;
+		}
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int countIds(List<ImageContainer> images) {
+		int count = 0;
+		for (ImageContainer image : images)
+			if (image.getId() >= 0)
+				count++;
+		return count;
+	}
+
+	private static void putIds(ByteBuffer buffer, List<ImageContainer> images) {
+		buffer.putInt(countIds(images));
+		for (ImageContainer image : images)
+			if (image.getId() >= 0)
+				buffer.putInt(image.getId());
+	}
+
+	private static void getIds(ByteBuffer buffer, ImageCatalog catalog,
+			List<ImageContainer> images) {
+		for (int i = buffer.getInt(); i > 0; i--) {
+			int id = buffer.getInt();
+			ImageContainer image = catalog == null ? null : catalog
+					.getImage(id);
+			if (image != null)
+				images.add(image);
+		}
+	}
+
+}
@@ -36,8 +36,6 @@
  */
 package cbir.image;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -45,8 +43,7 @@ import java.io.Serializable;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-
-import cbir.Utils;
+import java.util.Map;
 
 /**
  * A class which implements an image (jpeg...). An image has a filename, a list
@@ -59,8 +56,12 @@ import cbir.Utils;
  */
 public class ImageContainer implements Serializable {
 	private static final long serialVersionUID = -3920208288841347100L;
-	/** The path of the image. */
-	private final String filename;
+	/** The path of the image, null if it is stored in a path dictionary. */
+	private String filename;
+	/** The number of the path in the path dictionary. */
+	private int path = -1;
+	/** The path dictionary, null if the path is stored as string. */
+	private transient PathDictionary paths = null;
 	/** A hash map of the descriptors of the image. */
 	private HashMap<DescriptorType, Descriptor> descriptors;
 	/** List of positive images marked during RF */
@@ -69,6 +70,16 @@ public class ImageContainer implements Serializable {
 	private List<ImageContainer> negatives = new LinkedList<ImageContainer>();
 	/** Label of a image when annotated databases are used */
 	private String label = null;
+	/** The number of the label in the label dictionary, -1 if none. */
+	private int labelId = -1;
+	/** The label dictionary, null if the label is stored as string. */
+	private transient LabelDictionary labels = null;
+	/** The id of the image in its database, -1 if none (see ImageCatalog). */
+	private int id = -1;
+	/** Counts the changes of the marked images. */
+	private transient volatile int feedbackVersion = 0;
+	/** The feedback version at which a list of marked images was replaced. */
+	private transient volatile int feedbackReset = 0;
 	/**
 	 * A list to remember the order in which the descriptors have been merged to
 	 * be able to compute the weights.
@@ -86,21 +97,44 @@ public class ImageContainer implements Serializable {
 			addDescriptor(histograms[i]);
 	}
 
+	/**
+	 * Constructor for a view of an image (see QuerySession). The view shares
+	 * the filename, label, id and descriptors with the image, the lists of
+	 * marked images are empty.
+	 */
+	protected ImageContainer(ImageContainer image) {
+		super();
+		filename = image.filename;
+		path = image.path;
+		paths = image.paths;
+		label = image.label;
+		labelId = image.labelId;
+		labels = image.labels;
+		id = image.id;
+		descriptors = new HashMap<DescriptorType, Descriptor>(
+				image.descriptors);
+		order = new LinkedList<DescriptorType>(image.order);
+	}
+
 	/**
 	 * Adds a descriptor to descriptor list of an image. (always add descriptors
 	 * using this function to garantuee that the merged descriptor is correct)
 	 * 
+	 * The first descriptor is also used as merged descriptor, as soon as there
+	 * are more the merged descriptor is a view over them (see
+	 * MergedDescriptor).
+	 * 
 	 * @param descriptor
 	 *            The descriptor to be added.
 	 */
 	public void addDescriptor(Descriptor descriptor) {
 		if (descriptors.size() > 0) {
-			double[] merged = null;
-			// double maxValue = descriptor.getMaxValue();
-			merged = Utils.concat(descriptors.get(DescriptorType.MERGED)
-					.getValues(), descriptor.getValues());
-			descriptors.put(DescriptorType.MERGED, new Descriptor(
-					DescriptorType.MERGED, merged, 1));
+			Descriptor merged = descriptors.get(DescriptorType.MERGED);
+			if (merged instanceof MergedDescriptor)
+				((MergedDescriptor) merged).addComponent(descriptor);
+			else
+				descriptors.put(DescriptorType.MERGED, new MergedDescriptor(
+						merged, descriptor));
 		} else
 			descriptors.put(DescriptorType.MERGED, descriptor);
 
@@ -109,31 +143,76 @@ public class ImageContainer implements Serializable {
 	}
 
 	/**
-	 * Makes a deep copy of an object via "this"
+	 * Replaces a descriptor of the image by another one with the same values
+	 * (e.g. a copy outside the heap). Every descriptor type the descriptor is
+	 * used for and the merged descriptor are updated.
+	 * 
+	 * @param descriptor
+	 *            The descriptor to be replaced.
+	 * @param replacement
+	 *            The new descriptor.
+	 */
+	public void replaceDescriptor(Descriptor descriptor, Descriptor replacement) {
+		for (Map.Entry<DescriptorType, Descriptor> entry : descriptors
+				.entrySet())
+			if (entry.getValue() == descriptor)
+				entry.setValue(replacement);
+		Descriptor merged = descriptors.get(DescriptorType.MERGED);
+		if (merged instanceof MergedDescriptor)
+			((MergedDescriptor) merged)
+					.replaceComponent(descriptor, replacement);
+	}
+
+	/**
+	 * @return true if the descriptor of the first type is (a part of) the
+	 *         descriptor of the second type.
+	 */
+	public boolean isPartOf(DescriptorType part, DescriptorType whole) {
+		Descriptor descriptor = descriptors.get(part);
+		Descriptor merged = descriptors.get(whole);
+		if (descriptor == merged)
+			return true;
+		return merged instanceof MergedDescriptor
+				&& ((MergedDescriptor) merged).contains(descriptor);
+	}
+
+	/**
+	 * Makes a deep copy of an object via "this". The descriptors are copied
+	 * through the binary encoding (see ImageCodec), the copy uses the same
+	 * dictionaries and marked images as the original.
 	 * 
 	 * @return the deep copy
-	 * @throws IOException
-	 * @throws ClassNotFoundException
-	 */
-	public ImageContainer deepCopy() throws IOException, ClassNotFoundException {
-		// ObjectOutputStream erzeugen
-		ByteArrayOutputStream bufOutStream = new ByteArrayOutputStream();
-		ObjectOutputStream outStream = new ObjectOutputStream(bufOutStream);
-		// Objekt im byte-Array speichern
-		outStream.writeObject(this);
-		outStream.close();
-		// Pufferinhalt abrufen
-		byte[] buffer = bufOutStream.toByteArray();
-		// ObjectInputStream erzeugen
-		ByteArrayInputStream bufInStream = new ByteArrayInputStream(buffer);
-		ObjectInputStream inStream = new ObjectInputStream(bufInStream);
-		// Objekt wieder auslesen
-		ImageContainer deepCopy = (ImageContainer) inStream.readObject();
-		return deepCopy;
+	 */
+	public ImageContainer deepCopy() {
+		ImageContainer copy = ImageCodec.decode(ImageCodec.encode(this), null);
+		copy.filename = filename;
+		copy.path = path;
+		copy.paths = paths;
+		copy.label = label;
+		copy.labelId = labelId;
+		copy.labels = labels;
+		copy.positives.addAll(positives);
+		copy.negatives.addAll(negatives);
+		return copy;
 	}
 
 	public String getFilename() {
-		return filename;
+		return paths == null ? filename : paths.get(path);
+	}
+
+	/**
+	 * Moves the filename into a path dictionary, getFilename() decodes it
+	 * from there.
+	 * 
+	 * @param paths
+	 *            The path dictionary.
+	 */
+	public void setPaths(PathDictionary paths) {
+		if (this.paths == paths)
+			return;
+		path = paths.add(getFilename());
+		this.paths = paths;
+		filename = null;
 	}
 
 	public HashMap<DescriptorType, Descriptor> getDescriptors() {
@@ -148,6 +227,15 @@ public class ImageContainer implements Serializable {
 		return descriptors.get(type);
 	}
 
+	/**
+	 * Returns a descriptor which is about to be changed (e.g. when the query
+	 * is moved during RF). Subclasses which share their descriptors with other
+	 * images copy it first (see QuerySession).
+	 */
+	public Descriptor getWritableDescriptor(DescriptorType type) {
+		return descriptors.get(type);
+	}
+
 	public List<DescriptorType> getOrder() {
 		return order;
 	}
@@ -160,8 +248,27 @@ public class ImageContainer implements Serializable {
 		return positives;
 	}
 
+	/**
+	 * Adds the images marked during an RF iteration to the lists of marked
+	 * images, every image occurs only once in a list.
+	 * 
+	 * @param positives
+	 *            the images marked as positive.
+	 * @param negatives
+	 *            the images marked as negative.
+	 */
+	public void addFeedback(List<ImageContainer> positives,
+			List<ImageContainer> negatives) {
+		ImageCatalog.addImages(this.positives,
+				ImageCatalog.toBitSet(this.positives), positives);
+		ImageCatalog.addImages(this.negatives,
+				ImageCatalog.toBitSet(this.negatives), negatives);
+		feedbackChanged(false);
+	}
+
 	public void setPositives(List<ImageContainer> positives) {
 		this.positives = positives;
+		feedbackChanged(true);
 	}
 
 	public List<ImageContainer> getNegatives() {
@@ -170,14 +277,126 @@ public class ImageContainer implements Serializable {
 
 	public void setNegatives(List<ImageContainer> negatives) {
 		this.negatives = negatives;
+		feedbackChanged(true);
+	}
+
+	/**
+	 * Counts a change of the marked images.
+	 * 
+	 * @param replaced
+	 *            false if images were only appended to the lists.
+	 */
+	protected void feedbackChanged(boolean replaced) {
+		int version = feedbackVersion + 1;
+		if (replaced)
+			feedbackReset = version;
+		feedbackVersion = version;
+	}
+
+	/**
+	 * @return a number which changes whenever the marked images are changed
+	 *         with addFeedback(), setPositives() or setNegatives(). RF state
+	 *         computed from the marked images is up to date as long as it
+	 *         has not changed.
+	 */
+	public int getFeedbackVersion() {
+		return feedbackVersion;
+	}
+
+	/**
+	 * @return the feedback version at which a list of marked images was
+	 *         replaced last. After this version images were only appended to
+	 *         the lists, so RF state computed since then can be updated with
+	 *         the new images.
+	 */
+	public int getFeedbackReset() {
+		return feedbackReset;
 	}
 
 	public String getLabel() {
-		return label;
+		if (labels == null)
+			return label;
+		return labelId < 0 ? null : labels.getLabel(labelId);
 	}
 
+	/**
+	 * Sets the label, if the image uses a label dictionary it is added to it.
+	 */
 	public void setLabel(String label) {
-		this.label = label;
+		if (labels == null)
+			this.label = label;
+		else
+			labelId = label == null ? -1 : labels.getId(label);
+	}
+
+	/**
+	 * Sets the label and stores it as its number in the given label
+	 * dictionary.
+	 * 
+	 * @param labels
+	 *            The label dictionary.
+	 * @param label
+	 *            The label.
+	 */
+	public void setLabel(LabelDictionary labels, String label) {
+		this.labels = labels;
+		this.label = null;
+		labelId = label == null ? -1 : labels.getId(label);
+	}
+
+	/**
+	 * @return the number of the label in the label dictionary, -1 if the
+	 *         image has no label or does not use a label dictionary.
+	 */
+	public int getLabelId() {
+		return labels == null ? -1 : labelId;
+	}
+
+	/**
+	 * Compares the labels of two images, as numbers if both images use the
+	 * same label dictionary.
+	 * 
+	 * @return true if both images have the same label.
+	 */
+	public boolean hasSameLabel(ImageContainer other) {
+		if (labels != null && labels == other.labels)
+			return labelId == other.labelId;
+		String label = getLabel();
+		return label == null ? other.getLabel() == null : label.equals(other
+				.getLabel());
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public void setId(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * Writes the image, a filename or label which is stored in a dictionary is
+	 * written as string, so the image can be read in any virtual machine.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(paths == null ? null : getFilename());
+		out.writeObject(labels == null ? null : getLabel());
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		String filename = (String) in.readObject();
+		String label = (String) in.readObject();
+		if (filename != null) {
+			this.filename = filename;
+			path = -1;
+		}
+		if (labelId >= 0 || label != null) {
+			this.label = label;
+			labelId = -1;
+		}
 	}
 
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.image;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Numbers the labels of a database. Every label is stored once, images keep
+ * the number of their label (see ImageContainer.setLabel(LabelDictionary,
+ * String)), so labels can be compared as integers.
+ * 
+ * Serialized images contain their labels instead of the dictionary (see
+ * ImageContainer).
+ * 
+ * @author Matej Stanic
+ */
+public class LabelDictionary implements Serializable {
+
+	private static final long serialVersionUID = -5082290458233409262L;
+	/** The labels, the index is the number. */
+	private final ArrayList<String> labels = new ArrayList<String>();
+	/** Maps the labels to their numbers. */
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+	/**
+	 * @return the number of the label, it is added if it is not yet in the
+	 *         dictionary.
+	 */
+	public synchronized int getId(String label) {
+		Integer id = ids.get(label);
+		if (id == null) {
+			id = labels.size();
+			labels.add(label);
+			ids.put(label, id);
+		}
+		return id;
+	}
+
+	/**
+	 * @return the label with the given number.
+	 */
+	public synchronized String getLabel(int id) {
+		return labels.get(id);
+	}
+
+	/**
+	 * @return the number of labels.
+	 */
+	public synchronized int size() {
+		return labels.size();
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.image;
+
+/**
+ * The merged descriptor of an image as a view over the descriptors it is made
+ * of. The values are not concatenated into a new array, the view consists of
+ * one block per component descriptor (in the order the descriptors were added
+ * to the image) and reads the values from the components.
+ * 
+ * getValues() returns a concatenated copy, setValues() writes the values back
+ * into the components. Metrics compare two merged descriptors block by block
+ * (see MetricUtility).
+ * 
+ * @author Matej Stanic
+ */
+public class MergedDescriptor extends Descriptor {
+
+	private static final long serialVersionUID = 4378630451736823526L;
+	/** The component descriptors, one per block. */
+	private Descriptor[] components;
+	/** The index of the first value of every block, followed by the size. */
+	private int[] offsets;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param components
+	 *            the descriptors the merged descriptor is made of.
+	 */
+	public MergedDescriptor(Descriptor... components) {
+		super(DescriptorType.MERGED, null, 1);
+		this.components = components.clone();
+		this.offsets = new int[components.length + 1];
+		for (int i = 0; i < components.length; i++)
+			offsets[i + 1] = offsets[i] + components[i].size();
+	}
+
+	/**
+	 * Appends a descriptor as a new block.
+	 */
+	public void addComponent(Descriptor component) {
+		int blocks = components.length;
+		Descriptor[] newComponents = new Descriptor[blocks + 1];
+		System.arraycopy(components, 0, newComponents, 0, blocks);
+		newComponents[blocks] = component;
+		int[] newOffsets = new int[blocks + 2];
+		System.arraycopy(offsets, 0, newOffsets, 0, blocks + 1);
+		newOffsets[blocks + 1] = offsets[blocks] + component.size();
+		components = newComponents;
+		offsets = newOffsets;
+	}
+
+	/**
+	 * Replaces a component (e.g. when it has been moved off the heap).
+	 * 
+	 * @return true if the descriptor was a component.
+	 */
+	public boolean replaceComponent(Descriptor component, Descriptor replacement) {
+		boolean replaced = false;
+		for (int i = 0; i < components.length; i++)
+			if (components[i] == component) {
+				components[i] = replacement;
+				replaced = true;
+			}
+		return replaced;
+	}
+
+	/**
+	 * @return true if the descriptor is a component of this one.
+	 */
+	public boolean contains(Descriptor component) {
+		for (Descriptor block : components)
+			if (block == component)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the number of blocks.
+	 */
+	public int getBlockCount() {
+		return components.length;
+	}
+
+	/**
+	 * @return the component descriptor of a block.
+	 */
+	public Descriptor getComponent(int block) {
+		return components[block];
+	}
+
+	/**
+	 * @return the index of the first value of a block.
+	 */
+	public int getOffset(int block) {
+		return offsets[block];
+	}
+
+	/**
+	 * @return true if the other descriptor has blocks of the same sizes.
+	 */
+	public boolean hasSameBlocks(MergedDescriptor other) {
+		if (other.offsets.length != offsets.length)
+			return false;
+		for (int i = 0; i < offsets.length; i++)
+			if (other.offsets[i] != offsets[i])
+				return false;
+		return true;
+	}
+
+	@Override
+	public double[] getValues() {
+		double[] values = new double[size()];
+		for (int b = 0; b < components.length; b++) {
+			Descriptor component = components[b];
+			if (component.hasArray())
+				System.arraycopy(component.getValues(), 0, values, offsets[b],
+						component.size());
+			else
+				for (int i = 0; i < component.size(); i++)
+					values[offsets[b] + i] = component.get(i);
+		}
+		return values;
+	}
+
+	/**
+	 * Writes the values into the component descriptors.
+	 */
+	@Override
+	public void setValues(double[] values) {
+		if (values.length != size())
+			throw new IllegalArgumentException("expected " + size()
+					+ " values, got " + values.length);
+		for (int b = 0; b < components.length; b++) {
+			double[] block = new double[components[b].size()];
+			System.arraycopy(values, offsets[b], block, 0, block.length);
+			components[b].setValues(block);
+		}
+	}
+
+	@Override
+	public int size() {
+		return offsets[components.length];
+	}
+
+	@Override
+	public double get(int i) {
+		int b = 0;
+		while (i >= offsets[b + 1])
+			b++;
+		return components[b].get(i - offsets[b]);
+	}
+
+	@Override
+	public boolean hasArray() {
+		return false;
+	}
+
+}
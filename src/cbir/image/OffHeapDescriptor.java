@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.image;
+
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+
+/**
+ * A descriptor whose values are stored outside of the Java heap in a block of
+ * a {@link DescriptorArena}, either as doubles or as floats. The garbage
+ * collector only sees this small object, not the values.
+ * 
+ * getValues() returns a copy of the values, changes have to be written back
+ * with setValues(). Metrics and indexes read the values with get(i) without
+ * copying. When an image is copied (serialized), its off-heap descriptors
+ * become ordinary descriptors.
+ * 
+ * @author Matej Stanic
+ * 
+ */
+public class OffHeapDescriptor extends Descriptor {
+	private static final long serialVersionUID = 1L;
+	/** The block of the arena containing the values. */
+	private final transient ByteBuffer block;
+	/** Position of the first value in the block (in bytes). */
+	private final int offset;
+	/** Number of values. */
+	private final int size;
+	/** True if the values are stored as floats. */
+	private final boolean floats;
+
+	/**
+	 * Constructor, used by the arena.
+	 */
+	OffHeapDescriptor(DescriptorType type, double maxValue, ByteBuffer block,
+			int offset, int size, boolean floats) {
+		super(type, null, maxValue);
+		this.block = block;
+		this.offset = offset;
+		this.size = size;
+		this.floats = floats;
+	}
+
+	@Override
+	public double[] getValues() {
+		double[] values = new double[size];
+		for (int i = 0; i < size; i++)
+			values[i] = get(i);
+		return values;
+	}
+
+	@Override
+	public void setValues(double[] values) {
+		if (values.length != size)
+			throw new IllegalArgumentException("expected " + size
+					+ " values instead of " + values.length);
+		for (int i = 0; i < size; i++)
+			if (floats)
+				block.putFloat(offset + 4 * i, (float) values[i]);
+			else
+				block.putDouble(offset + 8 * i, values[i]);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public double get(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException(Integer.toString(i));
+		if (floats)
+			return block.getFloat(offset + 4 * i);
+		return block.getDouble(offset + 8 * i);
+	}
+
+	@Override
+	public boolean hasArray() {
+		return false;
+	}
+
+	/**
+	 * Serializes an ordinary descriptor with the same values instead.
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		return new Descriptor(getType(), getValues(), getMaxValue());
+	}
+
+}
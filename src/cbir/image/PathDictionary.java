@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.image;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stores the filenames of a database in little space. The paths of a database
+ * share long directory prefixes, the dictionary therefore stores them front
+ * coded: in blocks of BLOCK_SIZE paths, the first path of a block is stored
+ * completely and every other one as the length of the prefix it shares with
+ * its predecessor followed by the rest of its bytes (UTF-8).
+ * 
+ * Reading a path decodes its block up to the path. After trimToSize() the
+ * paths are read without locking, so many threads can read filenames at the
+ * same time. Serialized images contain their filenames instead of the
+ * dictionary (see ImageContainer).
+ * 
+ * @author Matej Stanic
+ */
+public class PathDictionary implements Serializable {
+
+	private static final long serialVersionUID = 7609453637525458591L;
+	/** The number of paths per block. */
+	public static final int BLOCK_SIZE = 16;
+
+	/** The encoded paths. */
+	private byte[] data = new byte[1 << 12];
+	/** The number of used bytes of data. */
+	private int length = 0;
+	/** The position of the first path of every block. */
+	private int[] blocks = new int[16];
+	/** The number of paths. */
+	private int count = 0;
+	/** The bytes of the last path that was added. */
+	private byte[] last = new byte[0];
+	/** The paths as of trimToSize(), null if a path has been added since. */
+	private transient volatile Frozen frozen = null;
+
+	/**
+	 * Adds a path.
+	 * 
+	 * @return the number of the path.
+	 */
+	public synchronized int add(String path) {
+		frozen = null;
+		byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+		int prefix = 0;
+		if (count % BLOCK_SIZE == 0) {
+			if (count / BLOCK_SIZE == blocks.length)
+				blocks = Arrays.copyOf(blocks, Math.max(16, blocks.length * 2));
+			blocks[count / BLOCK_SIZE] = length;
+		} else {
+			int max = Math.min(last.length, bytes.length);
+			while (prefix < max && last[prefix] == bytes[prefix])
+				prefix++;
+		}
+		int suffix = bytes.length - prefix;
+		ensureCapacity(length + 10 + suffix);
+		writeNumber(prefix);
+		writeNumber(suffix);
+		System.arraycopy(bytes, prefix, data, length, suffix);
+		length += suffix;
+		last = bytes;
+		return count++;
+	}
+
+	/**
+	 * @return the path with the given number.
+	 */
+	public String get(int number) {
+		Frozen frozen = this.frozen;
+		if (frozen != null && number >= 0 && number < frozen.count)
+			return decode(frozen.data, frozen.blocks, number);
+		synchronized (this) {
+			if (number < 0 || number >= count)
+				throw new IndexOutOfBoundsException("path " + number + " of "
+						+ count);
+			return decode(data, blocks, number);
+		}
+	}
+
+	/**
+	 * Decodes the block of a path up to the path.
+	 */
+	private static String decode(byte[] data, int[] blocks, int number) {
+		int[] position = { blocks[number / BLOCK_SIZE] };
+		byte[] buffer = null;
+		int size = 0;
+		for (int i = number - number % BLOCK_SIZE; i <= number; i++) {
+			int prefix = readNumber(data, position);
+			int suffix = readNumber(data, position);
+			if (buffer == null || buffer.length < prefix + suffix)
+				buffer = Arrays.copyOf(buffer == null ? new byte[0] : buffer,
+						Math.max(64, 2 * (prefix + suffix)));
+			System.arraycopy(data, position[0], buffer, prefix, suffix);
+			position[0] += suffix;
+			size = prefix + suffix;
+		}
+		return new String(buffer, 0, size, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the number of paths.
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes the encoded paths take.
+	 */
+	public synchronized int getLength() {
+		return length;
+	}
+
+	/**
+	 * Frees the unused capacity (after the last path has been added), the
+	 * paths are read without locking from now on.
+	 */
+	public synchronized void trimToSize() {
+		data = Arrays.copyOf(data, length);
+		blocks = Arrays.copyOf(blocks, (count + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		frozen = new Frozen(data, blocks, count);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > data.length)
+			data = Arrays.copyOf(data, Math.max(capacity, data.length * 2));
+	}
+
+	/**
+	 * Writes a non-negative number with 7 bits per byte.
+	 */
+	private void writeNumber(int value) {
+		while (value >= 0x80) {
+			data[length++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		data[length++] = (byte) value;
+	}
+
+	/**
+	 * Reads a number at the position and moves the position behind it.
+	 */
+	private static int readNumber(byte[] data, int[] position) {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = data[position[0]++];
+			value |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+	}
+
+	/**
+	 * The encoded paths which are not changed anymore.
+	 */
+	private static final class Frozen {
+		private final byte[] data;
+		private final int[] blocks;
+		private final int count;
+
+		Frozen(byte[] data, int[] blocks, int count) {
+			this.data = data;
+			this.blocks = blocks;
+			this.count = count;
+		}
+	}
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.image;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A query on an image of the database. The session shares the descriptors of
+ * the image instead of copying it, a descriptor is copied only when an RF
+ * method changes it (see getWritableDescriptor()), so the images of the
+ * database are never changed and starting a session is cheap.
+ * 
+ * Besides the marked images the session keeps the sets of their ids and the
+ * state RF methods and scores keep for this query. The state is not
+ * serialized (its keys are the algorithms), a deserialized session starts
+ * without it and the sets of ids are rebuilt from the marked images.
+ * 
+ * Every entry of the state is stored with an estimate of its size, so the
+ * memory of a session can be bounded (see estimateSize()). State which can be
+ * computed again from the marked images is stored with cacheState() and may
+ * be dropped (see dropCachedState()).
+ * 
+ * @author Matej Stanic
+ */
+public class QuerySession extends ImageContainer {
+
+	private static final long serialVersionUID = -1203541977632508373L;
+	/** Estimated bytes of an entry of the state or of a marked image. */
+	private static final int ENTRY_BYTES = 64;
+	/** The image of the database the query was started with. */
+	private final ImageContainer image;
+	/** The ids of the images marked as positive. */
+	private transient BitSet positiveIds = new BitSet();
+	/** The ids of the images marked as negative. */
+	private transient BitSet negativeIds = new BitSet();
+	/**
+	 * The state of the algorithms, the key is the algorithm. Scores read it
+	 * from many threads.
+	 */
+	private transient ConcurrentHashMap<Object, State> state = new ConcurrentHashMap<Object, State>();
+
+	/**
+	 * Starts a query session.
+	 * 
+	 * @param image
+	 *            the query image.
+	 */
+	public QuerySession(ImageContainer image) {
+		super(image);
+		this.image = image;
+	}
+
+	/**
+	 * Returns a descriptor which is about to be changed, it is copied first if
+	 * it is still shared with the image of the database. The other descriptor
+	 * types which use it (e.g. MERGED) are updated.
+	 */
+	@Override
+	public Descriptor getWritableDescriptor(DescriptorType type) {
+		Descriptor descriptor = getDescriptor(type);
+		if (descriptor == null)
+			return null;
+		// the merged view itself is copied before any of its components
+		Descriptor merged = getDescriptor(DescriptorType.MERGED);
+		if (merged instanceof MergedDescriptor
+				&& merged == image.getDescriptor(DescriptorType.MERGED)) {
+			MergedDescriptor view = (MergedDescriptor) merged;
+			Descriptor[] components = new Descriptor[view.getBlockCount()];
+			for (int i = 0; i < components.length; i++)
+				components[i] = view.getComponent(i);
+			MergedDescriptor copy = new MergedDescriptor(components);
+			getDescriptors().put(DescriptorType.MERGED, copy);
+			if (descriptor == merged)
+				descriptor = copy;
+		}
+		if (descriptor instanceof MergedDescriptor) {
+			MergedDescriptor view = (MergedDescriptor) descriptor;
+			for (int i = 0; i < view.getBlockCount(); i++)
+				if (isShared(view.getComponent(i)))
+					replaceDescriptor(view.getComponent(i),
+							copy(view.getComponent(i)));
+			return view;
+		}
+		if (!isShared(descriptor))
+			return descriptor;
+		Descriptor copy = copy(descriptor);
+		replaceDescriptor(descriptor, copy);
+		return copy;
+	}
+
+	/**
+	 * @return true if the descriptor belongs to the image of the database.
+	 */
+	private boolean isShared(Descriptor descriptor) {
+		for (Descriptor shared : image.getDescriptors().values()) {
+			if (shared == descriptor)
+				return true;
+			if (shared instanceof MergedDescriptor
+					&& ((MergedDescriptor) shared).contains(descriptor))
+				return true;
+		}
+		return false;
+	}
+
+	private static Descriptor copy(Descriptor descriptor) {
+		double[] values = descriptor.getValues();
+		if (descriptor.hasArray())
+			values = values.clone();
+		return new Descriptor(descriptor.getType(), values,
+				descriptor.getMaxValue());
+	}
+
+	@Override
+	public void addFeedback(List<ImageContainer> positives,
+			List<ImageContainer> negatives) {
+		ImageCatalog.addImages(getPositives(), positiveIds, positives);
+		ImageCatalog.addImages(getNegatives(), negativeIds, negatives);
+		feedbackChanged(false);
+	}
+
+	@Override
+	public void setPositives(List<ImageContainer> positives) {
+		super.setPositives(positives);
+		positiveIds = ImageCatalog.toBitSet(positives);
+	}
+
+	@Override
+	public void setNegatives(List<ImageContainer> negatives) {
+		super.setNegatives(negatives);
+		negativeIds = ImageCatalog.toBitSet(negatives);
+	}
+
+	/**
+	 * @return the ids of the images marked as positive.
+	 */
+	public BitSet getPositiveIds() {
+		return positiveIds;
+	}
+
+	/**
+	 * @return the ids of the images marked as negative.
+	 */
+	public BitSet getNegativeIds() {
+		return negativeIds;
+	}
+
+	/**
+	 * @return the state an algorithm keeps for this query, null if there is
+	 *         none.
+	 */
+	public Object getState(Object algorithm) {
+		State entry = state.get(algorithm);
+		return entry == null ? null : entry.value;
+	}
+
+	/**
+	 * Stores state an algorithm has to keep for this query, null removes it.
+	 * 
+	 * @param algorithm
+	 *            the algorithm (the key of the state).
+	 * @param value
+	 *            the state.
+	 * @param bytes
+	 *            the estimated size of the state in bytes.
+	 */
+	public void setState(Object algorithm, Object value, long bytes) {
+		putState(algorithm, value, bytes, false);
+	}
+
+	/**
+	 * Stores state which can be computed again from the marked images (e.g.
+	 * distances kept between the RF iterations), null removes it. It may be
+	 * dropped if the session uses too much memory.
+	 * 
+	 * @param algorithm
+	 *            the algorithm (the key of the state).
+	 * @param value
+	 *            the state.
+	 * @param bytes
+	 *            the estimated size of the state in bytes.
+	 */
+	public void cacheState(Object algorithm, Object value, long bytes) {
+		putState(algorithm, value, bytes, true);
+	}
+
+	private void putState(Object algorithm, Object value, long bytes,
+			boolean cached) {
+		if (value == null)
+			state.remove(algorithm);
+		else
+			state.put(algorithm, new State(value, bytes, cached));
+	}
+
+	/**
+	 * @return the estimated number of bytes the session keeps besides the
+	 *         image it shares: the state, the marked images and the
+	 *         descriptors copied for the RF methods.
+	 */
+	public long estimateSize() {
+		long bytes = (long) ENTRY_BYTES
+				* (getPositives().size() + getNegatives().size());
+		for (State entry : state.values())
+			bytes += ENTRY_BYTES + entry.bytes;
+		for (Descriptor descriptor : getDescriptors().values())
+			if (descriptor.hasArray() && !isShared(descriptor))
+				bytes += 8L * descriptor.size();
+		return bytes;
+	}
+
+	/**
+	 * Drops cached state, the largest entries first, until the estimated size
+	 * of the session is at most the given number of bytes.
+	 * 
+	 * @param maxBytes
+	 *            the number of bytes the session may keep.
+	 * @return the estimated size afterwards, it is larger than maxBytes if
+	 *         the state which has to be kept is larger.
+	 */
+	public long dropCachedState(long maxBytes) {
+		long bytes = estimateSize();
+		while (bytes > maxBytes) {
+			Map.Entry<Object, State> largest = null;
+			for (Map.Entry<Object, State> entry : state.entrySet())
+				if (entry.getValue().cached
+						&& (largest == null || entry.getValue().bytes > largest
+								.getValue().bytes))
+					largest = entry;
+			if (largest == null)
+				break;
+			if (state.remove(largest.getKey(), largest.getValue()))
+				bytes -= ENTRY_BYTES + largest.getValue().bytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the image of the database the query was started with.
+	 */
+	public ImageContainer getImage() {
+		return image;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		positiveIds = ImageCatalog.toBitSet(getPositives());
+		negativeIds = ImageCatalog.toBitSet(getNegatives());
+		state = new ConcurrentHashMap<Object, State>();
+	}
+
+	/**
+	 * An entry of the state and its estimated size.
+	 */
+	private static final class State {
+		private final Object value;
+		private final long bytes;
+		/** True if the state can be computed again and may be dropped. */
+		private final boolean cached;
+
+		State(Object value, long bytes, boolean cached) {
+			this.value = value;
+			this.bytes = bytes;
+			this.cached = cached;
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.interfaces;
+
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+
+/**
+ * A score which can compute cheap upper bounds of its scores. The retrievers
+ * skip the exact score of an image whose bound cannot beat the worst of the
+ * images found so far.
+ * 
+ * @author Chris Wendler
+ * 
+ */
+public interface BoundedScore extends BatchScore {
+	/**
+	 * Calculates upper bounds of the scores of a range of images. A bound is
+	 * never smaller than the score (NaN if nothing is known about the image).
+	 * 
+	 * @param query
+	 *            the query vector containing all positively and negatively
+	 *            marked images.
+	 * @param images
+	 *            the images for which the bounds are computed.
+	 * @param from
+	 *            the first image of the range.
+	 * @param to
+	 *            the end of the range (exclusive).
+	 * @param bounds
+	 *            the array the bounds are stored in, at the index of the
+	 *            image.
+	 * @param type
+	 *            the type of descriptor which is considered in the score
+	 *            computation.
+	 * @return false if the score cannot compute bounds for this query, the
+	 *         array is not changed then.
+	 */
+	public boolean upperBounds(ImageContainer query, ImageContainer[] images,
+			int from, int to, double[] bounds, DescriptorType type);
+}
@@ -83,6 +83,15 @@ public interface Retriever {
 	 */
 	public ImageContainer getImageByName(String name);
 
+	/**
+	 * Queries for an image with a specific id (see ImageCatalog).
+	 * 
+	 * @param id
+	 *            of the image.
+	 * @return The image object with the given id or null if not found.
+	 */
+	public ImageContainer getImage(int id);
+
 	/**
 	 * A getter for the database.
 	 * 
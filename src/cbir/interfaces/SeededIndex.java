@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.interfaces;
+
+import java.util.List;
+
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+
+/**
+ * An index whose search can be warm started with some images (e.g. the results
+ * of the previous RF iteration). The images are compared with the query first,
+ * their distances bound the distance of the nearest neighbors, so the index
+ * can prune from the first node on. The results are the same as without them.
+ * 
+ * @author Chris Wendler
+ * 
+ */
+public interface SeededIndex extends Index {
+	/**
+	 * Search for a certain number of nearest neighbors, warm started with some
+	 * images.
+	 * 
+	 * @param num
+	 *            The number of nearest neighbors to be retrieved.
+	 * @param image
+	 *            Image to find neighbors of.
+	 * @param metric
+	 *            Metric used for finding neighbors.
+	 * @param type
+	 *            Descriptor type which is considered.
+	 * @param seed
+	 *            images of the index which are probably close to the image,
+	 *            may be null.
+	 * @return A list of the num nearest neighbors sorted by increasing
+	 *         distance, null if image is null.
+	 */
+	public List<ImageContainer> nearestNeighborSearch(int num,
+			final ImageContainer image, final Metric metric,
+			final DescriptorType type, List<ImageContainer> seed);
+}
@@ -36,7 +36,7 @@
  */
 package cbir.metric;
 
-import cbir.Utils;
+import cbir.image.Descriptor;
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
 import cbir.interfaces.Metric;
@@ -64,13 +64,16 @@ public class Cosine implements Metric {
 	public double distance(ImageContainer a, ImageContainer b,
 			DescriptorType type) {
 		double result;
-		double[] vectorA = a.getDescriptor(type).getValues();
-		double[] vectorB = b.getDescriptor(type).getValues();
-		double denominator = Utils.norm(vectorA) * Utils.norm(vectorB);
+		Descriptor vectorA = a.getDescriptor(type);
+		Descriptor vectorB = b.getDescriptor(type);
+		double denominator = Math.sqrt(MetricUtility.scalarProduct(vectorA,
+				vectorA, null))
+				* Math.sqrt(MetricUtility.scalarProduct(vectorB, vectorB, null));
 		if (denominator == 0)
 			result = 0;
 		else
-			result = Utils.scalarProduct(vectorA, vectorB) / denominator;
+			result = MetricUtility.scalarProduct(vectorA, vectorB, null)
+					/ denominator;
 		return 1.d / (result + 0.000001);
 	}
 
@@ -62,12 +62,8 @@ public class Euclidean implements Metric {
 	 */
 	public double distance(ImageContainer a, ImageContainer b,
 			DescriptorType type) {
-		double dist = 0;
-		for (int i = 0; i < a.getDescriptor(type).getValues().length; i++)
-			dist += Math.pow(a.getDescriptor(type).getValues()[i]
-					- b.getDescriptor(type).getValues()[i], 2);
-		dist = Math.sqrt(dist);
-		return dist;
+		return Math.sqrt(MetricUtility.squaredDistance(a.getDescriptor(type),
+				b.getDescriptor(type)));
 	}
 
 }
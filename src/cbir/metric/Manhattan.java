@@ -62,10 +62,8 @@ public class Manhattan implements Metric {
 	 */
 	public double distance(ImageContainer a, ImageContainer b,
 			DescriptorType type) {
-		double dist = 0;
-		for (int i = 0; i < a.getDescriptor(type).getValues().length; i++)
-			dist += Math.abs(a.getDescriptor(type).getValues()[i]
-					- b.getDescriptor(type).getValues()[i]);
+		double dist = MetricUtility.absoluteDistance(a.getDescriptor(type),
+				b.getDescriptor(type));
 		dist = Math.sqrt(dist);
 		return dist;
 	}
@@ -36,14 +36,22 @@
  */
 package cbir.metric;
 
+import java.util.Arrays;
 import java.util.List;
 
+import cbir.image.Descriptor;
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
+import cbir.image.MergedDescriptor;
+import cbir.interfaces.Metric;
 
 /**
  * Provides a function which initializes weights for the merged descriptor. Used
- * for weighted cosine and weighted gaussian.
+ * for weighted cosine and weighted gaussian. Also provides the loops the
+ * metrics are computed with, they read the values of on-heap descriptors
+ * directly from their arrays and the values of other descriptors (e.g.
+ * off-heap ones) without copying them. Merged descriptors are compared block
+ * by block, the weights of a block start at the offset of the block.
  * 
  * @author Chris Wendler
  * 
@@ -62,12 +70,12 @@ public class MetricUtility {
 	 */
 	public static double[] initializeWeights(ImageContainer query,
 			DescriptorType type) {
-		double[] weights = new double[query.getDescriptor(type).getValues().length];
+		double[] weights = new double[query.getDescriptor(type).size()];
 		if (type == DescriptorType.MERGED) {
 			List<DescriptorType> types = query.getOrder();
 			int start = 0;
 			for (DescriptorType currType : types) {
-				int length = query.getDescriptor(currType).getValues().length;
+				int length = query.getDescriptor(currType).size();
 				for (int i = start; i < (start + length); i++)
 					weights[i] = (1.d / length)
 							* ((double) weights.length / types.size());
@@ -80,4 +88,315 @@ public class MetricUtility {
 		return weights;
 	}
 
+	/**
+	 * Calculates the squared euclidean distance of two descriptors.
+	 */
+	public static double squaredDistance(Descriptor a, Descriptor b) {
+		MergedDescriptor merged = blocks(a, b);
+		if (merged != null) {
+			MergedDescriptor other = (MergedDescriptor) b;
+			double dist = 0;
+			for (int k = 0; k < merged.getBlockCount(); k++)
+				dist += squaredDistance(merged.getComponent(k),
+						other.getComponent(k));
+			return dist;
+		}
+		double dist = 0;
+		int length = a.size();
+		if (a.hasArray() && b.hasArray()) {
+			double[] x = a.getValues(), y = b.getValues();
+			for (int i = 0; i < length; i++) {
+				double d = x[i] - y[i];
+				dist += d * d;
+			}
+		} else {
+			for (int i = 0; i < length; i++) {
+				double d = a.get(i) - b.get(i);
+				dist += d * d;
+			}
+		}
+		return dist;
+	}
+
+	/**
+	 * Calculates the weighted squared euclidean distance of two descriptors.
+	 * The length of the weights determines how many values are compared.
+	 */
+	public static double squaredDistance(Descriptor a, Descriptor b,
+			double[] weights) {
+		return squaredDistance(a, b, weights, 0, weights.length);
+	}
+
+	/**
+	 * Calculates the weighted squared euclidean distance of the first "length"
+	 * values of two descriptors, the weights start at "offset".
+	 */
+	private static double squaredDistance(Descriptor a, Descriptor b,
+			double[] weights, int offset, int length) {
+		MergedDescriptor merged = blocks(a, b);
+		if (merged != null) {
+			MergedDescriptor other = (MergedDescriptor) b;
+			double dist = 0;
+			for (int k = 0; k < merged.getBlockCount(); k++) {
+				int start = merged.getOffset(k);
+				if (start >= length)
+					break;
+				Descriptor component = merged.getComponent(k);
+				dist += squaredDistance(component, other.getComponent(k),
+						weights, offset + start,
+						Math.min(length - start, component.size()));
+			}
+			return dist;
+		}
+		double dist = 0;
+		if (a.hasArray() && b.hasArray()) {
+			double[] x = a.getValues(), y = b.getValues();
+			for (int i = 0; i < length; i++) {
+				double d = x[i] - y[i];
+				dist += d * d * weights[offset + i];
+			}
+		} else {
+			for (int i = 0; i < length; i++) {
+				double d = a.get(i) - b.get(i);
+				dist += d * d * weights[offset + i];
+			}
+		}
+		return dist;
+	}
+
+	/**
+	 * Calculates the sum of the absolute differences of two descriptors.
+	 */
+	public static double absoluteDistance(Descriptor a, Descriptor b) {
+		MergedDescriptor merged = blocks(a, b);
+		if (merged != null) {
+			MergedDescriptor other = (MergedDescriptor) b;
+			double dist = 0;
+			for (int k = 0; k < merged.getBlockCount(); k++)
+				dist += absoluteDistance(merged.getComponent(k),
+						other.getComponent(k));
+			return dist;
+		}
+		double dist = 0;
+		int length = a.size();
+		if (a.hasArray() && b.hasArray()) {
+			double[] x = a.getValues(), y = b.getValues();
+			for (int i = 0; i < length; i++)
+				dist += Math.abs(x[i] - y[i]);
+		} else {
+			for (int i = 0; i < length; i++)
+				dist += Math.abs(a.get(i) - b.get(i));
+		}
+		return dist;
+	}
+
+	/**
+	 * Calculates the (weighted) scalar product of two descriptors.
+	 * 
+	 * @param weights
+	 *            the weights, null for the plain scalar product.
+	 */
+	public static double scalarProduct(Descriptor a, Descriptor b,
+			double[] weights) {
+		return scalarProduct(a, b, weights, 0);
+	}
+
+	/**
+	 * Calculates the (weighted) scalar product of two descriptors, the weights
+	 * start at "offset".
+	 */
+	private static double scalarProduct(Descriptor a, Descriptor b,
+			double[] weights, int offset) {
+		MergedDescriptor merged = blocks(a, b);
+		if (merged != null) {
+			MergedDescriptor other = (MergedDescriptor) b;
+			double result = 0;
+			for (int k = 0; k < merged.getBlockCount(); k++)
+				result += scalarProduct(merged.getComponent(k),
+						other.getComponent(k), weights,
+						offset + merged.getOffset(k));
+			return result;
+		}
+		double result = 0;
+		int length = a.size();
+		if (a.hasArray() && b.hasArray()) {
+			double[] x = a.getValues(), y = b.getValues();
+			if (weights == null)
+				for (int i = 0; i < length; i++)
+					result += x[i] * y[i];
+			else
+				for (int i = 0; i < length; i++)
+					result += weights[offset + i] * x[i] * y[i];
+		} else {
+			if (weights == null)
+				for (int i = 0; i < length; i++)
+					result += a.get(i) * b.get(i);
+			else
+				for (int i = 0; i < length; i++)
+					result += weights[offset + i] * a.get(i) * b.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Bounds how much a metric stretches the distances of another one (e.g.
+	 * the metric an index was built with): returns {lo, hi} with lo *
+	 * reference(a,b) <= metric(a,b) <= hi * reference(a,b) for all images.
+	 * Known for Euclidean and WeightedEuclidean (whose weights have to be
+	 * initialized), for other metrics only if they are the same.
+	 * 
+	 * @param reference
+	 *            the reference metric.
+	 * @param metric
+	 *            the metric which is compared with it.
+	 * @param length
+	 *            the length of the descriptors.
+	 * @return the factors, null if they are not known.
+	 */
+	public static double[] distortion(Metric reference, Metric metric,
+			int length) {
+		if (reference == metric)
+			return new double[] { 1, 1 };
+		double[] a = euclideanWeights(reference, length);
+		double[] b = euclideanWeights(metric, length);
+		if (a == null || b == null)
+			return null;
+		double lo = Double.POSITIVE_INFINITY, hi = 0;
+		for (int i = 0; i < length; i++) {
+			double ratio;
+			if (a[i] > 0)
+				ratio = b[i] / a[i];
+			else if (b[i] > 0)
+				// the reference ignores a dimension the metric uses
+				return null;
+			else
+				continue;
+			lo = Math.min(lo, ratio);
+			hi = Math.max(hi, ratio);
+		}
+		if (hi == 0)
+			return new double[] { 1, 1 };
+		return new double[] { Math.sqrt(lo), Math.sqrt(hi) };
+	}
+
+	/**
+	 * Returns how much the order of the distances can change between two
+	 * metrics (hi / lo of distortion()), at most max. Approximate indexes
+	 * look at that many times more candidates for a reweighted metric.
+	 * 
+	 * @return a factor between 1 and max, max if it is not known.
+	 */
+	public static double stretch(Metric reference, Metric metric, int length,
+			double max) {
+		double[] scale = distortion(reference, metric, length);
+		if (scale == null || scale[0] == 0)
+			return max;
+		return Math.max(1, Math.min(max, scale[1] / scale[0]));
+	}
+
+	/**
+	 * Returns factors c with metric(a,b) >= c[i] * |a[i] - b[i]| for every
+	 * dimension i, which bound the distance to an axis-aligned plane.
+	 * 
+	 * @return the square roots of the weights of a WeightedEuclidean metric,
+	 *         null for other metrics (all factors are 1).
+	 */
+	public static double[] axisFactors(Metric metric, int length) {
+		if (!(metric instanceof WeightedEuclidean))
+			return null;
+		double[] weights = euclideanWeights(metric, length);
+		if (weights == null)
+			return null;
+		double[] factors = new double[length];
+		for (int i = 0; i < length; i++)
+			factors[i] = Math.sqrt(weights[i]);
+		return factors;
+	}
+
+	/**
+	 * Bounds the distance of the num-th nearest neighbor of an image with the
+	 * distances of some other images (e.g. the results of the previous RF
+	 * iteration): at least num images with distinct distances are not farther
+	 * away than the num-th smallest distinct distance of the seed.
+	 * 
+	 * @param image
+	 *            the query image.
+	 * @param seed
+	 *            images of the database, may be null or contain null.
+	 * @param num
+	 *            the number of nearest neighbors.
+	 * @param metric
+	 *            the metric used for the search.
+	 * @param type
+	 *            the descriptor type of interest.
+	 * @return the bound, infinity if the seed has fewer than num distinct
+	 *         distances.
+	 */
+	public static double seedBound(ImageContainer image,
+			List<ImageContainer> seed, int num, Metric metric,
+			DescriptorType type) {
+		if (seed == null || num <= 0)
+			return Double.POSITIVE_INFINITY;
+		// short result lists are filled up with null
+		int count = 0;
+		for (ImageContainer curr : seed)
+			if (curr != null)
+				count++;
+		if (count < num)
+			return Double.POSITIVE_INFINITY;
+		double[] distances = new double[count];
+		count = 0;
+		for (ImageContainer curr : seed)
+			if (curr != null)
+				distances[count++] = metric.distance(image, curr, type);
+		Arrays.sort(distances, 0, count);
+		int distinct = 0;
+		for (int i = 0; i < count; i++)
+			if ((i == 0 || distances[i] != distances[i - 1])
+					&& ++distinct == num)
+				return distances[i];
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return a number which changes whenever the metric changes its weights,
+	 *         0 for metrics without weights. Distances computed in advance
+	 *         are valid as long as it does not change.
+	 */
+	public static int version(Metric metric) {
+		if (metric instanceof WeightedEuclidean)
+			return ((WeightedEuclidean) metric).getVersion();
+		return 0;
+	}
+
+	/**
+	 * @return the weights of a (weighted) euclidean metric, null if the
+	 *         metric is not euclidean or its weights are not initialized.
+	 */
+	private static double[] euclideanWeights(Metric metric, int length) {
+		double[] weights;
+		if (metric instanceof WeightedEuclidean)
+			weights = ((WeightedEuclidean) metric).getWeights();
+		else if (metric instanceof Euclidean) {
+			weights = new double[length];
+			Arrays.fill(weights, 1);
+		} else
+			return null;
+		if (weights == null || weights.length != length)
+			return null;
+		return weights;
+	}
+
+	/**
+	 * @return the first descriptor if both descriptors are merged views with
+	 *         the same blocks and can be compared block by block, null
+	 *         otherwise.
+	 */
+	private static MergedDescriptor blocks(Descriptor a, Descriptor b) {
+		if (a instanceof MergedDescriptor && b instanceof MergedDescriptor
+				&& ((MergedDescriptor) a).hasSameBlocks((MergedDescriptor) b))
+			return (MergedDescriptor) a;
+		return null;
+	}
+
 }
@@ -36,7 +36,7 @@
  */
 package cbir.metric;
 
-import cbir.Utils;
+import cbir.image.Descriptor;
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
 import cbir.interfaces.Metric;
@@ -49,7 +49,7 @@ import cbir.interfaces.Metric;
  */
 public class WeightedCosine implements Metric {
 	/** The weights used. */
-	private double[] weights;
+	private volatile double[] weights;
 
 	@Override
 	/**
@@ -65,15 +65,21 @@ public class WeightedCosine implements Metric {
 	 */
 	public double distance(ImageContainer a, ImageContainer b,
 			DescriptorType type) {
-		if (weights == null)
-			initializeWeights(a, type);
+		double[] weights = this.weights;
+		if (weights == null) {
+			initialize(a, type);
+			weights = this.weights;
+		}
 		double result;
-		double[] vectorA = a.getDescriptor(type).getValues();
-		double[] vectorB = b.getDescriptor(type).getValues();
+		Descriptor vectorA = a.getDescriptor(type);
+		Descriptor vectorB = b.getDescriptor(type);
 
-		double enumerator = Utils.scalarProduct(vectorA, vectorB, weights);
-		double denominator = Utils.norm(vectorA, weights)
-				* Utils.norm(vectorB, weights);
+		double enumerator = MetricUtility.scalarProduct(vectorA, vectorB,
+				weights);
+		double denominator = Math.sqrt(MetricUtility.scalarProduct(vectorA,
+				vectorA, weights))
+				* Math.sqrt(MetricUtility.scalarProduct(vectorB, vectorB,
+						weights));
 
 		if (denominator == 0)
 			result = 0;
@@ -94,8 +100,18 @@ public class WeightedCosine implements Metric {
 	 * @param type
 	 *            The descriptor type used.
 	 */
-	public void initializeWeights(ImageContainer query, DescriptorType type) {
+	public synchronized void initializeWeights(ImageContainer query,
+			DescriptorType type) {
 		this.weights = MetricUtility.initializeWeights(query, type);
 	}
 
+	/**
+	 * Initializes the weights with the first image the metric is used with,
+	 * only once if many threads use the metric.
+	 */
+	private synchronized void initialize(ImageContainer a, DescriptorType type) {
+		if (weights == null)
+			initializeWeights(a, type);
+	}
+
 }
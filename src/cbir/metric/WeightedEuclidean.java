@@ -42,14 +42,18 @@ import cbir.image.ImageContainer;
 import cbir.interfaces.Metric;
 
 /**
- * Implements the weighted euclidean metric.
+ * Implements the weighted euclidean metric. The weights which are not given
+ * are initialized by the first distance, one instance can be used by many
+ * threads.
  * 
  * @author Chris Wendler
  * 
  */
 public class WeightedEuclidean implements Metric {
 	/** The weights used. */
-	private double weights[] = null;
+	private volatile double weights[] = null;
+	/** Counts the changes of the weights. */
+	private volatile int version = 0;
 
 	/**
 	 * Constructor.
@@ -81,10 +85,7 @@ public class WeightedEuclidean implements Metric {
 	public double distance(ImageContainer a, ImageContainer b,
 			DescriptorType type) {
 		if (weights == null)
-			if (type == DescriptorType.MERGED)
-				initializeWeights(a, type);
-			else
-				initializeWeights(a.getDescriptor(type).getValues().length);
+			initialize(a, type);
 		return distance(a.getDescriptor(type), b.getDescriptor(type));
 	}
 
@@ -98,16 +99,12 @@ public class WeightedEuclidean implements Metric {
 	 * @return the distance between image a and image b.
 	 */
 	public double distance(Descriptor a, Descriptor b) {
-		double dist = 0;
-		if (weights == null)
-			initializeWeights(a.getValues().length);
-
-		for (int i = 0; i < weights.length; i++)
-			dist += Math.pow(a.getValues()[i] - b.getValues()[i], 2)
-					* weights[i];
-
-		dist = Math.sqrt(dist);
-		return dist;
+		double[] weights = this.weights;
+		if (weights == null) {
+			initializeWeights(a.size());
+			weights = this.weights;
+		}
+		return Math.sqrt(MetricUtility.squaredDistance(a, b, weights));
 	}
 
 	/**
@@ -116,11 +113,13 @@ public class WeightedEuclidean implements Metric {
 	 * @param length
 	 *            The length of the weight array.
 	 */
-	public void initializeWeights(int length) {
+	public synchronized void initializeWeights(int length) {
 		if (weights == null) {
-			weights = new double[length];
+			double[] weights = new double[length];
 			for (int i = 0; i < weights.length; i++)
 				weights[i] = 1.d;
+			this.weights = weights;
+			version++;
 		}
 	}
 
@@ -134,12 +133,50 @@ public class WeightedEuclidean implements Metric {
 	 * @param type
 	 *            The descriptor type used.
 	 */
-	public void initializeWeights(ImageContainer query, DescriptorType type) {
+	public synchronized void initializeWeights(ImageContainer query,
+			DescriptorType type) {
 		this.weights = MetricUtility.initializeWeights(query, type);
+		version++;
 	}
 
+	/**
+	 * Initializes the weights which are not set yet with the first image the
+	 * metric is used with, only once if many threads use the metric.
+	 */
+	private synchronized void initialize(ImageContainer a, DescriptorType type) {
+		if (weights != null)
+			return;
+		if (type == DescriptorType.MERGED)
+			initializeWeights(a, type);
+		else
+			initializeWeights(a.getDescriptor(type).size());
+	}
+
+	/**
+	 * @return the weights, they must not be changed (see setWeights).
+	 */
 	public double[] getWeights() {
 		return weights;
 	}
 
+	/**
+	 * Replaces the weights.
+	 * 
+	 * @param weights
+	 *            the new weights.
+	 */
+	public synchronized void setWeights(double[] weights) {
+		this.weights = weights;
+		version++;
+	}
+
+	/**
+	 * @return a number which changes whenever the weights are set, distances
+	 *         computed in advance (e.g. see PivotDistances) are valid as long
+	 *         as it does not change.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.reader;
+
+import java.io.ObjectStreamException;
+
+import cbir.image.Descriptor;
+import cbir.image.DescriptorType;
+
+/**
+ * A descriptor whose values are not kept in memory but served by a
+ * {@link TieredDescriptorStore} from a memory-mapped file.
+ * 
+ * getValues() returns a copy of the values, metrics and indexes read them with
+ * get(i). The archive is never written: setValues() moves the descriptor back
+ * to the heap, from then on it behaves like an ordinary descriptor (e.g. after
+ * the normalization or a query update of a merged view containing it). When
+ * an image is copied (serialized), its cold descriptors become ordinary
+ * descriptors.
+ * 
+ * @author Matej Stanic
+ * 
+ */
+public class ColdDescriptor extends Descriptor {
+	private static final long serialVersionUID = 1L;
+	/** The store serving the values. */
+	private final transient TieredDescriptorStore store;
+	/** The number of the record in the store. */
+	private final int record;
+
+	/**
+	 * Constructor, used by the store.
+	 */
+	ColdDescriptor(TieredDescriptorStore store, DescriptorType type,
+			int record, double maxValue) {
+		super(type, null, maxValue);
+		this.store = store;
+		this.record = record;
+	}
+
+	@Override
+	public double[] getValues() {
+		double[] values = super.getValues();
+		if (values != null)
+			return values;
+		values = new double[size()];
+		store.readValues(record, values);
+		return values;
+	}
+
+	/**
+	 * Keeps the values on the heap, the store is not used any more.
+	 */
+	@Override
+	public void setValues(double[] values) {
+		if (values.length != store.getDimension())
+			throw new IllegalArgumentException("expected "
+					+ store.getDimension() + " values instead of "
+					+ values.length);
+		super.setValues(values);
+	}
+
+	@Override
+	public int size() {
+		return store.getDimension();
+	}
+
+	@Override
+	public double get(int i) {
+		double[] values = super.getValues();
+		if (values != null)
+			return values[i];
+		return store.get(record, i);
+	}
+
+	@Override
+	public boolean hasArray() {
+		return super.getValues() != null;
+	}
+
+	/**
+	 * Serializes an ordinary descriptor with the same values instead.
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		return new Descriptor(getType(), getValues(), getMaxValue());
+	}
+
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.reader;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import cbir.image.Descriptor;
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+
+/**
+ * An archive file that holds the descriptors of one type for all images of a
+ * database, so that they do not have to be read from one small file per image.
+ * 
+ * The archive consists of a header (magic number, version, descriptor type,
+ * number of images, dimension and the offset of the records), the filenames
+ * of the images and fixed size records (maximum value and values of the
+ * descriptor). The records are read from a memory map of the file.
+ * 
+ * The archive can be created with the main method from a descriptor XML file,
+ * e.g. "DescriptorArchive corel.xml COLOR_HISTO corel.color.histo.cda" reads the
+ * color histograms of all images with the FireReader and packs them.
+ * 
+ * @author Chris Wendler
+ */
+public class DescriptorArchive implements Closeable {
+	/** Magic number at the beginning of every archive ("CBDA"). */
+	public static final int MAGIC = 0x43424441;
+	/** Version of the archive format. */
+	public static final int VERSION = 1;
+	/** Maximum size of a mapped window of records. */
+	private static final long WINDOW_SIZE = Integer.MAX_VALUE;
+
+	/** The archive file. */
+	private final RandomAccessFile file;
+	/** The descriptor type of the archive. */
+	private final DescriptorType type;
+	/** The filenames of the images in the order of the records. */
+	private final String[] filenames;
+	/** The number of every filename. */
+	private final HashMap<String, Integer> index;
+	/** The number of values of every descriptor. */
+	private final int dimension;
+	/** The size of a record in bytes. */
+	private final int stride;
+	/** The number of records per mapped window. */
+	private final int recordsPerWindow;
+	/** The mapped windows of records. */
+	private final MappedByteBuffer[] windows;
+
+	/**
+	 * Opens an archive and reads its filenames.
+	 * 
+	 * @param archive
+	 *            The archive file.
+	 * @throws IOException
+	 *             if the file cannot be read or is no archive.
+	 */
+	public DescriptorArchive(File archive) throws IOException {
+		file = new RandomAccessFile(archive, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(channel.size(), 1024));
+			if (header.remaining() < 8 || header.getInt() != MAGIC)
+				throw new IOException("not a descriptor archive: " + archive);
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("unsupported archive version " + version);
+			byte[] name = new byte[header.getShort()];
+			header.get(name);
+			type = DescriptorType.valueOf(new String(name,
+					StandardCharsets.UTF_8));
+			int count = header.getInt();
+			dimension = header.getInt();
+			long recordOffset = header.getLong();
+			stride = 8 * (dimension + 1);
+
+			// filename index
+			long indexOffset = header.position();
+			ByteBuffer names = channel.map(FileChannel.MapMode.READ_ONLY,
+					indexOffset, recordOffset - indexOffset);
+			filenames = new String[count];
+			index = new HashMap<String, Integer>(count * 2);
+			byte[] buffer = new byte[256];
+			for (int i = 0; i < count; i++) {
+				int length = names.getInt();
+				if (length > buffer.length)
+					buffer = new byte[length];
+				names.get(buffer, 0, length);
+				filenames[i] = new String(buffer, 0, length,
+						StandardCharsets.UTF_8);
+				index.put(filenames[i], i);
+			}
+
+			// records
+			if (recordOffset + (long) count * stride > channel.size())
+				throw new IOException("truncated descriptor archive: "
+						+ archive);
+			recordsPerWindow = (int) Math.max(1, WINDOW_SIZE / stride);
+			windows = new MappedByteBuffer[(count + recordsPerWindow - 1)
+					/ recordsPerWindow];
+			for (int w = 0; w < windows.length; w++) {
+				long start = recordOffset + (long) w * recordsPerWindow
+						* stride;
+				int records = Math.min(recordsPerWindow, count - w
+						* recordsPerWindow);
+				windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						(long) records * stride);
+			}
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the descriptors of the given type of all images into an archive.
+	 * All descriptors must have the same dimension.
+	 * 
+	 * @param images
+	 *            The images, their order is the order of the records.
+	 * @param type
+	 *            The descriptor type which is packed.
+	 * @param archive
+	 *            The archive file that is written.
+	 * @throws IOException
+	 */
+	public static void pack(List<ImageContainer> images, DescriptorType type,
+			File archive) throws IOException {
+		byte[][] names = new byte[images.size()][];
+		int dimension = -1, i = 0;
+		long recordOffset = 4 + 4 + 2 + type.name().length() + 4 + 4 + 8;
+		for (ImageContainer image : images) {
+			Descriptor descriptor = image.getDescriptor(type);
+			if (descriptor == null)
+				throw new IllegalArgumentException("no " + type
+						+ " descriptor for " + image.getFilename());
+			if (dimension < 0)
+				dimension = descriptor.getValues().length;
+			else if (dimension != descriptor.getValues().length)
+				throw new IllegalArgumentException(
+						"descriptors of different dimensions");
+			names[i] = image.getFilename().getBytes(StandardCharsets.UTF_8);
+			recordOffset += 4 + names[i].length;
+			i++;
+		}
+		// align the records
+		int padding = (int) ((8 - recordOffset % 8) % 8);
+		recordOffset += padding;
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(archive), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeShort(type.name().length());
+			out.writeBytes(type.name());
+			out.writeInt(images.size());
+			out.writeInt(Math.max(dimension, 0));
+			out.writeLong(recordOffset);
+			for (byte[] name : names) {
+				out.writeInt(name.length);
+				out.write(name);
+			}
+			for (int p = 0; p < padding; p++)
+				out.writeByte(0);
+			for (ImageContainer image : images) {
+				Descriptor descriptor = image.getDescriptor(type);
+				out.writeDouble(descriptor.getMaxValue());
+				for (double value : descriptor.getValues())
+					out.writeDouble(value);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the descriptor of a record.
+	 * 
+	 * @param number
+	 *            The number of the record.
+	 * @return a new descriptor.
+	 */
+	public Descriptor getDescriptor(int number) {
+		ByteBuffer window = windows[number / recordsPerWindow];
+		int position = (number % recordsPerWindow) * stride;
+		double maxValue = window.getDouble(position);
+		double[] values = new double[dimension];
+		for (int i = 0; i < dimension; i++)
+			values[i] = window.getDouble(position + 8 * (i + 1));
+		return new Descriptor(type, values, maxValue);
+	}
+
+	/**
+	 * Reads the values of consecutive records into an array, without creating
+	 * descriptors.
+	 * 
+	 * @param number
+	 *            The number of the first record.
+	 * @param records
+	 *            The number of records to read.
+	 * @param target
+	 *            The array receiving the values, record after record.
+	 */
+	public void readValues(int number, int records, double[] target) {
+		int t = 0;
+		for (int r = number; r < number + records; r++) {
+			ByteBuffer window = windows[r / recordsPerWindow];
+			int position = (r % recordsPerWindow) * stride + 8;
+			for (int i = 0; i < dimension; i++, position += 8)
+				target[t++] = window.getDouble(position);
+		}
+	}
+
+	/**
+	 * Reads the descriptor of an image.
+	 * 
+	 * @param filename
+	 *            The filename of the image.
+	 * @return a new descriptor, null if the image is not in the archive.
+	 */
+	public Descriptor getDescriptor(String filename) {
+		Integer number = index.get(filename);
+		return number == null ? null : getDescriptor(number);
+	}
+
+	/**
+	 * Adds the descriptors of the archive to the according images, like
+	 * FireReader.readDescriptors does for the per-image files.
+	 * 
+	 * @param images
+	 *            a list of images that can be generated using the XMLReader.
+	 * @throws IOException
+	 *             when an image is not contained in the archive.
+	 */
+	public void readDescriptors(List<ImageContainer> images) throws IOException {
+		for (ImageContainer curr : images) {
+			Descriptor descriptor = getDescriptor(curr.getFilename());
+			if (descriptor == null)
+				throw new IOException("no " + type + " descriptor for "
+						+ curr.getFilename() + " in archive");
+			curr.addDescriptor(descriptor);
+		}
+	}
+
+	/**
+	 * @return the number of records.
+	 */
+	public int size() {
+		return filenames.length;
+	}
+
+	public String getFilename(int number) {
+		return filenames[number];
+	}
+
+	public DescriptorType getType() {
+		return type;
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Packs the descriptors of all images of a descriptor XML file. Usage:
+	 * DescriptorArchive <descriptor XML file> <descriptor type> <archive>.
+	 * Descriptors that are not contained in the XML file are read with the
+	 * FireReader.
+	 */
+	public static void main(String[] args) {
+		if (args.length != 3) {
+			System.out
+					.println("usage: DescriptorArchive <descriptor XML file> <descriptor type> <archive>");
+			return;
+		}
+		try {
+			DescriptorType type = DescriptorType.valueOf(args[1]);
+			List<ImageContainer> database = new XMLReader()
+					.parseXMLFile(new File(args[0]));
+			if (!database.isEmpty()
+					&& database.get(0).getDescriptor(type) == null)
+				new FireReader().readDescriptors(database, type);
+			pack(database, type, new File(args[2]));
+			System.out.println("packed " + database.size() + " descriptors");
+		} catch (XMLStreamException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
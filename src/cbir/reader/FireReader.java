@@ -36,15 +36,22 @@
  */
 package cbir.reader;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import cbir.Utils;
 import cbir.image.Descriptor;
@@ -60,15 +67,30 @@ import cbir.image.ImageContainer;
  * arbitrary amount of double values separated by spaces. * The descriptors have
  * to be located in the image directory.
  * 
+ * The files are read by several threads, every thread reuses its inflater and
+ * buffers for all of its files and parses the numbers directly into a
+ * primitive array.
+ * 
  * @author Chris Wendler
  */
 
 public class FireReader {
+	/** Magic number of gzip files. */
+	private static final int GZIP_MAGIC = 0x8b1f;
+	/** Flags of the gzip header. */
+	private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+	/** Exact powers of ten for the fast number parsing. */
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
 
 	/**
 	 * Reads all the corresponding descriptors from a specific type into the
-	 * according image data-structure. note: the descriptors have to be located
-	 * in the same directory as the images.
+	 * according image data-structure using all available processors. note: the
+	 * descriptors have to be located in the same directory as the images.
 	 * 
 	 * @param images
 	 *            a list of images that can be generated using the XMLReader.
@@ -80,10 +102,64 @@ public class FireReader {
 	 */
 	public void readDescriptors(List<ImageContainer> images, DescriptorType type)
 			throws IOException {
-		String suffix = Utils.getSuffix(type);
-		for (ImageContainer curr : images)
-			curr.addDescriptor(readDescriptorFile(curr.getFilename() + suffix,
-					type));
+		readDescriptors(images, type, Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	/**
+	 * Reads all the corresponding descriptors from a specific type into the
+	 * according image data-structure. note: the descriptors have to be located
+	 * in the same directory as the images.
+	 * 
+	 * @param images
+	 *            a list of images that can be generated using the XMLReader.
+	 * @param type
+	 *            the type determines where the descriptors get stored in the
+	 *            image data-structure.
+	 * @param threads
+	 *            number of threads reading files.
+	 * @throws IOException
+	 *             when a descriptor file is not found.
+	 */
+	public void readDescriptors(List<ImageContainer> images,
+			final DescriptorType type, int threads) throws IOException {
+		final String suffix = Utils.getSuffix(type);
+		final ImageContainer[] array = images
+				.toArray(new ImageContainer[images.size()]);
+		final AtomicInteger next = new AtomicInteger();
+		threads = Math.max(1, Math.min(threads, array.length));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < threads; t++)
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						// every thread keeps its parser for all of its files
+						HistogramParser parser = new HistogramParser();
+						try {
+							int i;
+							while ((i = next.getAndIncrement()) < array.length)
+								array[i].addDescriptor(parser.read(
+										array[i].getFilename() + suffix, type));
+						} finally {
+							parser.close();
+						}
+						return null;
+					}
+				}));
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
 	}
 
 	/**
@@ -99,37 +175,230 @@ public class FireReader {
 	 */
 	public Descriptor readDescriptorFile(String file, DescriptorType type)
 			throws IOException {
-		List<Double> values = null;
-		double maxValue = 1;
-		boolean readMaxValue = false;
-
-		InputStream fileStream = new FileInputStream(file);
-		InputStream gzipStream = new GZIPInputStream(fileStream);
-		Reader decoder = new InputStreamReader(gzipStream);
-		BufferedReader reader = new BufferedReader(decoder);
-		String line;
-		/* parse color histo */
-		while ((line = reader.readLine()) != null) {
-			String[] tokens = line.split("\\s+");
-			for (String token : tokens) {
-				if (token.equals("counter")) {
+		HistogramParser parser = new HistogramParser();
+		try {
+			return parser.read(file, type);
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Reads gzipped histogram files. A parser is used by one thread only and
+	 * reuses its inflater and buffers for all files.
+	 */
+	private static class HistogramParser {
+		private final Inflater inflater = new Inflater(true);
+		private final CRC32 crc = new CRC32();
+		/** The compressed file. */
+		private byte[] input = new byte[1 << 16];
+		/** The uncompressed text. */
+		private byte[] text = new byte[1 << 18];
+		/** The parsed values. */
+		private double[] values = new double[1024];
+
+		/**
+		 * Reads a single descriptor from a given file.
+		 */
+		Descriptor read(String file, DescriptorType type) throws IOException {
+			int inputLength = readFile(file);
+			int textLength = inflate(file, inputLength);
+			return parse(file, textLength, type);
+		}
+
+		void close() {
+			inflater.end();
+		}
+
+		/**
+		 * Reads the whole file into the input buffer.
+		 */
+		private int readFile(String file) throws IOException {
+			InputStream in = new FileInputStream(file);
+			try {
+				int length = 0, n;
+				while ((n = in.read(input, length, input.length - length)) >= 0) {
+					length += n;
+					if (length == input.length)
+						input = Arrays.copyOf(input, input.length * 2);
+				}
+				return length;
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * Decompresses the gzip members of the input buffer into the text
+		 * buffer.
+		 */
+		private int inflate(String file, int inputLength) throws IOException {
+			int position = 0, textLength = 0;
+			do {
+				// header
+				if (inputLength - position < 10
+						|| readShort(position) != GZIP_MAGIC
+						|| input[position + 2] != 8)
+					throw new IOException("not in gzip format: " + file);
+				int flags = input[position + 3] & 0xff;
+				position += 10;
+				if ((flags & FEXTRA) != 0)
+					position += 2 + readShort(position);
+				if ((flags & FNAME) != 0)
+					position = skipZeroTerminated(position, inputLength);
+				if ((flags & FCOMMENT) != 0)
+					position = skipZeroTerminated(position, inputLength);
+				if ((flags & FHCRC) != 0)
+					position += 2;
+				if (position > inputLength)
+					throw new IOException("corrupt gzip header: " + file);
+
+				// compressed data
+				int start = textLength;
+				inflater.reset();
+				inflater.setInput(input, position, inputLength - position);
+				try {
+					while (!inflater.finished()) {
+						if (textLength == text.length)
+							text = Arrays.copyOf(text, text.length * 2);
+						int n = inflater.inflate(text, textLength, text.length
+								- textLength);
+						if (n == 0 && (inflater.needsInput()
+								|| inflater.needsDictionary()))
+							throw new IOException("unexpected end of file: "
+									+ file);
+						textLength += n;
+					}
+				} catch (DataFormatException e) {
+					throw new IOException(file + ": " + e.getMessage());
+				}
+				position = inputLength - inflater.getRemaining();
+
+				// trailer
+				if (inputLength - position < 8)
+					throw new IOException("unexpected end of file: " + file);
+				crc.reset();
+				crc.update(text, start, textLength - start);
+				if (readInt(position) != (int) crc.getValue()
+						|| readInt(position + 4) != textLength - start)
+					throw new IOException("corrupt gzip trailer: " + file);
+				position += 8;
+			} while (inputLength - position >= 2
+					&& readShort(position) == GZIP_MAGIC);
+			return textLength;
+		}
+
+		private int readShort(int position) {
+			return (input[position] & 0xff) | (input[position + 1] & 0xff) << 8;
+		}
+
+		private int readInt(int position) {
+			return readShort(position) | readShort(position + 2) << 16;
+		}
+
+		private int skipZeroTerminated(int position, int inputLength) {
+			while (position < inputLength && input[position] != 0)
+				position++;
+			return position + 1;
+		}
+
+		/**
+		 * Parses the tokens of the text buffer. The token after "counter" is
+		 * the maximum value, all numbers after "data" are the values.
+		 */
+		private Descriptor parse(String file, int textLength,
+				DescriptorType type) throws IOException {
+			int count = -1;
+			double maxValue = 1;
+			boolean readMaxValue = false;
+			int position = 0;
+			while (true) {
+				while (position < textLength && isWhitespace(text[position]))
+					position++;
+				if (position == textLength)
+					break;
+				int start = position;
+				while (position < textLength && !isWhitespace(text[position]))
+					position++;
+
+				if (matches(start, position, "counter")) {
 					readMaxValue = true;
 					continue;
 				}
-				if (token.equals("data")) {
-					values = new LinkedList<Double>();
+				if (matches(start, position, "data")) {
+					count = 0;
 					continue;
 				}
+				if (!readMaxValue && count < 0)
+					continue;
+				double value = parseNumber(start, position);
 				if (readMaxValue) {
 					readMaxValue = false;
-					maxValue = Double.parseDouble(token);
+					maxValue = value;
+				}
+				if (count >= 0) {
+					if (count == values.length)
+						values = Arrays.copyOf(values, values.length * 2);
+					values[count++] = value;
 				}
-				if (values != null)
-					values.add(Double.parseDouble(token));
 			}
+			if (count < 0)
+				throw new IOException("no data in " + file);
+			return new Descriptor(type, Arrays.copyOf(values, count), maxValue);
+		}
+
+		private static boolean isWhitespace(byte b) {
+			return b == ' ' || b == '\n' || b == '\r' || b == '\t'
+					|| b == '\f' || b == 0x0b;
 		}
-		reader.close();
 
-		return new Descriptor(type, Utils.doubleFromDouble(values), maxValue);
+		private boolean matches(int start, int end, String word) {
+			if (end - start != word.length())
+				return false;
+			for (int i = 0; i < word.length(); i++)
+				if (text[start + i] != word.charAt(i))
+					return false;
+			return true;
+		}
+
+		/**
+		 * Parses a number. Plain decimal numbers with up to 15 significant
+		 * digits are computed directly, which is exact since both the digits
+		 * and the power of ten are exact doubles; all other numbers are
+		 * handed to Double.parseDouble.
+		 */
+		private double parseNumber(int start, int end) {
+			int position = start;
+			boolean negative = false;
+			if (text[position] == '-' || text[position] == '+') {
+				negative = text[position] == '-';
+				position++;
+			}
+			long mantissa = 0;
+			int digits = 0, significant = 0, fraction = 0;
+			boolean point = false;
+			for (; position < end; position++) {
+				byte b = text[position];
+				if (b >= '0' && b <= '9') {
+					digits++;
+					if (mantissa != 0 || b != '0')
+						significant++;
+					mantissa = mantissa * 10 + (b - '0');
+					if (point)
+						fraction++;
+				} else if (b == '.' && !point) {
+					point = true;
+				} else {
+					break;
+				}
+			}
+			if (position == end && digits > 0 && significant <= 15
+					&& fraction < POWERS_OF_TEN.length) {
+				double value = mantissa / POWERS_OF_TEN[fraction];
+				return negative ? -value : value;
+			}
+			return Double.parseDouble(new String(text, start, end - start,
+					StandardCharsets.US_ASCII));
+		}
 	}
 }
@@ -0,0 +1,498 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.reader;
+
+import ind.kdtree.KDNode;
+import ind.kdtree.KDTree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import rf.Utility.Normalization;
+import rf.Utility.Statistics;
+import cbir.image.DescriptorType;
+import cbir.image.ImageCodec;
+import cbir.image.ImageContainer;
+import cbir.image.LabelDictionary;
+import cbir.image.PathDictionary;
+import cbir.interfaces.Index;
+import cbir.interfaces.Metric;
+import cbir.retriever.RetrieverDistanceBased;
+
+/**
+ * A snapshot of a fully prepared database: the (normalized) descriptors of
+ * all types, filenames, labels, the statistics of the normalization and the
+ * k-d-trees of a retriever. A snapshot is written once after the database has
+ * been read and prepared, later runs read it with a memory map instead of
+ * parsing, labelling, normalizing and indexing again.
+ * 
+ * The images are stored in the binary encoding of ImageCodec. Index
+ * structures other than k-d-trees are not stored and have to be built again.
+ * 
+ * The header records the files the database was read from (canonical path,
+ * length and modification time) and the descriptor types the images have,
+ * so that a snapshot of another database is not used by mistake (see
+ * matches).
+ * 
+ * @author Chris Wendler
+ */
+public class Snapshot {
+	/** Magic number at the beginning of every snapshot ("CBSS"). */
+	public static final int MAGIC = 0x43425353;
+	/** Version of the snapshot format. */
+	public static final int VERSION = 4;
+	/** Size of the windows that are mapped while reading. */
+	private static final long WINDOW_SIZE = 1L << 28;
+
+	/** The images of the database. */
+	private final List<ImageContainer> database;
+	/** The files the database was read from, see describe. */
+	private final List<String> sources;
+	/** The descriptor types the images have. */
+	private final EnumSet<DescriptorType> loaded;
+	/** The statistics of the normalization, null if not normalized. */
+	private final Statistics statistics;
+	/** The k-d-trees of the database. */
+	private final HashMap<DescriptorType, KDTree> indexes;
+
+	private Snapshot(List<ImageContainer> database, List<String> sources,
+			EnumSet<DescriptorType> loaded, Statistics statistics,
+			HashMap<DescriptorType, KDTree> indexes) {
+		this.database = database;
+		this.sources = sources;
+		this.loaded = loaded;
+		this.statistics = statistics;
+		this.indexes = indexes;
+	}
+
+	/**
+	 * Writes a snapshot.
+	 * 
+	 * @param file
+	 *            The snapshot file.
+	 * @param database
+	 *            The prepared images.
+	 * @param statistics
+	 *            The statistics of the normalization, may be null.
+	 * @param retriever
+	 *            The retriever whose k-d-trees are stored, may be null.
+	 * @param sources
+	 *            The files the database was read from (e.g. the XML file and
+	 *            a descriptor archive).
+	 * @throws IOException
+	 */
+	public static void write(File file, List<ImageContainer> database,
+			Statistics statistics, RetrieverDistanceBased retriever,
+			File... sources) throws IOException {
+		if (database.isEmpty())
+			throw new IllegalArgumentException("empty database");
+		List<String> descriptions = describe(sources);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(database.size());
+
+			// source identity
+			out.writeInt(descriptions.size());
+			for (String description : descriptions)
+				writeString(out, description);
+			EnumSet<DescriptorType> loaded = loadedTypes(database);
+			out.writeInt(loaded.size());
+			for (DescriptorType type : loaded)
+				writeString(out, type.name());
+
+			// images
+			for (ImageContainer image : database) {
+				byte[] bytes = ImageCodec.encode(image);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			// normalization
+			out.writeBoolean(statistics != null);
+			if (statistics != null) {
+				writeString(out, statistics.getNormalization().name());
+				writeString(out, statistics.getType().name());
+				writeDoubles(out, statistics.getMeans());
+				writeDoubles(out, statistics.getDeviations());
+			}
+
+			// k-d-trees
+			List<KDTree> trees = new ArrayList<KDTree>();
+			if (retriever != null)
+				for (DescriptorType type : DescriptorType.values()) {
+					Index index = retriever.getIndex(type);
+					if (index instanceof KDTree)
+						trees.add((KDTree) index);
+				}
+			out.writeInt(trees.size());
+			if (!trees.isEmpty()) {
+				IdentityHashMap<ImageContainer, Integer> ids = new IdentityHashMap<ImageContainer, Integer>();
+				for (ImageContainer image : database)
+					ids.put(image, ids.size());
+				for (KDTree tree : trees) {
+					writeString(out, tree.getType().name());
+					out.writeInt(tree.getK());
+					writeNode(out, tree.getRoot(), ids);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Describes every file by its canonical path, length and modification
+	 * time, a file which changed gets another description.
+	 */
+	private static List<String> describe(File... files) throws IOException {
+		List<String> descriptions = new ArrayList<String>();
+		if (files != null)
+			for (File file : files)
+				if (file != null)
+					descriptions.add(file.getCanonicalPath() + "|"
+							+ file.length() + "|" + file.lastModified());
+		return descriptions;
+	}
+
+	/**
+	 * @return the descriptor types every image of the database has.
+	 */
+	private static EnumSet<DescriptorType> loadedTypes(
+			List<ImageContainer> database) {
+		EnumSet<DescriptorType> loaded = EnumSet.allOf(DescriptorType.class);
+		for (ImageContainer image : database)
+			loaded.retainAll(image.getDescriptors().keySet());
+		return loaded;
+	}
+
+	/**
+	 * Writes a k-d-tree in preorder, -1 denotes missing children.
+	 */
+	private static void writeNode(DataOutputStream out, KDNode node,
+			IdentityHashMap<ImageContainer, Integer> ids) throws IOException {
+		if (node == null) {
+			out.writeInt(-1);
+			return;
+		}
+		Integer id = ids.get(node.getImage());
+		if (id == null)
+			throw new IllegalArgumentException(
+					"k-d-tree contains an image which is not in the database");
+		out.writeInt(id);
+		writeNode(out, node.getLesser(), ids);
+		writeNode(out, node.getGreater(), ids);
+	}
+
+	private static void writeString(DataOutputStream out, String string)
+			throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values)
+			throws IOException {
+		out.writeInt(values == null ? -1 : values.length);
+		if (values != null)
+			for (double value : values)
+				out.writeDouble(value);
+	}
+
+	/**
+	 * Reads a snapshot.
+	 * 
+	 * @param file
+	 *            The snapshot file.
+	 * @return the snapshot.
+	 * @throws IOException
+	 *             if the file cannot be read or is no snapshot.
+	 */
+	public static Snapshot read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			MappedInput in = new MappedInput(raf.getChannel());
+			if (in.getInt() != MAGIC)
+				throw new IOException("not a snapshot: " + file);
+			int version = in.getInt();
+			if (version != VERSION)
+				throw new IOException("unsupported snapshot version " + version);
+			int count = in.getInt();
+
+			// source identity
+			List<String> sources = new ArrayList<String>();
+			for (int i = in.getInt(); i > 0; i--)
+				sources.add(in.getString());
+			EnumSet<DescriptorType> loaded = EnumSet
+					.noneOf(DescriptorType.class);
+			for (int i = in.getInt(); i > 0; i--)
+				loaded.add(DescriptorType.valueOf(in.getString()));
+
+			// images
+			List<ImageContainer> database = new ArrayList<ImageContainer>(
+					count);
+			PathDictionary paths = new PathDictionary();
+			LabelDictionary labels = new LabelDictionary();
+			for (int i = 0; i < count; i++) {
+				ImageContainer image = ImageCodec.read(in.getBuffer(in
+						.getInt()), null);
+				image.setPaths(paths);
+				if (image.getLabel() != null)
+					image.setLabel(labels, image.getLabel());
+				database.add(image);
+			}
+			paths.trimToSize();
+
+			// normalization
+			Statistics statistics = null;
+			if (in.getBoolean()) {
+				Normalization normalization = Normalization.valueOf(in
+						.getString());
+				DescriptorType type = DescriptorType.valueOf(in.getString());
+				double[] means = in.getDoubleArray();
+				double[] deviations = in.getDoubleArray();
+				statistics = new Statistics(normalization, type, means,
+						deviations);
+			}
+
+			// k-d-trees
+			HashMap<DescriptorType, KDTree> indexes = new HashMap<DescriptorType, KDTree>();
+			for (int i = in.getInt(); i > 0; i--) {
+				DescriptorType type = DescriptorType.valueOf(in.getString());
+				int k = in.getInt();
+				KDNode root = readNode(in, database, k, 0, type);
+				indexes.put(type, new KDTree(root, k, type));
+			}
+			return new Snapshot(database, sources, loaded, statistics,
+					indexes);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static KDNode readNode(MappedInput in,
+			List<ImageContainer> database, int k, int depth,
+			DescriptorType type) throws IOException {
+		int id = in.getInt();
+		if (id < 0)
+			return null;
+		KDNode node = new KDNode(k, depth, database.get(id), type);
+		KDNode lesser = readNode(in, database, k, depth + 1, type);
+		if (lesser != null) {
+			node.setLesser(lesser);
+			lesser.setParent(node);
+		}
+		KDNode greater = readNode(in, database, k, depth + 1, type);
+		if (greater != null) {
+			node.setGreater(greater);
+			greater.setParent(node);
+		}
+		return node;
+	}
+
+	/**
+	 * Creates a retriever for the database of the snapshot which uses the
+	 * stored k-d-trees.
+	 * 
+	 * @param metric
+	 *            The metric of the retriever.
+	 * @return the retriever.
+	 */
+	public RetrieverDistanceBased createRetriever(Metric metric) {
+		RetrieverDistanceBased retriever = new RetrieverDistanceBased(
+				database, metric);
+		for (Map.Entry<DescriptorType, KDTree> entry : indexes.entrySet())
+			retriever.setIndex(entry.getKey(), entry.getValue());
+		return retriever;
+	}
+
+	public List<ImageContainer> getDatabase() {
+		return database;
+	}
+
+	public Statistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return the descriptor types every image of the snapshot has.
+	 */
+	public EnumSet<DescriptorType> getLoadedTypes() {
+		return EnumSet.copyOf(loaded);
+	}
+
+	/**
+	 * Checks whether the database of the snapshot was prepared with the given
+	 * settings: read from the same, unchanged files, with at least the given
+	 * descriptor types, normalized with the normalization for the type and
+	 * indexed for exactly the given types.
+	 * 
+	 * @param type
+	 *            The descriptor type of interest.
+	 * @param normalization
+	 *            The normalization of the descriptor type of interest.
+	 * @param indexed
+	 *            The types which are indexed, may be null if none are.
+	 * @param required
+	 *            The descriptor types the images have to have.
+	 * @param sources
+	 *            The files the database is read from.
+	 * @return true if the snapshot can be used for these settings.
+	 * @throws IOException
+	 *             if the canonical path of a source cannot be determined.
+	 */
+	public boolean matches(DescriptorType type, Normalization normalization,
+			DescriptorType[] indexed, DescriptorType[] required,
+			File... sources) throws IOException {
+		if (!this.sources.equals(describe(sources)))
+			return false;
+		if (required != null && !loaded.containsAll(Arrays.asList(required)))
+			return false;
+		if (statistics == null || statistics.getType() != type
+				|| statistics.getNormalization() != normalization)
+			return false;
+		HashSet<DescriptorType> types = new HashSet<DescriptorType>();
+		if (indexed != null)
+			types.addAll(Arrays.asList(indexed));
+		return indexes.keySet().equals(types);
+	}
+
+	/**
+	 * @return the stored k-d-tree for the given type, null if there is none.
+	 */
+	public KDTree getIndex(DescriptorType type) {
+		return indexes.get(type);
+	}
+
+	/**
+	 * Reads a file sequentially through a window that is mapped into memory
+	 * and moved forward when it is exhausted.
+	 */
+	private static class MappedInput {
+		private final FileChannel channel;
+		/** Position of the current window in the file. */
+		private long offset = 0;
+		private ByteBuffer window = ByteBuffer.allocate(0);
+
+		MappedInput(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		private void require(int bytes) throws IOException {
+			if (window.remaining() >= bytes)
+				return;
+			offset += window.position();
+			long length = Math.min(WINDOW_SIZE, channel.size() - offset);
+			if (length < bytes)
+				throw new EOFException("truncated snapshot");
+			window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		}
+
+		int getInt() throws IOException {
+			require(4);
+			return window.getInt();
+		}
+
+		double getDouble() throws IOException {
+			require(8);
+			return window.getDouble();
+		}
+
+		boolean getBoolean() throws IOException {
+			require(1);
+			return window.get() != 0;
+		}
+
+		/** @return the next bytes as a buffer of their own. */
+		ByteBuffer getBuffer(int length) throws IOException {
+			require(length);
+			ByteBuffer buffer = window.slice();
+			buffer.limit(length);
+			window.position(window.position() + length);
+			return buffer;
+		}
+
+		String getString() throws IOException {
+			int length = getInt();
+			require(length);
+			byte[] bytes = new byte[length];
+			window.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		double[] getDoubleArray() throws IOException {
+			int length = getInt();
+			if (length < 0)
+				return null;
+			double[] values = new double[length];
+			getDoubles(values);
+			return values;
+		}
+
+		/** Fills the array, in bulk as far as the window allows. */
+		void getDoubles(double[] values) throws IOException {
+			int done = 0;
+			while (done < values.length) {
+				require(8);
+				DoubleBuffer doubles = window.asDoubleBuffer();
+				int n = Math.min(doubles.remaining(), values.length - done);
+				doubles.get(values, done, n);
+				window.position(window.position() + 8 * n);
+				done += n;
+			}
+		}
+	}
+}
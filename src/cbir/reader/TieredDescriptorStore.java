@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.reader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import cbir.image.Descriptor;
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+
+/**
+ * The cold tier of the descriptor storage. Descriptor types that are used
+ * frequently stay in memory, rarely used ones (e.g. COLOR_HISTO if the
+ * queries only use CEDD) are moved into a {@link DescriptorArchive} file
+ * and replaced by {@link ColdDescriptor}s.
+ * 
+ * The values are loaded in pages of PAGE_RECORDS records from the memory map of
+ * the archive when they are used. At most "pageBudget" pages stay in memory,
+ * if the budget is exhausted a page that was not used recently is evicted
+ * (clock algorithm, an approximation of least recently used).
+ * 
+ * @author Matej Stanic
+ * 
+ */
+public class TieredDescriptorStore implements Closeable {
+	/** Number of records per page. */
+	public static final int PAGE_RECORDS = 256;
+
+	/** The archive containing the values. */
+	private final DescriptorArchive archive;
+	/** The number of values of every descriptor. */
+	private final int dimension;
+	/** The loaded pages, null if a page is not in memory. */
+	private final AtomicReferenceArray<double[]> pages;
+	/** Marks pages that were used since the clock hand passed them. */
+	private final boolean[] referenced;
+	/** Numbers of the pages in memory, the clock runs over them. */
+	private final int[] resident;
+	/** Number of pages in memory. */
+	private int residentCount = 0;
+	/** Position of the clock hand in "resident". */
+	private int hand = 0;
+	/** Number of pages loaded so far. */
+	private long loads = 0;
+
+	/**
+	 * Opens a store for an archive.
+	 * 
+	 * @param file
+	 *            The archive file.
+	 * @param pageBudget
+	 *            The maximum number of pages in memory.
+	 * @throws IOException
+	 */
+	public TieredDescriptorStore(File file, int pageBudget) throws IOException {
+		archive = new DescriptorArchive(file);
+		dimension = archive.getDimension();
+		int pageCount = (archive.size() + PAGE_RECORDS - 1) / PAGE_RECORDS;
+		pages = new AtomicReferenceArray<double[]>(pageCount);
+		referenced = new boolean[pageCount];
+		resident = new int[Math.max(1, Math.min(pageBudget, pageCount))];
+	}
+
+	/**
+	 * Moves the descriptors of the given type of all images into the cold
+	 * tier: they are written into an archive and replaced by cold descriptors.
+	 * If another descriptor type of an image is the same object (e.g. MERGED
+	 * if there is only one descriptor) or a merged view contains it, it is
+	 * replaced as well.
+	 * Descriptors which are written later move back to the heap (see
+	 * ColdDescriptor).
+	 * 
+	 * @param database
+	 *            The images.
+	 * @param type
+	 *            The descriptor type to move.
+	 * @param file
+	 *            The archive file that is written.
+	 * @param pageBudget
+	 *            The maximum number of pages in memory.
+	 * @return the store serving the moved descriptors.
+	 * @throws IOException
+	 */
+	public static TieredDescriptorStore demote(List<ImageContainer> database,
+			DescriptorType type, File file, int pageBudget) throws IOException {
+		DescriptorArchive.pack(database, type, file);
+		TieredDescriptorStore store = new TieredDescriptorStore(file,
+				pageBudget);
+		int record = 0;
+		for (ImageContainer image : database) {
+			Descriptor descriptor = image.getDescriptor(type);
+			ColdDescriptor cold = new ColdDescriptor(store, type, record++,
+					descriptor.getMaxValue());
+			image.replaceDescriptor(descriptor, cold);
+		}
+		return store;
+	}
+
+	/**
+	 * @return a value of a record.
+	 */
+	double get(int record, int i) {
+		if (i < 0 || i >= dimension)
+			throw new IndexOutOfBoundsException(Integer.toString(i));
+		double[] page = page(record / PAGE_RECORDS);
+		return page[(record % PAGE_RECORDS) * dimension + i];
+	}
+
+	/**
+	 * Copies the values of a record into the given array.
+	 */
+	void readValues(int record, double[] target) {
+		double[] page = page(record / PAGE_RECORDS);
+		System.arraycopy(page, (record % PAGE_RECORDS) * dimension, target, 0,
+				dimension);
+	}
+
+	/**
+	 * Returns a page, loads it if it is not in memory. Reading a page in
+	 * memory needs no lock, an evicted page stays valid for threads that are
+	 * still using it.
+	 */
+	private double[] page(int number) {
+		double[] page = pages.get(number);
+		if (page == null)
+			page = load(number);
+		referenced[number] = true;
+		return page;
+	}
+
+	private synchronized double[] load(int number) {
+		double[] page = pages.get(number);
+		if (page != null)
+			return page;
+		int first = number * PAGE_RECORDS;
+		int records = Math.min(PAGE_RECORDS, archive.size() - first);
+		page = new double[records * dimension];
+		archive.readValues(first, records, page);
+
+		int slot;
+		if (residentCount < resident.length) {
+			slot = residentCount++;
+		} else {
+			// clock: evict the first page that was not used since the last
+			// round
+			while (referenced[resident[hand]]) {
+				referenced[resident[hand]] = false;
+				hand = (hand + 1) % resident.length;
+			}
+			slot = hand;
+			pages.set(resident[slot], null);
+			hand = (hand + 1) % resident.length;
+		}
+		resident[slot] = number;
+		pages.set(number, page);
+		loads++;
+		return page;
+	}
+
+	public DescriptorType getType() {
+		return archive.getType();
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	/**
+	 * @return the number of pages in memory.
+	 */
+	public synchronized int getResidentPages() {
+		return residentCount;
+	}
+
+	/**
+	 * @return the number of pages loaded so far.
+	 */
+	public synchronized long getLoads() {
+		return loads;
+	}
+
+	@Override
+	public void close() throws IOException {
+		archive.close();
+	}
+
+}
@@ -36,15 +36,30 @@
  */
 package cbir.reader;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.util.Iterator;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.dom4j.Document;
-import org.dom4j.DocumentException;
-import org.dom4j.Element;
-import org.dom4j.io.SAXReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import cbir.image.Descriptor;
 import cbir.image.DescriptorType;
@@ -54,13 +69,41 @@ import cbir.image.ImageContainer;
  * A class which reads the name of an image and its descriptors from a given XML
  * file extracted by the tool img(rummager).
  * 
+ * The file is read with a streaming parser, so the memory needed does not
+ * depend on the size of the file. Every image is handed to an
+ * {@link ImageHandler} as soon as its element is closed.
+ * 
+ * Big files can also be read in parallel: the file is split into byte ranges
+ * at image element boundaries, the ranges are mapped into memory and parsed by
+ * several threads, and the results are merged in the order of the file.
+ * 
  * @author Matej Stanic
  * 
  */
 public class XMLReader {
+	/** Number of chunks per thread for the parallel mode (load balancing). */
+	private static final int CHUNKS_PER_THREAD = 4;
+	/** Maximum size of a chunk, it has to fit into one mapped buffer. */
+	private static final long MAX_CHUNK_SIZE = 1L << 30;
+	/** Size of the windows mapped when searching image boundaries. */
+	private static final int SEARCH_WINDOW = 1 << 20;
+
 	/** The image list that will be returned. */
 	private final List<ImageContainer> imageList = new LinkedList<ImageContainer>();
 
+	/**
+	 * Receives the images of an XML file in the order of the file.
+	 */
+	public interface ImageHandler {
+		/**
+		 * Called for every image of the file.
+		 * 
+		 * @param image
+		 *            The image with its descriptors.
+		 */
+		void image(ImageContainer image);
+	}
+
 	/**
 	 * Parses image information from a given XML file and returns a list of
 	 * images with their descriptors (only MPEG_EHD and CEDD extracted by
@@ -69,91 +112,417 @@ public class XMLReader {
 	 * @param file
 	 *            The given img(rummager) XML file.
 	 * @return a list of images with their descriptors.
-	 * @throws DocumentException
+	 * @throws XMLStreamException
+	 * @throws IOException
 	 */
 	public List<ImageContainer> parseXMLFile(File file)
-			throws DocumentException {
-
-		// Read XML file
-		SAXReader reader = new SAXReader();
-		Document document = reader.read(file);
-
-		// Get first Element
-		Element rootElement = document.getRootElement();
-
-		// Iterate + get image paths + descriptors
-
-		// outer loop (Info, Data)
-		for (@SuppressWarnings("rawtypes")
-		Iterator iter = rootElement.elementIterator(); iter.hasNext();) {
-			Element element = (Element) iter.next();
-
-			// inner loop (Image Data)
-			for (@SuppressWarnings("rawtypes")
-			Iterator innerIter = element.elementIterator(); innerIter.hasNext();) {
-				Element innerElement = (Element) innerIter.next();
-
-				// data loop (Filename, EHD, RGB)
-				for (@SuppressWarnings("rawtypes")
-				Iterator dataIter = innerElement.elementIterator(); dataIter
-						.hasNext();) {
-
-					// get Filename
-					Element dataElement = (Element) dataIter.next();
-					String filename = new String(dataElement.getText());
-					List<Descriptor> descriptors = new LinkedList<Descriptor>();
-					while (dataIter.hasNext()) {
-						// get descriptors
-						dataElement = (Element) dataIter.next();
-						if (dataElement.getName().equals("EHD")
-								|| dataElement.getName().equals("CEDD"))
-							descriptors.add(readDescriptor(dataElement));
-					}
+			throws XMLStreamException, IOException {
+		parseXMLFile(file, new ImageHandler() {
+			@Override
+			public void image(ImageContainer image) {
+				imageList.add(image);
+			}
+		});
+		return imageList;
+	}
 
-					// construct Image and save in list
-					ImageContainer image = new ImageContainer(filename,
-							descriptors.toArray(new Descriptor[descriptors
-									.size()]));
-					imageList.add(image);
+	/**
+	 * Parses image information from a given XML file and hands every image to
+	 * the given handler instead of collecting them in a list.
+	 * 
+	 * @param file
+	 *            The given img(rummager) XML file.
+	 * @param handler
+	 *            Receives the images.
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	public void parseXMLFile(File file, ImageHandler handler)
+			throws XMLStreamException, IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file),
+				1 << 16);
+		try {
+			parse(in, handler);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parses image information from a stream. The document is structured as
+	 * root element, sections (Info, Data), image elements and data elements,
+	 * the first data element of an image is its filename, followed by the
+	 * descriptors.
+	 * 
+	 * @param in
+	 *            The XML document.
+	 * @param handler
+	 *            Receives the images.
+	 * @throws XMLStreamException
+	 */
+	public void parse(InputStream in, ImageHandler handler)
+			throws XMLStreamException {
+		parse(createFactory().createXMLStreamReader(in), handler, 3);
+	}
+
+	private static XMLInputFactory createFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Parses the images of a document whose image elements are at the given
+	 * depth (the root element has depth 1).
+	 */
+	private void parse(XMLStreamReader reader, ImageHandler handler,
+			int imageDepth) throws XMLStreamException {
+		final int dataDepth = imageDepth + 1;
+		try {
+			int depth = 0;
+			// state of the current image element
+			String filename = null;
+			List<Descriptor> descriptors = new LinkedList<Descriptor>();
+			// text of the current data element
+			StringBuilder text = new StringBuilder();
+			String dataName = null;
+
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					if (depth == dataDepth) {
+						dataName = reader.getLocalName();
+						text.setLength(0);
+					}
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+					if (depth == dataDepth)
+						text.append(reader.getTextCharacters(),
+								reader.getTextStart(), reader.getTextLength());
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					if (depth == dataDepth) {
+						if (filename == null) {
+							// get Filename
+							filename = text.toString();
+						} else if (dataName.equals("EHD")
+								|| dataName.equals("CEDD")) {
+							// get descriptors
+							descriptors.add(readDescriptor(dataName, text));
+						}
+					} else if (depth == imageDepth && filename != null) {
+						// construct Image
+						handler.image(new ImageContainer(filename, descriptors
+								.toArray(new Descriptor[descriptors.size()])));
+						filename = null;
+						descriptors.clear();
+					}
+					depth--;
+					break;
+				default:
+					break;
 				}
 			}
+		} finally {
+			reader.close();
 		}
-		return imageList;
-
 	}
 
 	public List<ImageContainer> getImageList() {
 		return imageList;
 	}
 
-	public Descriptor readDescriptor(Element dataElement) {
-		String descriptorType = dataElement.getName();
+	/**
+	 * Reads a descriptor from the text of a data element.
+	 * 
+	 * @param descriptorType
+	 *            Name of the data element ("EHD" or "CEDD").
+	 * @param text
+	 *            The text of the element, one digit per value, surrounding
+	 *            whitespace is skipped.
+	 * @return the descriptor, null if the element is no known descriptor.
+	 */
+	public Descriptor readDescriptor(String descriptorType, CharSequence text) {
 		Descriptor descriptor = null;
 
 		// EHD
 		if (descriptorType.equals("EHD")) {
-
-			char[] ehdChars = new char[80];
-			dataElement.getTextTrim().getChars(0, 80, ehdChars, 0);
-			double[] ehdValues = new double[ehdChars.length];
-			for (int i = 0; i < ehdChars.length; i++)
-				ehdValues[i] = Integer
-						.parseInt(Character.toString(ehdChars[i]));
-			descriptor = new Descriptor(DescriptorType.MPEG_EHD, ehdValues, 9.d);
+			descriptor = new Descriptor(DescriptorType.MPEG_EHD,
+					readDigits(text, 80), 9.d);
 
 			// CEDD
 		} else if (descriptorType.equals("CEDD")) {
-			char[] ceddChars = new char[144];
-			dataElement.getTextTrim().getChars(0, 144, ceddChars, 0);
-			double[] ceddValues = new double[ceddChars.length];
-			for (int i = 0; i < ceddChars.length; i++)
-				ceddValues[i] = Integer.parseInt(Character
-						.toString(ceddChars[i]));
-			descriptor = new Descriptor(DescriptorType.CEDD, ceddValues, 9.d);
+			descriptor = new Descriptor(DescriptorType.CEDD, readDigits(text,
+					144), 9.d);
 		}
 
 		return descriptor;
 
 	}
 
+	/**
+	 * Decodes "length" single digit values following the leading whitespace of
+	 * the text.
+	 */
+	private static double[] readDigits(CharSequence text, int length) {
+		int start = 0;
+		while (start < text.length()
+				&& Character.isWhitespace(text.charAt(start)))
+			start++;
+		if (text.length() - start < length)
+			throw new IllegalArgumentException("descriptor has less than "
+					+ length + " values");
+		double[] values = new double[length];
+		for (int i = 0; i < length; i++) {
+			int digit = text.charAt(start + i) - '0';
+			if (digit < 0 || digit > 9)
+				throw new IllegalArgumentException("no digit: "
+						+ text.charAt(start + i));
+			values[i] = digit;
+		}
+		return values;
+	}
+
+	/**
+	 * Parses image information from a given XML file using several threads
+	 * and returns a list of images with their descriptors in the order of the
+	 * file. Unlike the sequential parser, only the image elements are read
+	 * (other sections like Info are skipped), and all images have to lie in
+	 * the same section.
+	 * 
+	 * @param file
+	 *            The given img(rummager) XML file.
+	 * @param threads
+	 *            Number of threads used for parsing.
+	 * @return a list of images with their descriptors.
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	public List<ImageContainer> parseXMLFile(File file, int threads)
+			throws XMLStreamException, IOException {
+		// find the name of the image elements and the encoding of the file
+		String imageElement = null;
+		final String encoding;
+		InputStream in = new BufferedInputStream(new FileInputStream(file),
+				1 << 16);
+		try {
+			XMLStreamReader reader = createFactory().createXMLStreamReader(in);
+			try {
+				List<String> path = new ArrayList<String>();
+				while (reader.hasNext() && imageElement == null) {
+					int event = reader.next();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						String name = reader.getLocalName();
+						if (path.size() == 3
+								&& (name.equals("EHD") || name.equals("CEDD")))
+							imageElement = path.get(2);
+						path.add(name);
+					} else if (event == XMLStreamConstants.END_ELEMENT) {
+						path.remove(path.size() - 1);
+					}
+				}
+				encoding = reader.getEncoding() != null ? reader.getEncoding()
+						: "UTF-8";
+			} finally {
+				reader.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (imageElement == null)
+			return imageList;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				threads));
+		try {
+			final FileChannel channel = raf.getChannel();
+			Charset charset = Charset.forName(encoding);
+			byte[] open = ("<" + imageElement).getBytes(charset);
+			byte[] close = ("</" + imageElement).getBytes(charset);
+
+			// byte range of all image elements
+			long begin = findTag(channel, open, 0);
+			long last = findLastTag(channel, close);
+			if (begin < 0 || last < 0)
+				return imageList;
+			long end = indexOf(channel, new byte[] { '>' }, last) + 1;
+
+			// split at image boundaries
+			int chunks = (int) Math.max((long) threads * CHUNKS_PER_THREAD,
+					(end - begin + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+			List<Long> bounds = new ArrayList<Long>();
+			bounds.add(begin);
+			for (int i = 1; i < chunks; i++) {
+				long target = Math.max(begin + (end - begin) * i / chunks,
+						bounds.get(bounds.size() - 1) + 1);
+				long bound = findTag(channel, open, target);
+				if (bound < 0 || bound >= end)
+					break;
+				if (bound > bounds.get(bounds.size() - 1))
+					bounds.add(bound);
+			}
+			bounds.add(end);
+
+			final byte[] prefix = ("<?xml version=\"1.0\" encoding=\""
+					+ encoding + "\"?><chunk>").getBytes(charset);
+			final byte[] suffix = "</chunk>".getBytes(charset);
+			List<Future<List<ImageContainer>>> futures = new ArrayList<Future<List<ImageContainer>>>();
+			for (int i = 0; i + 1 < bounds.size(); i++) {
+				final long from = bounds.get(i);
+				final long to = bounds.get(i + 1);
+				futures.add(executor.submit(new Callable<List<ImageContainer>>() {
+					@Override
+					public List<ImageContainer> call() throws Exception {
+						ByteBuffer buffer = channel.map(
+								FileChannel.MapMode.READ_ONLY, from, to - from);
+						InputStream chunk = new SequenceInputStream(
+								new ByteArrayInputStream(prefix),
+								new SequenceInputStream(new ByteBufferInputStream(
+										buffer), new ByteArrayInputStream(suffix)));
+						final List<ImageContainer> images = new ArrayList<ImageContainer>();
+						parse(createFactory().createXMLStreamReader(chunk,
+								encoding), new ImageHandler() {
+							@Override
+							public void image(ImageContainer image) {
+								images.add(image);
+							}
+						}, 2);
+						return images;
+					}
+				}));
+			}
+
+			// merge in the order of the file
+			for (Future<List<ImageContainer>> future : futures)
+				imageList.addAll(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof XMLStreamException)
+				throw (XMLStreamException) cause;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException(cause);
+		} finally {
+			executor.shutdownNow();
+			raf.close();
+		}
+		return imageList;
+	}
+
+	/**
+	 * Finds the first start tag of an element beginning at or after the given
+	 * position, -1 if there is none.
+	 */
+	private static long findTag(FileChannel channel, byte[] open, long from)
+			throws IOException {
+		long position = indexOf(channel, open, from);
+		while (position >= 0 && !endsName(channel, position + open.length))
+			position = indexOf(channel, open, position + 1);
+		return position;
+	}
+
+	/**
+	 * Finds the last end tag of an element, -1 if there is none.
+	 */
+	private static long findLastTag(FileChannel channel, byte[] close)
+			throws IOException {
+		long position = lastIndexOf(channel, close, channel.size());
+		while (position >= 0 && !endsName(channel, position + close.length))
+			position = lastIndexOf(channel, close, position + close.length - 1);
+		return position;
+	}
+
+	/**
+	 * Checks whether the byte at the given position ends an element name, so
+	 * that e.g. "<Image" does not match "<ImageDescriptors".
+	 */
+	private static boolean endsName(FileChannel channel, long position)
+			throws IOException {
+		if (position >= channel.size())
+			return false;
+		byte b = channel.map(FileChannel.MapMode.READ_ONLY, position, 1)
+				.get(0);
+		return b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\n'
+				|| b == '\r';
+	}
+
+	/**
+	 * Finds the first occurrence of a byte pattern at or after the given
+	 * position, -1 if there is none.
+	 */
+	private static long indexOf(FileChannel channel, byte[] pattern, long from)
+			throws IOException {
+		long size = channel.size();
+		for (long start = from; start + pattern.length <= size; start += SEARCH_WINDOW) {
+			int length = (int) Math.min(SEARCH_WINDOW + pattern.length - 1,
+					size - start);
+			ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+					start, length);
+			for (int i = 0; i + pattern.length <= length; i++)
+				if (matches(window, i, pattern))
+					return start + i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Finds the last occurrence of a byte pattern ending before the given
+	 * position, -1 if there is none.
+	 */
+	private static long lastIndexOf(FileChannel channel, byte[] pattern,
+			long before) throws IOException {
+		for (long end = before; end >= pattern.length; end -= SEARCH_WINDOW) {
+			long start = Math.max(0, end - SEARCH_WINDOW - pattern.length + 1);
+			int length = (int) (end - start);
+			ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+					start, length);
+			for (int i = length - pattern.length; i >= 0; i--)
+				if (matches(window, i, pattern))
+					return start + i;
+		}
+		return -1;
+	}
+
+	private static boolean matches(ByteBuffer buffer, int offset,
+			byte[] pattern) {
+		for (int j = 0; j < pattern.length; j++)
+			if (buffer.get(offset + j) != pattern[j])
+				return false;
+		return true;
+	}
+
+	/**
+	 * An input stream reading the remaining bytes of a buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+	}
+
 }
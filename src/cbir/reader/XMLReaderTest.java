@@ -37,10 +37,11 @@
 package cbir.reader;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 
-import org.dom4j.DocumentException;
+import javax.xml.stream.XMLStreamException;
 
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
@@ -61,7 +62,7 @@ public class XMLReaderTest {
 		File file = new File("C:\\MBOX\\signed_all\\corel_ehd_cedd.xml");
 		try {
 			reader.parseXMLFile(file);
-		} catch (DocumentException e) {
+		} catch (XMLStreamException | IOException e) {
 			e.printStackTrace();
 		}
 		// get list of parsed images
@@ -77,12 +77,19 @@ public class ComparatorDistanceBased implements Comparator<ImageContainer> {
 
 	@Override
 	public int compare(ImageContainer a, ImageContainer b) {
-		double distA = metric.distance(a, image, type);
-		double distB = metric.distance(b, image, type);
+		double distA = distance(a);
+		double distB = distance(b);
 		if (distA < distB)
 			return -1;
 		if (distA > distB)
 			return 1;
 		return 0;
 	}
+
+	/**
+	 * @return the distance of an image to the image of the comparator.
+	 */
+	public double distance(ImageContainer a) {
+		return metric.distance(a, image, type);
+	}
 }
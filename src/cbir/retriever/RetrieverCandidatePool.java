@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.retriever;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import cbir.image.Descriptor;
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+import cbir.image.QuerySession;
+import cbir.interfaces.Metric;
+import cbir.interfaces.Retriever;
+
+/**
+ * A Retriever which re-ranks a pool of candidates instead of searching the
+ * whole database in every RF iteration. The first search of a query retrieves
+ * the "poolSize" best images with the underlying retriever (using its index
+ * structures), the following searches only rank the pool. When the query has
+ * moved farther than the drift threshold from where the pool was retrieved
+ * (e.g. by query shifting), the pool is retrieved again.
+ * 
+ * The pool of a query session is kept in the session, for other queries the
+ * pool of the last query is kept. Searches for more images than the pool holds
+ * go to the underlying retriever.
+ * 
+ * @author Chris Wendler
+ * 
+ */
+public class RetrieverCandidatePool implements Retriever {
+	/** The retriever the pools are retrieved with. **/
+	private final Retriever retriever;
+	/** The distance function used to rank the pool. **/
+	private final Metric metric;
+	/** The number of images in a pool. **/
+	private final int poolSize;
+	/** Distance the query may move before the pool is retrieved again. **/
+	private final double driftThreshold;
+	/** The pool of the last query which is not a query session. **/
+	private volatile Pool last = null;
+
+	/**
+	 * @param retriever
+	 *            the retriever the pools are retrieved with.
+	 * @param metric
+	 *            determines which distance function is used to rank the
+	 *            pool.
+	 * @param poolSize
+	 *            the number of images in a pool.
+	 * @param driftThreshold
+	 *            the distance (measured with the metric) the query may move
+	 *            before the pool is retrieved again.
+	 */
+	public RetrieverCandidatePool(Retriever retriever, Metric metric,
+			int poolSize, double driftThreshold) {
+		this.retriever = retriever;
+		this.metric = metric;
+		this.poolSize = poolSize;
+		this.driftThreshold = driftThreshold;
+	}
+
+	/**
+	 * Returns the pool of candidates of a query, it is retrieved if there is
+	 * none yet or the query has moved too far.
+	 * 
+	 * @param query
+	 *            the query image.
+	 * @param type
+	 *            the descriptor type of interest.
+	 * @return the candidates.
+	 */
+	public List<ImageContainer> getPool(ImageContainer query,
+			DescriptorType type) {
+		Pool pool = currentPool(query, type);
+		if (pool != null)
+			return pool.images;
+		synchronized (this) {
+			pool = currentPool(query, type);
+			if (pool == null) {
+				pool = new Pool(query, type, retriever.search(query, type,
+						poolSize));
+				if (query instanceof QuerySession)
+					((QuerySession) query).cacheState(this, pool,
+							pool.estimateSize());
+				else
+					last = pool;
+			}
+			return pool.images;
+		}
+	}
+
+	/**
+	 * @return the kept pool if it can be used for the query, null otherwise.
+	 */
+	private Pool currentPool(ImageContainer query, DescriptorType type) {
+		Pool pool;
+		if (query instanceof QuerySession)
+			pool = (Pool) ((QuerySession) query).getState(this);
+		else
+			pool = last;
+		if (pool == null || pool.query != query || pool.type != type)
+			return null;
+		if (metric.distance(query, pool.anchor, type) > driftThreshold)
+			return null;
+		return pool;
+	}
+
+	/**
+	 * Performs a search for the given query image and returns the
+	 * "resultAmount" best results of the pool. If the pool holds fewer images
+	 * the list is filled up with null, like the other retrievers do.
+	 * 
+	 * @param query
+	 *            the query image that is used.
+	 * @param resultAmount
+	 *            the desired amount of results.
+	 * @return the best "resultAmount" results in a list.
+	 */
+	@Override
+	public List<ImageContainer> search(ImageContainer query,
+			DescriptorType type, int resultAmount) {
+		return search(query, type, resultAmount, metric);
+	}
+
+	/**
+	 * Performs a search with another metric (e.g. with the weights learned by
+	 * an RF method), the pool is ranked with this metric.
+	 * 
+	 * @param query
+	 *            the query image that is used.
+	 * @param resultAmount
+	 *            the desired amount of results.
+	 * @param metric
+	 *            the metric used for this search.
+	 * @return the best "resultAmount" results in a list.
+	 */
+	public List<ImageContainer> search(final ImageContainer query,
+			final DescriptorType type, int resultAmount, Metric metric) {
+		if (resultAmount > poolSize) {
+			if (retriever instanceof RetrieverDistanceBased)
+				return ((RetrieverDistanceBased) retriever).search(query, type,
+						resultAmount, metric);
+			return retriever.search(query, type, resultAmount);
+		}
+		List<ImageContainer> pool = getPool(query, type);
+		final double[] distances = new double[pool.size()];
+		Integer[] order = new Integer[pool.size()];
+		int i = 0;
+		for (ImageContainer curr : pool) {
+			distances[i] = metric.distance(query, curr, type);
+			order[i] = i;
+			i++;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(distances[a], distances[b]);
+			}
+		});
+		List<ImageContainer> results = new ArrayList<ImageContainer>(
+				resultAmount);
+		for (i = 0; i < resultAmount; i++)
+			results.add(i < order.length ? pool.get(order[i]) : null);
+		return results;
+	}
+
+	/**
+	 * Prints a list of images to a given file in html format.
+	 * 
+	 * @param results
+	 *            the list of images to be printed.
+	 * @param type
+	 *            the descriptortype is also printed.
+	 * @param filename
+	 *            the filename of the target file.
+	 */
+	@Override
+	public void printResultListHTML(List<ImageContainer> results,
+			DescriptorType type, String filename) {
+		retriever.printResultListHTML(results, type, filename);
+	}
+
+	/**
+	 * Queries for an image with a specific name.
+	 * 
+	 * @param name
+	 *            the filename of the image.
+	 * @return The image object with the given filename or null if not found.
+	 */
+	@Override
+	public ImageContainer getImageByName(String name) {
+		return retriever.getImageByName(name);
+	}
+
+	/**
+	 * Queries for an image with a specific id.
+	 * 
+	 * @param id
+	 *            the id of the image.
+	 * @return The image object with the given id or null if not found.
+	 */
+	@Override
+	public ImageContainer getImage(int id) {
+		return retriever.getImage(id);
+	}
+
+	/**
+	 * A getter for the database.
+	 * 
+	 * @return a list of Images that describe the whole database (not only the
+	 *         pool).
+	 */
+	@Override
+	public List<ImageContainer> getDatabase() {
+		return retriever.getDatabase();
+	}
+
+	public Retriever getRetriever() {
+		return retriever;
+	}
+
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * The candidates of a query together with the query descriptor they were
+	 * retrieved for.
+	 */
+	private static final class Pool {
+		/** The query the pool belongs to. **/
+		private final ImageContainer query;
+		/** The descriptor type the pool was retrieved for. **/
+		private final DescriptorType type;
+		/** A copy of the query descriptor the pool was retrieved for. **/
+		private final ImageContainer anchor;
+		/** The candidates. **/
+		private final List<ImageContainer> images;
+
+		Pool(ImageContainer query, DescriptorType type,
+				List<ImageContainer> images) {
+			this.query = query;
+			this.type = type;
+			Descriptor descriptor = query.getDescriptor(type);
+			double[] values = descriptor.getValues();
+			if (descriptor.hasArray())
+				values = values.clone();
+			this.anchor = new ImageContainer(query.getFilename(),
+					new Descriptor(type, values, descriptor.getMaxValue()));
+			this.images = new ArrayList<ImageContainer>(images);
+			// the underlying retriever pads small databases with null
+			this.images.removeAll(Collections.singleton(null));
+		}
+
+		/**
+		 * @return the estimated size of the pool in bytes.
+		 */
+		long estimateSize() {
+			return 8L * images.size()
+					+ 8L * anchor.getDescriptor(type).size();
+		}
+	}
+
+}
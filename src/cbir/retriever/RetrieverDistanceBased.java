@@ -38,23 +38,36 @@ package cbir.retriever;
 
 import ind.kdtree.KDTree;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
 import cbir.image.DescriptorType;
+import cbir.image.ImageCatalog;
 import cbir.image.ImageContainer;
+import cbir.image.QuerySession;
+import cbir.interfaces.Index;
 import cbir.interfaces.Metric;
 import cbir.interfaces.Retriever;
+import cbir.interfaces.SeededIndex;
+import cbir.metric.MetricUtility;
 
 /**
  * A Retriever that uses a distance function for the ranking.
  * 
+ * A search can be warm started with some images (e.g. the results of the
+ * previous RF iteration) which bound the distance of the results, the index
+ * structures and the linear scan skip images farther away. The searches of a
+ * query session are warm started with the results of its previous search.
+ * 
  * @author Chris Wendler
  * 
  */
 public class RetrieverDistanceBased implements Retriever {
 	/** The image database defined by a list of images. **/
 	private List<ImageContainer> database;
+	/** The ids of the images of the database. **/
+	private ImageCatalog catalog;
 	/**
 	 * The distance function that is used to compare the images in the database.
 	 **/
@@ -63,7 +76,7 @@ public class RetrieverDistanceBased implements Retriever {
 	 * This hashmap contains the indexstructures for their corresponding
 	 * descriptortypes.
 	 **/
-	private final HashMap<DescriptorType, KDTree> trees;
+	private final HashMap<DescriptorType, Index> trees;
 
 	/**
 	 * @param database
@@ -77,15 +90,40 @@ public class RetrieverDistanceBased implements Retriever {
 	public RetrieverDistanceBased(List<ImageContainer> database, Metric metric,
 			DescriptorType... types) {
 		this.database = database;
+		this.catalog = new ImageCatalog(database);
 		this.metric = metric;
-		this.trees = new HashMap<DescriptorType, KDTree>();
+		this.trees = new HashMap<DescriptorType, Index>();
 		for (DescriptorType type : types) {
 			trees.put(type,
 					new KDTree(database, database.get(0).getDescriptor(type)
-							.getValues().length, type));
+							.size(), type));
 		}
 	}
 
+	/**
+	 * Uses the given index structure instead of a k-d-tree (or instead of a
+	 * linear scan) for all searches on the given descriptortype.
+	 * 
+	 * @param type
+	 *            the descriptortype the index was built for.
+	 * @param index
+	 *            the index structure, null removes the index for this type.
+	 */
+	public void setIndex(DescriptorType type, Index index) {
+		if (index == null)
+			trees.remove(type);
+		else
+			trees.put(type, index);
+	}
+
+	/**
+	 * @return the index structure used for the given descriptortype, null if
+	 *         a linear scan is used.
+	 */
+	public Index getIndex(DescriptorType type) {
+		return trees.get(type);
+	}
+
 	/**
 	 * Finds the "amount" nearest neighbors of the given image.
 	 * 
@@ -99,8 +137,19 @@ public class RetrieverDistanceBased implements Retriever {
 	 */
 	public List<ImageContainer> findNearestNeighbors(
 			final ImageContainer image, final DescriptorType type, int amount) {
+		return findNearestNeighbors(image, type, amount, metric, null);
+	}
+
+	/**
+	 * Finds the "amount" nearest neighbors of the given image with another
+	 * metric.
+	 */
+	private List<ImageContainer> findNearestNeighbors(
+			final ImageContainer image, final DescriptorType type, int amount,
+			Metric metric, List<ImageContainer> seed) {
 		return Utility.findNearestNeighbors(database, amount,
-				new ComparatorDistanceBased(image, metric, type));
+				new ComparatorDistanceBased(image, metric, type),
+				MetricUtility.seedBound(image, seed, amount, metric, type));
 	}
 
 	/**
@@ -116,11 +165,67 @@ public class RetrieverDistanceBased implements Retriever {
 	@Override
 	public List<ImageContainer> search(final ImageContainer query,
 			final DescriptorType type, int resultAmount) {
-		if (trees.containsKey(type))
-			return trees.get(type).nearestNeighborSearch(resultAmount, query,
-					metric, type);
+		return search(query, type, resultAmount, metric);
+	}
 
-		return findNearestNeighbors(query, type, resultAmount);
+	/**
+	 * Performs a search with another metric (e.g. with the weights learned by
+	 * an RF method), the index structures are used with this metric instead of
+	 * building a new retriever.
+	 * 
+	 * @param query
+	 *            the query image that is used.
+	 * @param resultAmount
+	 *            the desired amount of results.
+	 * @param metric
+	 *            the metric used for this search.
+	 * @return the best "resultAmount" results in a list.
+	 */
+	public List<ImageContainer> search(final ImageContainer query,
+			final DescriptorType type, int resultAmount, Metric metric) {
+		if (!(query instanceof QuerySession))
+			return search(query, type, resultAmount, metric, null);
+		QuerySession session = (QuerySession) query;
+		ImageContainer[] previous = (ImageContainer[]) session.getState(this);
+		List<ImageContainer> results = search(query, type, resultAmount,
+				metric, previous == null ? null : Arrays.asList(previous));
+		session.cacheState(this,
+				results.toArray(new ImageContainer[results.size()]),
+				8L * results.size());
+		return results;
+	}
+
+	/**
+	 * Performs a search warm started with some images, e.g. the results of
+	 * the previous RF iteration. The results are the same as without them,
+	 * but the images are compared with the query first and bound the distance
+	 * of the results, so the index structures can prune more of the database.
+	 * Without an index every distance is computed once anyway, the bound only
+	 * keeps images out of the heap of the linear scan.
+	 * 
+	 * @param query
+	 *            the query image that is used.
+	 * @param resultAmount
+	 *            the desired amount of results.
+	 * @param metric
+	 *            the metric used for this search.
+	 * @param seed
+	 *            images of the database which are probably close to the
+	 *            query, may be null.
+	 * @return the best "resultAmount" results in a list.
+	 */
+	public List<ImageContainer> search(final ImageContainer query,
+			final DescriptorType type, int resultAmount, Metric metric,
+			List<ImageContainer> seed) {
+		Index index = trees.get(type);
+		if (index instanceof SeededIndex)
+			return ((SeededIndex) index).nearestNeighborSearch(resultAmount,
+					query, metric, type, seed);
+		if (index != null)
+			return index.nearestNeighborSearch(resultAmount, query, metric,
+					type);
+
+		return findNearestNeighbors(query, type, resultAmount, metric, seed);
 	}
 
 	/**
@@ -148,7 +253,19 @@ public class RetrieverDistanceBased implements Retriever {
 	 */
 	@Override
 	public ImageContainer getImageByName(String name) {
-		return Utility.getImageByName(database, name);
+		return catalog.getImage(name);
+	}
+
+	/**
+	 * Queries for an image with a specific id.
+	 * 
+	 * @param id
+	 *            the id of the image.
+	 * @return The image object with the given id or null if not found.
+	 */
+	@Override
+	public ImageContainer getImage(int id) {
+		return catalog.getImage(id);
 	}
 
 	/**
@@ -163,6 +280,7 @@ public class RetrieverDistanceBased implements Retriever {
 
 	public void setDatabase(List<ImageContainer> database) {
 		this.database = database;
+		this.catalog = new ImageCatalog(database);
 	}
 
 	public void setMetric(Metric metric) {
@@ -36,11 +36,16 @@
  */
 package cbir.retriever;
 
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import cbir.image.DescriptorType;
+import cbir.image.ImageCatalog;
 import cbir.image.ImageContainer;
+import cbir.interfaces.BatchScore;
+import cbir.interfaces.BoundedScore;
 import cbir.interfaces.Retriever;
 import cbir.interfaces.Score;
 
@@ -49,6 +54,12 @@ import cbir.interfaces.Score;
  * function. NOTE: The score based retriever is not compatible with indexing,
  * since our index structure did not improve the results.
  * 
+ * Every image is scored once, the database is split into chunks which are
+ * scored in parallel (in one call for a BatchScore) and every chunk keeps its
+ * best images, the best images of the chunks are merged. If the score is a
+ * BoundedScore, only images whose upper bound can beat the worst of the best
+ * images of the chunk are scored.
+ * 
  * @author Chris Wendler
  * 
  */
@@ -56,8 +67,16 @@ import cbir.interfaces.Score;
 public class RetrieverScoreBased implements Retriever {
 	/** The image database defined by a list of images. **/
 	private List<ImageContainer> database;
+	/** The ids of the images of the database. **/
+	private ImageCatalog catalog;
 	/** The score function that is used to compare the images in the database. **/
 	private Score score;
+	/** Number of images scored by one task. **/
+	private static final int CHUNK_SIZE = 2048;
+	/** Number of images whose bounds are checked before they are scored. **/
+	private static final int BLOCK_SIZE = 64;
+	/** The threads scoring the chunks, shared by all retrievers. **/
+	private static final ForkJoinPool POOL = new ForkJoinPool();
 
 	/**
 	 * @param database
@@ -67,6 +86,7 @@ public class RetrieverScoreBased implements Retriever {
 	 */
 	public RetrieverScoreBased(List<ImageContainer> database, Score score) {
 		this.database = database;
+		this.catalog = new ImageCatalog(database);
 		this.score = score;
 	}
 
@@ -83,19 +103,224 @@ public class RetrieverScoreBased implements Retriever {
 	 */
 	public List<ImageContainer> findNearestNeighbors(
 			final ImageContainer image, final DescriptorType type, int amount) {
-		return Utility.findNearestNeighbors(database, amount,
-				new Comparator<ImageContainer>() {
-					@Override
-					public int compare(ImageContainer a, ImageContainer b) {
-						double scoreA = score.score(image, a, type);
-						double scoreB = score.score(image, b, type);
-						if (scoreA > scoreB)
-							return -1;
-						if (scoreA < scoreB)
-							return 1;
-						return 0;
+		return findNearestNeighbors(image, type, amount, database);
+	}
+
+	/**
+	 * Finds the "amount" nearest neighbors of the given image among some
+	 * candidates (e.g. a candidate pool) instead of the whole database.
+	 * 
+	 * @param image
+	 *            the query image.
+	 * @param type
+	 *            the descriptor type of interest.
+	 * @param amount
+	 *            the desired amount of nearest neighbors.
+	 * @param candidates
+	 *            the images which are ranked.
+	 * @return The list of the nearest neighbors.
+	 */
+	public List<ImageContainer> findNearestNeighbors(
+			final ImageContainer image, final DescriptorType type, int amount,
+			List<ImageContainer> candidates) {
+		ImageContainer[] images = candidates
+				.toArray(new ImageContainer[candidates.size()]);
+		BestImages best;
+		if (images.length > 0) {
+			// the state of the feedback round is computed before the threads
+			// start
+			if (score instanceof BatchScore)
+				((BatchScore) score).prepare(image, type);
+			ScoreTask task = new ScoreTask(image, images,
+					new double[images.length], 0, images.length, type, amount);
+			if (images.length <= CHUNK_SIZE)
+				best = task.compute();
+			else
+				best = POOL.invoke(task);
+		} else
+			best = new BestImages(0);
+		List<ImageContainer> results = best.toList(images);
+		while (results.size() < amount)
+			results.add(null);
+		return results;
+	}
+
+	/**
+	 * Scores a range of images and keeps the best ones, splits the range if it
+	 * is bigger than a chunk.
+	 */
+	private class ScoreTask extends RecursiveTask<BestImages> {
+		private static final long serialVersionUID = 1L;
+		private final ImageContainer query;
+		private final ImageContainer[] images;
+		private final double[] scores;
+		private final int from, to;
+		private final DescriptorType type;
+		private final int amount;
+
+		ScoreTask(ImageContainer query, ImageContainer[] images,
+				double[] scores, int from, int to, DescriptorType type,
+				int amount) {
+			this.query = query;
+			this.images = images;
+			this.scores = scores;
+			this.from = from;
+			this.to = to;
+			this.type = type;
+			this.amount = amount;
+		}
+
+		@Override
+		protected BestImages compute() {
+			if (to - from > CHUNK_SIZE) {
+				int middle = (from + to) >>> 1;
+				ScoreTask left = new ScoreTask(query, images, scores, from,
+						middle, type, amount);
+				left.fork();
+				BestImages best = new ScoreTask(query, images, scores, middle,
+						to, type, amount).compute();
+				best.addAll(left.join());
+				return best;
+			}
+			if (score instanceof BoundedScore
+					&& ((BoundedScore) score).upperBounds(query, images, from,
+							to, scores, type))
+				return computeBounded();
+			if (score instanceof BatchScore)
+				((BatchScore) score).score(query, images, from, to, scores,
+						type);
+			else
+				for (int i = from; i < to; i++)
+					scores[i] = score.score(query, images[i], type);
+			BestImages best = new BestImages(amount);
+			for (int i = from; i < to; i++)
+				best.add(scores[i], i);
+			return best;
+		}
+
+		/**
+		 * Scores the images of the range whose bounds (in the scores array)
+		 * can beat the worst of the best images, block by block.
+		 */
+		private BestImages computeBounded() {
+			BoundedScore bounded = (BoundedScore) score;
+			BestImages best = new BestImages(amount);
+			ImageContainer[] block = new ImageContainer[BLOCK_SIZE];
+			int[] indices = new int[BLOCK_SIZE];
+			double[] blockScores = new double[BLOCK_SIZE];
+			int i = from;
+			while (i < to) {
+				int end = Math.min(to, i + BLOCK_SIZE), count = 0;
+				for (; i < end; i++)
+					if (best.accepts(scores[i], i)) {
+						block[count] = images[i];
+						indices[count++] = i;
 					}
-				});
+				bounded.score(query, block, 0, count, blockScores, type);
+				for (int j = 0; j < count; j++)
+					best.add(blockScores[j], indices[j]);
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * Keeps the indices of the images with the highest scores, a heap with the
+	 * worst of them on top. Images with equal scores are ranked by their
+	 * position in the database.
+	 */
+	private static class BestImages {
+		private final double[] scores;
+		private final int[] indices;
+		private int size = 0;
+
+		BestImages(int amount) {
+			scores = new double[amount];
+			indices = new int[amount];
+		}
+
+		/**
+		 * @return true if image a is worse than image b.
+		 */
+		private static boolean worse(double scoreA, int indexA, double scoreB,
+				int indexB) {
+			int cmp = Double.compare(scoreA, scoreB);
+			return cmp < 0 || (cmp == 0 && indexA > indexB);
+		}
+
+		void add(double score, int index) {
+			if (size < scores.length) {
+				int i = size++;
+				while (i > 0) {
+					int parent = (i - 1) >>> 1;
+					if (!worse(score, index, scores[parent], indices[parent]))
+						break;
+					scores[i] = scores[parent];
+					indices[i] = indices[parent];
+					i = parent;
+				}
+				scores[i] = score;
+				indices[i] = index;
+			} else if (size > 0 && worse(scores[0], indices[0], score, index))
+				siftDown(score, index);
+		}
+
+		/**
+		 * Replaces the top of the heap.
+		 */
+		private void siftDown(double score, int index) {
+			int i = 0;
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size
+						&& worse(scores[child + 1], indices[child + 1],
+								scores[child], indices[child]))
+					child++;
+				if (!worse(scores[child], indices[child], score, index))
+					break;
+				scores[i] = scores[child];
+				indices[i] = indices[child];
+				i = child;
+			}
+			scores[i] = score;
+			indices[i] = index;
+		}
+
+		/**
+		 * @return true if an image with the score would be added.
+		 */
+		boolean accepts(double score, int index) {
+			if (size < scores.length)
+				return true;
+			return size > 0 && worse(scores[0], indices[0], score, index);
+		}
+
+		void addAll(BestImages other) {
+			for (int i = 0; i < other.size; i++)
+				add(other.scores[i], other.indices[i]);
+		}
+
+		/**
+		 * Empties the heap.
+		 * 
+		 * @return the images, the best first.
+		 */
+		List<ImageContainer> toList(ImageContainer[] images) {
+			ImageContainer[] sorted = new ImageContainer[size];
+			while (size > 0) {
+				sorted[size - 1] = images[indices[0]];
+				size--;
+				if (size > 0)
+					siftDown(scores[size], indices[size]);
+			}
+			List<ImageContainer> results = new ArrayList<ImageContainer>(
+					sorted.length);
+			for (ImageContainer curr : sorted)
+				results.add(curr);
+			return results;
+		}
 	}
 
 	/**
@@ -114,6 +339,24 @@ public class RetrieverScoreBased implements Retriever {
 		return findNearestNeighbors(query, type, resultAmount);
 	}
 
+	/**
+	 * Performs a search among the given candidates and returns the
+	 * "resultAmount" best of them.
+	 * 
+	 * @param query
+	 *            the query image that is used.
+	 * @param resultAmount
+	 *            the desired amount of results.
+	 * @param candidates
+	 *            the images which are ranked.
+	 * @return the best "resultAmount" results in a list.
+	 */
+	public List<ImageContainer> search(final ImageContainer query,
+			final DescriptorType type, int resultAmount,
+			List<ImageContainer> candidates) {
+		return findNearestNeighbors(query, type, resultAmount, candidates);
+	}
+
 	/**
 	 * Prints a list of images to a given file in html format.
 	 * 
@@ -139,7 +382,19 @@ public class RetrieverScoreBased implements Retriever {
 	 */
 	@Override
 	public ImageContainer getImageByName(String name) {
-		return Utility.getImageByName(database, name);
+		return catalog.getImage(name);
+	}
+
+	/**
+	 * Queries for an image with a specific id.
+	 * 
+	 * @param id
+	 *            the id of the image.
+	 * @return The image object with the given id or null if not found.
+	 */
+	@Override
+	public ImageContainer getImage(int id) {
+		return catalog.getImage(id);
 	}
 
 	/**
@@ -154,5 +409,6 @@ public class RetrieverScoreBased implements Retriever {
 
 	public void setDatabase(List<ImageContainer> database) {
 		this.database = database;
+		this.catalog = new ImageCatalog(database);
 	}
 }
@@ -39,7 +39,9 @@ package cbir.retriever;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.TreeSet;
@@ -87,6 +89,104 @@ public class Utility {
 		return results;
 	}
 
+	/**
+	 * Finds the "amount" nearest neighbors of the given image (defined in the
+	 * comparator) with one pass over the database: the distance of every image
+	 * is computed once and the nearest images found so far are kept in a
+	 * max-heap. Images farther away than the bound (see
+	 * MetricUtility.seedBound) or than the farthest image of the full heap are
+	 * skipped. Like in the TreeSet above, of several images with the same
+	 * distance only the first one is kept.
+	 * 
+	 * @param database
+	 *            the list of images that represents the database.
+	 * @param amount
+	 *            the desired amount of nearest neighbors.
+	 * @param comparator
+	 *            the comparator which is used to compare images.
+	 * @param bound
+	 *            at least "amount" images with distinct distances are not
+	 *            farther away than the bound, infinity if nothing is known.
+	 * @return The list of the nearest neighbors, filled up with null if the
+	 *         database is too small.
+	 */
+	public static List<ImageContainer> findNearestNeighbors(
+			List<ImageContainer> database, int amount,
+			ComparatorDistanceBased comparator, double bound) {
+		List<ImageContainer> results = new ArrayList<ImageContainer>(
+				Math.max(amount, 0));
+		if (amount <= 0)
+			return results;
+		// the heap, the farthest image is at index 0
+		double[] distances = new double[amount];
+		ImageContainer[] images = new ImageContainer[amount];
+		HashSet<Double> kept = new HashSet<Double>();
+		int size = 0;
+		for (ImageContainer curr : database) {
+			double distance = comparator.distance(curr);
+			if (!(distance <= bound)
+					|| (size == amount && distance >= distances[0])
+					|| kept.contains(distance))
+				continue;
+			if (size == amount) {
+				kept.remove(distances[0]);
+				siftDown(distances, images, size, 0, distance, curr);
+			} else
+				siftUp(distances, images, size++, distance, curr);
+			kept.add(distance);
+		}
+		for (int i = 0; i < amount; i++)
+			results.add(null);
+		while (size > 0) {
+			results.set(size - 1, images[0]);
+			size--;
+			siftDown(distances, images, size, 0, distances[size],
+					images[size]);
+			images[size] = null;
+		}
+		return results;
+	}
+
+	/**
+	 * Inserts an image at the given free position of a max-heap and moves it
+	 * up.
+	 */
+	private static void siftUp(double[] distances, ImageContainer[] images,
+			int position, double distance, ImageContainer image) {
+		while (position > 0) {
+			int parent = (position - 1) / 2;
+			if (distances[parent] >= distance)
+				break;
+			distances[position] = distances[parent];
+			images[position] = images[parent];
+			position = parent;
+		}
+		distances[position] = distance;
+		images[position] = image;
+	}
+
+	/**
+	 * Puts an image at the given position of a max-heap of the given size and
+	 * moves it down.
+	 */
+	private static void siftDown(double[] distances, ImageContainer[] images,
+			int size, int position, double distance, ImageContainer image) {
+		while (2 * position + 1 < size) {
+			int child = 2 * position + 1;
+			if (child + 1 < size && distances[child + 1] > distances[child])
+				child++;
+			if (distances[child] <= distance)
+				break;
+			distances[position] = distances[child];
+			images[position] = images[child];
+			position = child;
+		}
+		if (position < size) {
+			distances[position] = distance;
+			images[position] = image;
+		}
+	}
+
 	/**
 	 * Convertes a path containing windows file separators to a path containing
 	 * linux file separators.
@@ -36,36 +36,50 @@
  */
 package cbir.score;
 
-import java.util.Comparator;
 import java.util.List;
 
 import rf.bayesian.Bayesian;
+import rf.bayesian.FeedbackStatistics;
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
+import cbir.image.QuerySession;
+import cbir.interfaces.BoundedScore;
 import cbir.interfaces.Metric;
+import cbir.metric.MetricUtility;
 
 /**
  * Provides the score computation using the Bayesian Query Shifting approach.
  * 
+ * The shifted query and the image farthest from it are computed once per
+ * feedback round and kept in an immutable state (in the query session, or for
+ * the last query in the score), the score itself only reads it and can be
+ * computed by many threads at once.
+ * 
+ * If the score is created with pivots it bounds the distances to the shifted
+ * query and to the farthest image by the triangle inequality (see
+ * PivotDistances), so the retrievers can skip images whose score cannot be
+ * high enough. NOTE: this needs a true metric (e.g. Euclidean, but not
+ * Cosine). If the weights of a WeightedEuclidean metric change, the pivots
+ * and the state are computed again.
+ * 
  * @author Chris Wendler
  */
-public class BayesScore implements cbir.interfaces.Score {
+public class BayesScore implements BoundedScore {
 	/** The image database. **/
 	private List<ImageContainer> database;
 	/** The used distance metric in the score computation. **/
 	private Metric norm;
-	/** The Query Image after applying Bayesian Query Shifting. **/
-	private volatile ImageContainer BQS;
+	/** The state of the last query which is not a query session. **/
+	private volatile BayesState last = null;
+	/** The number of pivots, 0 if no bounds are computed. **/
+	private final int pivotCount;
 	/**
-	 * The Image in the database with the maximum distance to the BQS query
-	 * vector.
+	 * The distances to the pivots, computed for the first query and again when
+	 * the weights of the metric change.
 	 **/
-	private volatile ImageContainer BQSmax;
-	/**
-	 * A variable used to synchronize the usage of this scoring function in case
-	 * many threads compute the score at the same time.
-	 **/
-	private volatile int k = 0;
+	private PivotDistances pivots = null;
+	/** Relative slack of the bounds against rounding errors. **/
+	private static final double EPSILON = 1e-9;
 
 	/**
 	 * Initializes the norm and database fields.
@@ -76,32 +90,126 @@ public class BayesScore implements cbir.interfaces.Score {
 	 *            the list of images that is used as the database.
 	 */
 	public BayesScore(Metric metric, List<ImageContainer> database) {
+		this(metric, database, 0);
+	}
+
+	/**
+	 * Initializes the norm and database fields.
+	 * 
+	 * @param metric
+	 *            the preferred metric for all computations, it has to be a
+	 *            true metric if pivots are used.
+	 * @param database
+	 *            the list of images that is used as the database.
+	 * @param pivots
+	 *            the number of pivots used for the upper bounds of the
+	 *            scores, 0 if no bounds are computed.
+	 */
+	public BayesScore(Metric metric, List<ImageContainer> database,
+			int pivots) {
 		super();
 		this.norm = metric;
 		this.database = database;
+		this.pivotCount = pivots;
 	}
 
 	/**
-	 * Initializes all needed variables for the score computation.
+	 * Computes the state of a feedback round: shifts the query (the query
+	 * itself is not changed) and finds the image of the database with the
+	 * maximum distance to the shifted query.
 	 * 
 	 * @param query
 	 * @param type
+	 * @return the state.
+	 */
+	public BayesState init(final ImageContainer query,
+			final DescriptorType type) {
+		int version = query.getFeedbackVersion();
+		// metrics like WeightedEuclidean initialize their weights with the
+		// first distance
+		norm.distance(query, query, type);
+		int weights = MetricUtility.version(norm);
+		QuerySession session = new QuerySession(query);
+		session.getPositives().addAll(query.getPositives());
+		session.getNegatives().addAll(query.getNegatives());
+		// the statistics of the marked images are kept in the query
+		ImageContainer shifted = new Bayesian().shiftQuery(session, type,
+				FeedbackStatistics.get(query, type));
+		ImageContainer farthest = null;
+		double max = Double.NEGATIVE_INFINITY;
+		for (ImageContainer image : database) {
+			double distance = norm.distance(image, shifted, type);
+			if (distance > max) {
+				max = distance;
+				farthest = image;
+			}
+		}
+		PivotDistances pivots = getPivots(type);
+		if (pivots == null || farthest == null)
+			return new BayesState(query, type, version, weights, shifted,
+					farthest, max, null, null, null);
+		return new BayesState(query, type, version, weights, shifted,
+				farthest, max, pivots, pivots.toPivots(shifted),
+				pivots.toPivots(farthest));
+	}
+
+	/**
+	 * @return the distances to the pivots for the type, null if no bounds are
+	 *         computed.
 	 */
-	public void init(final ImageContainer query, final DescriptorType type) {
-		BQS = new Bayesian().shiftQuery(query, type);
-		BQSmax = cbir.retriever.Utility.findNearestNeighbors(database, 1,
-				new Comparator<ImageContainer>() {
-					@Override
-					public int compare(ImageContainer a, ImageContainer b) {
-						double distA = norm.distance(a, query, type);
-						double distB = norm.distance(b, query, type);
-						if (distA > distB)
-							return -1;
-						if (distA < distB)
-							return 1;
-						return 0;
-					}
-				}).get(0);
+	private synchronized PivotDistances getPivots(DescriptorType type) {
+		if (pivotCount <= 0 || database.isEmpty())
+			return null;
+		if (pivots == null || pivots.getType() != type || !pivots.isCurrent())
+			pivots = new PivotDistances(database, norm, type, pivotCount);
+		return pivots;
+	}
+
+	/**
+	 * Returns the state for the current feedback round of a query, it is
+	 * computed if the feedback has changed.
+	 */
+	BayesState getState(ImageContainer query, DescriptorType type) {
+		BayesState state = currentState(query, type);
+		if (state != null)
+			return state;
+		synchronized (this) {
+			state = currentState(query, type);
+			if (state == null) {
+				state = init(query, type);
+				if (query instanceof QuerySession)
+					((QuerySession) query).cacheState(this, state,
+							state.estimateSize());
+				else
+					last = state;
+			}
+			return state;
+		}
+	}
+
+	/**
+	 * @return the stored state if it belongs to the current feedback round,
+	 *         null otherwise.
+	 */
+	private BayesState currentState(ImageContainer query, DescriptorType type) {
+		BayesState state;
+		if (query instanceof QuerySession)
+			state = (BayesState) ((QuerySession) query).getState(this);
+		else
+			state = last;
+		if (state != null && state.query == query && state.type == type
+				&& state.version == query.getFeedbackVersion()
+				&& state.weights == MetricUtility.version(norm))
+			return state;
+		return null;
+	}
+
+	/**
+	 * Computes the state of the current feedback round of a query.
+	 */
+	@Override
+	public void prepare(ImageContainer query, DescriptorType type) {
+		getState(query, type);
 	}
 
 	/**
@@ -120,21 +228,149 @@ public class BayesScore implements cbir.interfaces.Score {
 	@Override
 	public double score(final ImageContainer query, final ImageContainer image,
 			final DescriptorType type) {
-		int knew = query.getPositives().size() + query.getNegatives().size();
-		synchronized (this) {
-			if (k != knew) {
-				k = knew;
-				init(query, type);
-			}
-		}
+		return score(getState(query, type), image);
+	}
+
+	/**
+	 * Calculates the score of an image for the state of a feedback round.
+	 */
+	double score(BayesState state, ImageContainer image) {
+		DescriptorType type = state.type;
 		double dBQS, dBQSmax, relevanceBQS;
 
-		dBQS = norm.distance(BQS, image, type);
-		dBQSmax = norm.distance(BQSmax, image, type);
+		dBQS = norm.distance(state.BQS, image, type);
+		dBQSmax = norm.distance(state.BQSmax, image, type);
 		relevanceBQS = (1 - Math.pow(Math.E, (1 - (dBQS / dBQSmax))))
 				/ (1 - Math.E);
 
 		return relevanceBQS;
 	}
 
+	/**
+	 * Calculates the scores of a range of images.
+	 * 
+	 * @param query
+	 *            the query vector containing all positively and negatively
+	 *            marked images.
+	 * @param images
+	 *            the images for which the scores are computed.
+	 * @param from
+	 *            the first image of the range.
+	 * @param to
+	 *            the end of the range (exclusive).
+	 * @param scores
+	 *            the array the scores are stored in, at the index of the
+	 *            image.
+	 * @param type
+	 *            the type of descriptor which is considered in the score
+	 *            computation.
+	 */
+	@Override
+	public void score(ImageContainer query, ImageContainer[] images, int from,
+			int to, double[] scores, DescriptorType type) {
+		BayesState state = getState(query, type);
+		for (int i = from; i < to; i++)
+			scores[i] = score(state, images[i]);
+	}
+
+	/**
+	 * Calculates upper bounds of the scores of a range of images. The score
+	 * decreases with dBQS / dBQSmax, so it is bounded with a lower bound of
+	 * the distance to the shifted query and an upper bound of the distance to
+	 * the farthest image. The latter is also bounded by the distance from the
+	 * farthest image to the shifted query plus dBQS.
+	 * 
+	 * @return false if the score has no pivots.
+	 */
+	@Override
+	public boolean upperBounds(ImageContainer query, ImageContainer[] images,
+			int from, int to, double[] bounds, DescriptorType type) {
+		BayesState state = getState(query, type);
+		if (state.pivots == null)
+			return false;
+		for (int i = from; i < to; i++)
+			bounds[i] = upperBound(state, images[i]);
+		return true;
+	}
+
+	/**
+	 * @return an upper bound of the score of an image for the state of a
+	 *         feedback round (which has pivots).
+	 */
+	double upperBound(BayesState state, ImageContainer image) {
+		double dBQS = state.pivots.lowerBound(state.BQSToPivots, image);
+		double dBQSmax = Math.min(
+				state.pivots.upperBound(state.BQSmaxToPivots, image),
+				state.maxDistance + dBQS);
+		if (dBQSmax == 0)
+			// the score is not a number then
+			return Double.NaN;
+		double ratio = dBQS * (1 - EPSILON) / (dBQSmax * (1 + EPSILON));
+		return (1 - Math.pow(Math.E, (1 - ratio))) / (1 - Math.E);
+	}
+
+	/**
+	 * The state of a query in one feedback round.
+	 */
+	public static final class BayesState {
+		/** The query the state belongs to. **/
+		private final ImageContainer query;
+		/** The descriptor type the state was computed for. **/
+		private final DescriptorType type;
+		/** The feedback version of the query in the round. **/
+		private final int version;
+		/** The version of the weights of the metric (see MetricUtility). **/
+		private final int weights;
+		/** The Query Image after applying Bayesian Query Shifting. **/
+		private final ImageContainer BQS;
+		/**
+		 * The Image in the database with the maximum distance to the BQS
+		 * query vector.
+		 **/
+		private final ImageContainer BQSmax;
+		/** The distance from the BQS query vector to BQSmax. **/
+		private final double maxDistance;
+		/** The distances to the pivots, null if no bounds are computed. **/
+		private final PivotDistances pivots;
+		/** The distances from the BQS query vector to the pivots. **/
+		private final double[] BQSToPivots;
+		/** The distances from the farthest image to the pivots. **/
+		private final double[] BQSmaxToPivots;
+
+		BayesState(ImageContainer query, DescriptorType type, int version,
+				int weights, ImageContainer BQS, ImageContainer BQSmax,
+				double maxDistance, PivotDistances pivots,
+				double[] BQSToPivots, double[] BQSmaxToPivots) {
+			this.query = query;
+			this.type = type;
+			this.version = version;
+			this.weights = weights;
+			this.BQS = BQS;
+			this.BQSmax = BQSmax;
+			this.maxDistance = maxDistance;
+			this.pivots = pivots;
+			this.BQSToPivots = BQSToPivots;
+			this.BQSmaxToPivots = BQSmaxToPivots;
+		}
+
+		/**
+		 * @return the estimated size of the state in bytes (the shifted
+		 *         descriptor and the distances to the pivots).
+		 */
+		long estimateSize() {
+			long bytes = 8L * BQS.getDescriptor(type).size();
+			if (BQSToPivots != null)
+				bytes += 8L * (BQSToPivots.length + BQSmaxToPivots.length);
+			return bytes;
+		}
+
+		public ImageContainer getBQS() {
+			return BQS;
+		}
+
+		public ImageContainer getBQSmax() {
+			return BQSmax;
+		}
+	}
+
 }
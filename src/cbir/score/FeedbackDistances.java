@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.score;
+
+import java.util.Arrays;
+import java.util.List;
+
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+import cbir.image.QuerySession;
+import cbir.interfaces.Metric;
+
+/**
+ * Keeps the distance from every image of the database to its nearest positive
+ * and to its nearest negative image of a query. When new images are marked
+ * during RF only the distances to them are computed, an RF iteration costs
+ * O(database size * newly marked images) instead of searching all marked
+ * images for every image again.
+ * 
+ * The distances are kept in arrays indexed by the ids of the images (see
+ * ImageCatalog). Images which are not part of the database (or all images if
+ * the database is not known) are compared with all marked images, or, if
+ * there are more marked images than the index threshold of the cache, looked
+ * up in a FeedbackIndex over them.
+ * 
+ * The distances are updated once per RF iteration under the lock of the
+ * cache, afterwards they are read by many threads without locking.
+ * 
+ * @author Chris Wendler
+ */
+public class FeedbackDistances {
+	/** The query the distances belong to. */
+	private final ImageContainer query;
+	/** The descriptor type the distances are computed for. */
+	private final DescriptorType type;
+	/** The metric the distances are computed with. */
+	private final Metric metric;
+	/** The images of the database, the index is the id. */
+	private final ImageContainer[] images;
+	/** The distance of every image to the nearest positive image. */
+	private final double[] positive;
+	/** The distance of every image to the nearest negative image. */
+	private final double[] negative;
+	/** The number of positive images the distances were computed for. */
+	private int positives = 0;
+	/** The number of negative images the distances were computed for. */
+	private int negatives = 0;
+	/** The feedback version of the query the distances were computed for. */
+	private volatile int version = -1;
+	/** Number of marked images from which on they are indexed, 0 for never. */
+	private final int indexThreshold;
+	/** The index over the positive images, null if there is none yet. */
+	private volatile FeedbackIndex positiveIndex = null;
+	/** The index over the negative images, null if there is none yet. */
+	private volatile FeedbackIndex negativeIndex = null;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param query
+	 *            the query image.
+	 * @param database
+	 *            the images of the database.
+	 * @param metric
+	 *            the metric the distances are computed with.
+	 * @param type
+	 *            the descriptor type of interest.
+	 */
+	public FeedbackDistances(ImageContainer query,
+			List<ImageContainer> database, Metric metric, DescriptorType type) {
+		this(query, database, metric, type, 0);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param query
+	 *            the query image.
+	 * @param database
+	 *            the images of the database, null if only the marked images
+	 *            are known.
+	 * @param metric
+	 *            the metric the distances are computed with, it has to be a
+	 *            true metric if the marked images are indexed.
+	 * @param type
+	 *            the descriptor type of interest.
+	 * @param indexThreshold
+	 *            number of marked images from which on they are indexed, 0
+	 *            if they are never indexed.
+	 */
+	public FeedbackDistances(ImageContainer query,
+			List<ImageContainer> database, Metric metric, DescriptorType type,
+			int indexThreshold) {
+		this.query = query;
+		this.type = type;
+		this.metric = metric;
+		this.indexThreshold = indexThreshold;
+		int size = 0;
+		if (database != null)
+			for (ImageContainer image : database)
+				size = Math.max(size, image.getId() + 1);
+		images = new ImageContainer[size];
+		if (database != null)
+			for (ImageContainer image : database)
+				if (image.getId() >= 0)
+					images[image.getId()] = image;
+		positive = new double[size];
+		negative = new double[size];
+		Arrays.fill(positive, Double.POSITIVE_INFINITY);
+		Arrays.fill(negative, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Returns the distances for the marked images of a query. The distances
+	 * are kept in the query session (or in the cache for other queries) and
+	 * updated with the images marked since the last call. Distances which are
+	 * up to date are returned without locking.
+	 * 
+	 * @param cache
+	 *            the cache of the score which asks for the distances.
+	 * @return the distances.
+	 */
+	public static FeedbackDistances get(Cache cache, ImageContainer query,
+			List<ImageContainer> database, Metric metric, DescriptorType type) {
+		FeedbackDistances distances = current(cache, query, type);
+		if (distances != null && distances.isUpToDate())
+			return distances;
+		synchronized (cache) {
+			distances = current(cache, query, type);
+			if (distances == null) {
+				distances = new FeedbackDistances(query, database, metric,
+						type, cache.indexThreshold);
+				if (query instanceof QuerySession)
+					((QuerySession) query).cacheState(cache, distances,
+							distances.estimateSize());
+				else
+					cache.last = distances;
+			}
+			distances.update();
+			return distances;
+		}
+	}
+
+	/**
+	 * @return the kept distances if they can be updated for the query, null
+	 *         otherwise.
+	 */
+	private static FeedbackDistances current(Cache cache,
+			ImageContainer query, DescriptorType type) {
+		FeedbackDistances distances;
+		if (query instanceof QuerySession)
+			distances = (FeedbackDistances) ((QuerySession) query)
+					.getState(cache);
+		else
+			distances = cache.last;
+		// distances computed before a list of marked images was replaced
+		// cannot be updated
+		if (distances == null || distances.query != query
+				|| distances.type != type
+				|| distances.version < query.getFeedbackReset())
+			return null;
+		return distances;
+	}
+
+	/**
+	 * @return true if the distances were computed for the current marked
+	 *         images.
+	 */
+	private boolean isUpToDate() {
+		return version == query.getFeedbackVersion();
+	}
+
+	/**
+	 * Computes the distances to the images marked since the last update. The
+	 * feedback version is set last, so threads which see it up to date also
+	 * see the distances.
+	 */
+	public void update() {
+		int version = query.getFeedbackVersion();
+		positives = update(positive, query.getPositives(), positives);
+		negatives = update(negative, query.getNegatives(), negatives);
+		positiveIndex = index(positiveIndex, query.getPositives());
+		negativeIndex = index(negativeIndex, query.getNegatives());
+		this.version = version;
+	}
+
+	/**
+	 * Adds the images marked since the last update to the index, creates it
+	 * when there are enough marked images.
+	 */
+	private FeedbackIndex index(FeedbackIndex index,
+			List<ImageContainer> marked) {
+		if (index == null) {
+			if (indexThreshold <= 0 || marked.size() < indexThreshold)
+				return null;
+			index = new FeedbackIndex(metric, type);
+		}
+		for (ImageContainer image : marked.subList(index.size(), marked.size()))
+			index.add(image);
+		return index;
+	}
+
+	private int update(double[] distances, List<ImageContainer> marked,
+			int done) {
+		if (done == marked.size())
+			return done;
+		List<ImageContainer> added = marked.subList(done, marked.size());
+		for (ImageContainer image : added)
+			for (int id = 0; id < images.length; id++)
+				if (images[id] != null) {
+					double distance = metric.distance(images[id], image, type);
+					if (distance < distances[id])
+						distances[id] = distance;
+				}
+		return marked.size();
+	}
+
+	/**
+	 * @return the estimated size of the distances in bytes (the indexes over
+	 *         the marked images are not included).
+	 */
+	public long estimateSize() {
+		return 24L * images.length;
+	}
+
+	/**
+	 * @return the distance of the image to the nearest positive image.
+	 */
+	public double getPositiveDistance(ImageContainer image) {
+		return distance(image, positive, positiveIndex, query.getPositives());
+	}
+
+	/**
+	 * @return the distance of the image to the nearest negative image.
+	 */
+	public double getNegativeDistance(ImageContainer image) {
+		return distance(image, negative, negativeIndex, query.getNegatives());
+	}
+
+	private double distance(ImageContainer image, double[] distances,
+			FeedbackIndex index, List<ImageContainer> marked) {
+		int id = image.getId();
+		if (id >= 0 && id < images.length && images[id] == image)
+			return distances[id];
+		if (index != null && index.size() == marked.size())
+			return index.nearestDistance(image);
+		double min = Double.POSITIVE_INFINITY;
+		for (ImageContainer curr : marked)
+			min = Math.min(min, metric.distance(image, curr, type));
+		return min;
+	}
+
+	/**
+	 * Keeps the distances of the last query which is not a query session, a
+	 * score keeps one cache. It is also the key of the distances in query
+	 * sessions.
+	 */
+	public static class Cache {
+		private volatile FeedbackDistances last = null;
+		/** Number of marked images from which on they are indexed. */
+		private final int indexThreshold;
+
+		public Cache() {
+			this(0);
+		}
+
+		/**
+		 * @param indexThreshold
+		 *            number of marked images from which on they are indexed,
+		 *            0 if they are never indexed.
+		 */
+		public Cache(int indexThreshold) {
+			this.indexThreshold = indexThreshold;
+		}
+	}
+
+}
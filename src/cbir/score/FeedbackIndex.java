@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.score;
+
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+import cbir.interfaces.Metric;
+
+/**
+ * A small index over the marked images of a query which finds the distance
+ * from an image to the nearest of them without comparing it with all of them.
+ * 
+ * The index grows with the feedback: new images are collected in a buffer
+ * which is scanned linearly, a full buffer becomes a static vantage point tree.
+ * The trees have sizes BUFFER_SIZE * 2^i, at most one of every size, a new tree
+ * is merged with the trees of the same size into a bigger one (the logarithmic
+ * method of Bentley and Saxe), so every image is part of O(log n) rebuilds. A
+ * search visits the buffer and every tree, the distance found so far prunes
+ * the trees.
+ * 
+ * Images are only added by one thread at a time, searches read an immutable
+ * snapshot of the buffer and the trees and can run in parallel with them.
+ * NOTE: the pruning relies on the triangle inequality, so the metric has to be
+ * a true metric (e.g. Euclidean, but not Cosine).
+ * 
+ * @author Chris Wendler
+ */
+public class FeedbackIndex {
+	/** Number of images collected before they are indexed by a tree. */
+	private static final int BUFFER_SIZE = 32;
+	/** Number of images below which a subtree is scanned linearly. */
+	private static final int LEAF_SIZE = 8;
+
+	/** The descriptor type the distances are computed for. */
+	private final DescriptorType type;
+	/** The metric the distances are computed with. */
+	private final Metric metric;
+	/** The images which are not part of a tree yet. */
+	private volatile ImageContainer[] buffer = new ImageContainer[0];
+	/** The trees, the tree at i has BUFFER_SIZE * 2^i images or is null. */
+	private volatile VPTree[] trees = new VPTree[0];
+	/** The number of images. */
+	private volatile int size = 0;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param metric
+	 *            the metric the distances are computed with.
+	 * @param type
+	 *            the descriptor type of interest.
+	 */
+	public FeedbackIndex(Metric metric, DescriptorType type) {
+		this.metric = metric;
+		this.type = type;
+	}
+
+	/**
+	 * Adds an image to the index.
+	 */
+	public void add(ImageContainer image) {
+		ImageContainer[] buffer = this.buffer;
+		ImageContainer[] added = new ImageContainer[buffer.length + 1];
+		System.arraycopy(buffer, 0, added, 0, buffer.length);
+		added[buffer.length] = image;
+		if (added.length < BUFFER_SIZE) {
+			this.buffer = added;
+			size++;
+			return;
+		}
+
+		// merge the buffer with the trees of the same size
+		VPTree[] trees = this.trees.clone();
+		ImageContainer[] carry = added;
+		int level = 0;
+		while (level < trees.length && trees[level] != null) {
+			ImageContainer[] merged = new ImageContainer[carry.length
+					+ trees[level].items.length];
+			System.arraycopy(carry, 0, merged, 0, carry.length);
+			System.arraycopy(trees[level].items, 0, merged, carry.length,
+					trees[level].items.length);
+			carry = merged;
+			trees[level++] = null;
+		}
+		if (level == trees.length) {
+			VPTree[] grown = new VPTree[trees.length + 1];
+			System.arraycopy(trees, 0, grown, 0, trees.length);
+			trees = grown;
+		}
+		trees[level] = new VPTree(carry);
+		// the trees are published before the buffer is emptied, a search in
+		// between may see an image twice but never misses one
+		this.trees = trees;
+		this.buffer = new ImageContainer[0];
+		size++;
+	}
+
+	/**
+	 * @return the number of images in the index.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the distance from the image to the nearest image of the index,
+	 *         infinity if the index is empty.
+	 */
+	public double nearestDistance(ImageContainer image) {
+		VPTree[] trees = this.trees;
+		ImageContainer[] buffer = this.buffer;
+		double best = Double.POSITIVE_INFINITY;
+		// the biggest tree most likely holds the nearest image
+		for (int i = trees.length - 1; i >= 0; i--)
+			if (trees[i] != null)
+				best = trees[i].search(image, 0, trees[i].items.length, best);
+		for (ImageContainer curr : buffer)
+			best = Math.min(best, metric.distance(image, curr, type));
+		return best;
+	}
+
+	/**
+	 * A static vantage point tree stored in an array. The node of a range is
+	 * its first image (the vantage point), the rest of the range is split at
+	 * its middle: the images of the first half are at most radius away from
+	 * the vantage point, the images of the second half at least radius.
+	 */
+	private class VPTree {
+		/** The images, in the order of the tree. */
+		private final ImageContainer[] items;
+		/** The radius of the node at the index of its vantage point. */
+		private final double[] radius;
+
+		VPTree(ImageContainer[] images) {
+			items = images;
+			radius = new double[images.length];
+			build(0, images.length, new double[images.length]);
+		}
+
+		private void build(int from, int to, double[] distances) {
+			if (to - from <= LEAF_SIZE)
+				return;
+			// the image farthest from the middle one is the vantage point, an
+			// image at the border of the range splits it best
+			ImageContainer center = items[(from + to) >>> 1];
+			int farthest = from;
+			double max = -1;
+			for (int i = from; i < to; i++) {
+				double distance = metric.distance(center, items[i], type);
+				if (distance > max) {
+					max = distance;
+					farthest = i;
+				}
+			}
+			swap(from, farthest, distances);
+			ImageContainer vantage = items[from];
+			for (int i = from + 1; i < to; i++)
+				distances[i] = metric.distance(vantage, items[i], type);
+			int middle = (from + 1 + to) >>> 1;
+			select(from + 1, to, middle, distances);
+			radius[from] = distances[middle];
+			build(from + 1, middle, distances);
+			build(middle, to, distances);
+		}
+
+		/**
+		 * Reorders the range so that the image at k has the k-th smallest
+		 * distance, the images before it are not farther away and the images
+		 * after it not closer.
+		 */
+		private void select(int from, int to, int k, double[] distances) {
+			int lo = from, hi = to - 1;
+			while (lo < hi) {
+				double pivot = distances[(lo + hi) >>> 1];
+				int i = lo, j = hi;
+				while (i <= j) {
+					while (distances[i] < pivot)
+						i++;
+					while (distances[j] > pivot)
+						j--;
+					if (i <= j)
+						swap(i++, j--, distances);
+				}
+				if (k <= j)
+					hi = j;
+				else if (k >= i)
+					lo = i;
+				else
+					return;
+			}
+		}
+
+		private void swap(int i, int j, double[] distances) {
+			ImageContainer image = items[i];
+			items[i] = items[j];
+			items[j] = image;
+			double distance = distances[i];
+			distances[i] = distances[j];
+			distances[j] = distance;
+		}
+
+		/**
+		 * @return the minimum of best and the distance from the image to the
+		 *         nearest image of the range.
+		 */
+		double search(ImageContainer image, int from, int to, double best) {
+			if (to - from <= LEAF_SIZE) {
+				for (int i = from; i < to; i++)
+					best = Math.min(best,
+							metric.distance(image, items[i], type));
+				return best;
+			}
+			double distance = metric.distance(image, items[from], type);
+			best = Math.min(best, distance);
+			int middle = (from + 1 + to) >>> 1;
+			double r = radius[from];
+			if (distance < r) {
+				best = search(image, from + 1, middle, best);
+				if (distance + best >= r)
+					best = search(image, middle, to, best);
+			} else {
+				best = search(image, middle, to, best);
+				if (distance - best <= r)
+					best = search(image, from + 1, middle, best);
+			}
+			return best;
+		}
+	}
+
+}
@@ -36,17 +36,23 @@
  */
 package cbir.score;
 
-import java.util.List;
-
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
+import cbir.interfaces.BoundedScore;
 
 /**
  * Provides the NN score stabilization using a Bayesian Query Shifting term.
  * 
+ * Both terms are computed in one pass over the images: the state of the
+ * feedback round (the shifted query and the distances to the marked images)
+ * and the mixing coefficients are looked up once for a range of images.
+ * 
+ * The NN term is read from the kept distances, so the upper bounds of the
+ * scores only bound the BQS term (if the BayesScore has pivots).
+ * 
  * @author Chris Wendler
  */
-public class NNBayesScore implements cbir.interfaces.Score {
+public class NNBayesScore implements BoundedScore {
 	/**
 	 * The score object that is used to calculate the BQS term of the combined
 	 * score.
@@ -88,17 +94,91 @@ public class NNBayesScore implements cbir.interfaces.Score {
 	@Override
 	public double score(final ImageContainer query, final ImageContainer image,
 			final DescriptorType type) {
-		double relevanceNN = nnScore.score(query, image, type);
-		double relevanceBQS = bayesScore.score(query, image, type);
+		double[] scores = new double[1];
+		score(query, new ImageContainer[] { image }, 0, 1, scores, type);
+		return scores[0];
+	}
+
+	/**
+	 * Computes the state of the BayesScore and the distances of the NNScore
+	 * for the current feedback round of a query.
+	 */
+	@Override
+	public void prepare(ImageContainer query, DescriptorType type) {
+		bayesScore.prepare(query, type);
+		nnScore.prepare(query, type);
+	}
+
+	/**
+	 * Calculates the scores of a range of images.
+	 * 
+	 * @param query
+	 *            the query vector containing all positively and negatively
+	 *            marked images.
+	 * @param images
+	 *            the images for which the scores are computed.
+	 * @param from
+	 *            the first image of the range.
+	 * @param to
+	 *            the end of the range (exclusive).
+	 * @param scores
+	 *            the array the scores are stored in, at the index of the
+	 *            image.
+	 * @param type
+	 *            the type of descriptor which is considered in the score
+	 *            computation.
+	 */
+	@Override
+	public void score(ImageContainer query, ImageContainer[] images, int from,
+			int to, double[] scores, DescriptorType type) {
+		BayesScore.BayesState state = bayesScore.getState(query, type);
+		FeedbackDistances distances = nnScore.getDistances(query, type);
+
+		double n, k;
+		n = query.getNegatives().size();
+		k = query.getPositives().size() + query.getNegatives().size();
+		double weightBQS = (n / k) / (1. + n / k);
+		double weightNN = 1. / (n / k + 1.);
+
+		for (int i = from; i < to; i++) {
+			ImageContainer image = images[i];
+			double relevanceNN = NNScore.relevance(
+					distances.getNegativeDistance(image),
+					distances.getPositiveDistance(image));
+			double relevanceBQS = bayesScore.score(state, image);
+			scores[i] = weightBQS * relevanceBQS + weightNN * relevanceNN;
+		}
+	}
+
+	/**
+	 * Calculates upper bounds of the scores of a range of images.
+	 * 
+	 * @return false if the BayesScore has no pivots or the NN distances are
+	 *         not kept.
+	 */
+	@Override
+	public boolean upperBounds(ImageContainer query, ImageContainer[] images,
+			int from, int to, double[] bounds, DescriptorType type) {
+		if (!nnScore.knowsDatabase()
+				|| !bayesScore.upperBounds(query, images, from, to, bounds,
+						type))
+			return false;
+		FeedbackDistances distances = nnScore.getDistances(query, type);
 
-		List<ImageContainer> positives = query.getPositives();
-		List<ImageContainer> negatives = query.getNegatives();
 		double n, k;
-		n = negatives.size();
-		k = positives.size() + negatives.size();
+		n = query.getNegatives().size();
+		k = query.getPositives().size() + query.getNegatives().size();
+		double weightBQS = (n / k) / (1. + n / k);
+		double weightNN = 1. / (n / k + 1.);
 
-		return ((n / k) / (1. + n / k)) * relevanceBQS + (1. / (n / k + 1.))
-				* relevanceNN;
+		for (int i = from; i < to; i++) {
+			ImageContainer image = images[i];
+			double relevanceNN = NNScore.relevance(
+					distances.getNegativeDistance(image),
+					distances.getPositiveDistance(image));
+			bounds[i] = weightBQS * bounds[i] + weightNN * relevanceNN;
+		}
+		return true;
 	}
 
 }
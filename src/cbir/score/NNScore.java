@@ -40,17 +40,27 @@ import java.util.List;
 
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
+import cbir.interfaces.BatchScore;
 import cbir.interfaces.Metric;
-import cbir.retriever.ComparatorDistanceBased;
 
 /**
- * Provides the simple NN score computation without any optimization.
+ * Provides the simple NN score computation. If the score knows the database
+ * it keeps the distances to the nearest marked images of all images between
+ * the RF iterations, otherwise they are searched for every image (in an index
+ * over the marked images once there are enough of them, see FeedbackIndex).
  * 
  * @author Chris Wendler
  */
-public class NNScore implements cbir.interfaces.Score {
+public class NNScore implements BatchScore {
 	/** The used distance metric in the score computation. **/
 	Metric norm;
+	/**
+	 * The database, null if the nearest marked images are searched for every
+	 * image.
+	 **/
+	private List<ImageContainer> database = null;
+	/** The distances to the marked images of the last query. **/
+	private final FeedbackDistances.Cache cache;
 
 	/**
 	 * Initializes the norm and database fields.
@@ -59,8 +69,52 @@ public class NNScore implements cbir.interfaces.Score {
 	 *            the preferred metric for all computations.
 	 */
 	public NNScore(Metric metric) {
+		this(metric, null, 0);
+	}
+
+	/**
+	 * Initializes the norm and database fields. The distances to the marked
+	 * images are kept for every image of the database and updated
+	 * incrementally (see FeedbackDistances).
+	 * 
+	 * @param metric
+	 *            the preferred metric for all computations.
+	 * @param database
+	 *            the list of images that is used as the database.
+	 */
+	public NNScore(Metric metric, List<ImageContainer> database) {
+		this(metric, database, 0);
+	}
+
+	/**
+	 * Initializes the norm and database fields. Once there are indexThreshold
+	 * marked images, the nearest of them are looked up in an index (see
+	 * FeedbackIndex) for the images which are not part of the database.
+	 * 
+	 * @param metric
+	 *            the preferred metric for all computations, it has to be a
+	 *            true metric if the marked images are indexed.
+	 * @param database
+	 *            the list of images that is used as the database, null if the
+	 *            nearest marked images are searched for every image.
+	 * @param indexThreshold
+	 *            number of marked images from which on they are indexed, 0
+	 *            if they are never indexed.
+	 */
+	public NNScore(Metric metric, List<ImageContainer> database,
+			int indexThreshold) {
 		super();
 		this.norm = metric;
+		this.database = database;
+		this.cache = new FeedbackDistances.Cache(indexThreshold);
+	}
+
+	/**
+	 * Computes the distances to the marked images of the current feedback round of a query.
+	 */
+	@Override
+	public void prepare(ImageContainer query, DescriptorType type) {
+		FeedbackDistances.get(cache, query, database, norm, type);
 	}
 
 	/**
@@ -79,20 +133,81 @@ public class NNScore implements cbir.interfaces.Score {
 	@Override
 	public double score(ImageContainer query, final ImageContainer image,
 			final DescriptorType type) {
-		List<ImageContainer> positives = query.getPositives();
-		List<ImageContainer> negatives = query.getNegatives();
-		ImageContainer nearestPositive, nearestNegative;
-		double dN, dR;
+		FeedbackDistances distances = FeedbackDistances.get(cache, query,
+				database, norm, type);
+		return relevance(distances.getNegativeDistance(image),
+				distances.getPositiveDistance(image));
+	}
 
-		nearestPositive = cbir.retriever.Utility.findNearestNeighbors(
-				positives, 1, new ComparatorDistanceBased(image, norm, type))
-				.get(0);
-		nearestNegative = cbir.retriever.Utility.findNearestNeighbors(
-				negatives, 1, new ComparatorDistanceBased(image, norm, type))
-				.get(0);
-		dN = norm.distance(image, nearestNegative, type);
-		dR = norm.distance(image, nearestPositive, type);
+	/**
+	 * Calculates the scores of a range of images, the distances to the marked
+	 * images are looked up once for the whole range.
+	 * 
+	 * @param query
+	 *            the query vector containing all positively and negatively
+	 *            marked images.
+	 * @param images
+	 *            the images for which the scores are computed.
+	 * @param from
+	 *            the first image of the range.
+	 * @param to
+	 *            the end of the range (exclusive).
+	 * @param scores
+	 *            the array the scores are stored in, at the index of the
+	 *            image.
+	 * @param type
+	 *            the type of descriptor which is considered in the score
+	 *            computation.
+	 */
+	@Override
+	public void score(ImageContainer query, ImageContainer[] images, int from,
+			int to, double[] scores, DescriptorType type) {
+		FeedbackDistances distances = FeedbackDistances.get(cache, query,
+				database, norm, type);
+		for (int i = from; i < to; i++)
+			scores[i] = relevance(distances.getNegativeDistance(images[i]),
+					distances.getPositiveDistance(images[i]));
+	}
+
+	/**
+	 * Computes the NN score dN / (dN + dR). If no image is marked as negative
+	 * (dN is infinite) the images are ranked by the distance to the positive
+	 * images only, if none is marked as positive by the distance to the
+	 * negative ones. Without any marked images every image gets 0.5.
+	 * 
+	 * @param dN
+	 *            the distance to the nearest negative image.
+	 * @param dR
+	 *            the distance to the nearest positive image.
+	 * @return the score.
+	 */
+	static double relevance(double dN, double dR) {
+		boolean noNegatives = Double.isInfinite(dN);
+		boolean noPositives = Double.isInfinite(dR);
+		if (noNegatives && noPositives)
+			return 0.5;
+		if (noNegatives)
+			return 1 / (1 + dR);
+		if (noPositives)
+			return dN / (1 + dN);
+		if (dN + dR == 0)
+			// the image is marked as positive and as negative
+			return 0.5;
 		return dN / (dN + dR);
 	}
 
+	/**
+	 * @return the distances to the marked images of the query.
+	 */
+	FeedbackDistances getDistances(ImageContainer query, DescriptorType type) {
+		return FeedbackDistances.get(cache, query, database, norm, type);
+	}
+
+	/**
+	 * @return true if the distances of all images of the database are kept.
+	 */
+	boolean knowsDatabase() {
+		return database != null;
+	}
+
 }
@@ -40,9 +40,8 @@ import java.util.List;
 
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
+import cbir.interfaces.BatchScore;
 import cbir.interfaces.Metric;
-import cbir.interfaces.Score;
-import cbir.retriever.ComparatorDistanceBased;
 
 /**
  * Provides the NN score stabilization using a random variable that determines
@@ -50,8 +49,15 @@ import cbir.retriever.ComparatorDistanceBased;
  * 
  * @author Chris Wendler
  */
-public class NNregularizedScore implements Score {
+public class NNregularizedScore implements BatchScore {
 	Metric norm;
+	/**
+	 * The database, null if the nearest marked images are searched for every
+	 * image.
+	 **/
+	private List<ImageContainer> database = null;
+	/** The distances to the marked images of the last query. **/
+	private final FeedbackDistances.Cache cache;
 
 	/**
 	 * Initializes the norm and database fields.
@@ -60,8 +66,52 @@ public class NNregularizedScore implements Score {
 	 *            the preferred metric for all computations.
 	 */
 	public NNregularizedScore(Metric metric) {
+		this(metric, null, 0);
+	}
+
+	/**
+	 * Initializes the norm and database fields. The distances to the marked
+	 * images are kept for every image of the database and updated
+	 * incrementally (see FeedbackDistances).
+	 * 
+	 * @param metric
+	 *            the preferred metric for all computations.
+	 * @param database
+	 *            the list of images that is used as the database.
+	 */
+	public NNregularizedScore(Metric metric, List<ImageContainer> database) {
+		this(metric, database, 0);
+	}
+
+	/**
+	 * Initializes the norm and database fields. Once there are indexThreshold
+	 * marked images, the nearest of them are looked up in an index (see
+	 * FeedbackIndex) for the images which are not part of the database.
+	 * 
+	 * @param metric
+	 *            the preferred metric for all computations, it has to be a
+	 *            true metric if the marked images are indexed.
+	 * @param database
+	 *            the list of images that is used as the database, null if the
+	 *            nearest marked images are searched for every image.
+	 * @param indexThreshold
+	 *            number of marked images from which on they are indexed, 0
+	 *            if they are never indexed.
+	 */
+	public NNregularizedScore(Metric metric, List<ImageContainer> database,
+			int indexThreshold) {
 		super();
 		this.norm = metric;
+		this.database = database;
+		this.cache = new FeedbackDistances.Cache(indexThreshold);
+	}
+
+	/**
+	 * Computes the distances to the marked images of the current feedback round of a query.
+	 */
+	@Override
+	public void prepare(ImageContainer query, DescriptorType type) {
+		FeedbackDistances.get(cache, query, database, norm, type);
 	}
 
 	/**
@@ -80,18 +130,51 @@ public class NNregularizedScore implements Score {
 	@Override
 	public double score(ImageContainer query, final ImageContainer image,
 			final DescriptorType type) {
-		List<ImageContainer> positives = query.getPositives();
-		List<ImageContainer> negatives = query.getNegatives();
-		ImageContainer nearestPositive, nearestNegative;
-		double dN, dR;
-		nearestPositive = cbir.retriever.Utility.findNearestNeighbors(
-				positives, 1, new ComparatorDistanceBased(image, norm, type))
-				.get(0);
-		nearestNegative = cbir.retriever.Utility.findNearestNeighbors(
-				negatives, 1, new ComparatorDistanceBased(image, norm, type))
-				.get(0);
-		dN = norm.distance(image, nearestNegative, type);
-		dR = norm.distance(image, nearestPositive, type);
-		return (1 - Math.min(dR, dN)) * (dN / (dN + dR));
+		FeedbackDistances distances = FeedbackDistances.get(cache, query,
+				database, norm, type);
+		return relevance(distances.getNegativeDistance(image),
+				distances.getPositiveDistance(image));
+	}
+
+	/**
+	 * Calculates the scores of a range of images, the distances to the marked
+	 * images are looked up once for the whole range.
+	 * 
+	 * @param query
+	 *            the query vector containing all positively and negatively
+	 *            marked images.
+	 * @param images
+	 *            the images for which the scores are computed.
+	 * @param from
+	 *            the first image of the range.
+	 * @param to
+	 *            the end of the range (exclusive).
+	 * @param scores
+	 *            the array the scores are stored in, at the index of the
+	 *            image.
+	 * @param type
+	 *            the type of descriptor which is considered in the score
+	 *            computation.
+	 */
+	@Override
+	public void score(ImageContainer query, ImageContainer[] images, int from,
+			int to, double[] scores, DescriptorType type) {
+		FeedbackDistances distances = FeedbackDistances.get(cache, query,
+				database, norm, type);
+		for (int i = from; i < to; i++)
+			scores[i] = relevance(distances.getNegativeDistance(images[i]),
+					distances.getPositiveDistance(images[i]));
+	}
+
+	/**
+	 * Computes the NN score (see NNScore.relevance) weighted with its
+	 * reliability 1 - min(dR, dN). Without any marked images every image is
+	 * equally reliable.
+	 */
+	private static double relevance(double dN, double dR) {
+		double nearest = Math.min(dR, dN);
+		if (Double.isInfinite(nearest))
+			nearest = 0;
+		return (1 - nearest) * NNScore.relevance(dN, dR);
 	}
 }
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package cbir.score;
+
+import java.util.Arrays;
+import java.util.List;
+
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+import cbir.interfaces.Metric;
+import cbir.metric.MetricUtility;
+
+/**
+ * Keeps the distances from every image of the database to a few pivot images.
+ * With the distances from another image (e.g. a shifted query) to the pivots
+ * the triangle inequality bounds its distance to every image of the database
+ * without computing it:
+ * 
+ * |d(q,p) - d(p,x)| <= d(q,x) <= d(q,p) + d(p,x)
+ * 
+ * The pivots are chosen farthest-first, so they are spread over the database.
+ * The distances are kept in arrays indexed by the ids of the images (see
+ * ImageCatalog). NOTE: the bounds are only valid if the metric is a true
+ * metric (e.g. Euclidean or WeightedEuclidean, but not Cosine). If the weights
+ * of the metric are changed the distances are outdated (see isCurrent()).
+ * 
+ * @author Chris Wendler
+ */
+public class PivotDistances {
+	/** The descriptor type the distances are computed for. */
+	private final DescriptorType type;
+	/** The metric the distances are computed with. */
+	private final Metric metric;
+	/** The images of the database, the index is the id. */
+	private final ImageContainer[] images;
+	/** The pivot images. */
+	private final ImageContainer[] pivots;
+	/** The distances from every pivot to every image, indexed by the id. */
+	private final double[][] distances;
+	/** The version of the weights of the metric (see MetricUtility.version). */
+	private final int version;
+
+	/**
+	 * Constructor. Chooses the pivots and computes the distances from them to
+	 * all images of the database.
+	 * 
+	 * @param database
+	 *            the images of the database.
+	 * @param metric
+	 *            the metric the distances are computed with.
+	 * @param type
+	 *            the descriptor type of interest.
+	 * @param count
+	 *            the number of pivots.
+	 */
+	public PivotDistances(List<ImageContainer> database, Metric metric,
+			DescriptorType type, int count) {
+		this.type = type;
+		this.metric = metric;
+		int size = 0;
+		for (ImageContainer image : database)
+			size = Math.max(size, image.getId() + 1);
+		images = new ImageContainer[size];
+		for (ImageContainer image : database)
+			if (image.getId() >= 0)
+				images[image.getId()] = image;
+
+		// metrics like WeightedEuclidean initialize their weights with the
+		// first distance
+		if (!database.isEmpty())
+			metric.distance(database.get(0), database.get(0), type);
+		version = MetricUtility.version(metric);
+
+		count = Math.min(count, database.size());
+		pivots = new ImageContainer[count];
+		distances = new double[count][];
+		// the distance of every image to the nearest pivot chosen so far
+		double[] nearest = new double[size];
+		Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+		ImageContainer next = count > 0 ? database.get(0) : null;
+		for (int p = 0; p < count; p++) {
+			ImageContainer pivot = next;
+			pivots[p] = pivot;
+			distances[p] = new double[size];
+			double max = -1;
+			for (int id = 0; id < size; id++)
+				if (images[id] != null) {
+					double distance = metric.distance(pivot, images[id], type);
+					distances[p][id] = distance;
+					nearest[id] = Math.min(nearest[id], distance);
+					if (nearest[id] > max) {
+						max = nearest[id];
+						next = images[id];
+					}
+				}
+		}
+	}
+
+	/**
+	 * @return the distances from an image to the pivots.
+	 */
+	public double[] toPivots(ImageContainer image) {
+		double[] result = new double[pivots.length];
+		for (int p = 0; p < pivots.length; p++)
+			result[p] = metric.distance(image, pivots[p], type);
+		return result;
+	}
+
+	/**
+	 * @param toPivots
+	 *            the distances from an image q to the pivots.
+	 * @return a lower bound of the distance from q to the image, 0 if the
+	 *         image is not part of the database.
+	 */
+	public double lowerBound(double[] toPivots, ImageContainer image) {
+		int id = image.getId();
+		if (id < 0 || id >= images.length || images[id] != image)
+			return 0;
+		double bound = 0;
+		for (int p = 0; p < toPivots.length; p++)
+			bound = Math.max(bound, Math.abs(toPivots[p] - distances[p][id]));
+		return bound;
+	}
+
+	/**
+	 * @param toPivots
+	 *            the distances from an image q to the pivots.
+	 * @return an upper bound of the distance from q to the image, infinity if
+	 *         the image is not part of the database.
+	 */
+	public double upperBound(double[] toPivots, ImageContainer image) {
+		int id = image.getId();
+		if (id < 0 || id >= images.length || images[id] != image)
+			return Double.POSITIVE_INFINITY;
+		double bound = Double.POSITIVE_INFINITY;
+		for (int p = 0; p < toPivots.length; p++)
+			bound = Math.min(bound, toPivots[p] + distances[p][id]);
+		return bound;
+	}
+
+	/**
+	 * @return true if the weights of the metric have not changed since the
+	 *         distances were computed.
+	 */
+	public boolean isCurrent() {
+		return version == MetricUtility.version(metric);
+	}
+
+	public DescriptorType getType() {
+		return type;
+	}
+
+}
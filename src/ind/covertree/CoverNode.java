@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package ind.covertree;
+
+import cbir.image.ImageContainer;
+
+/**
+ * Implements a node of a cover tree. Every node has a point (image), the
+ * maximum distance from its point to any image stored below it, the child
+ * nodes and a bucket of images that were not worth another level.
+ *
+ * Every image of the tree is stored exactly once, either as the point of a
+ * node or in the bucket of a node.
+ *
+ * @author Matej Stanic
+ */
+public class CoverNode {
+	/** The image which is contained in the node. */
+	private final ImageContainer image;
+	/** Maximum distance from the node image to any image of the subtree. */
+	private double maxDistance = 0;
+	/** The child nodes, null for a leaf. */
+	private CoverNode[] children = null;
+	/** Images stored directly in this node, null if there are none. */
+	private ImageContainer[] bucket = null;
+	/** Distances from the node image to the images of the bucket. */
+	private double[] bucketDistances = null;
+
+	/**
+	 * Constructor of CoverNode.
+	 */
+	public CoverNode(ImageContainer image) {
+		super();
+		this.image = image;
+	}
+
+	public ImageContainer getImage() {
+		return image;
+	}
+
+	public double getMaxDistance() {
+		return maxDistance;
+	}
+
+	public void setMaxDistance(double maxDistance) {
+		this.maxDistance = maxDistance;
+	}
+
+	public CoverNode[] getChildren() {
+		return children;
+	}
+
+	public void setChildren(CoverNode[] children) {
+		this.children = children;
+	}
+
+	public ImageContainer[] getBucket() {
+		return bucket;
+	}
+
+	public double[] getBucketDistances() {
+		return bucketDistances;
+	}
+
+	public void setBucket(ImageContainer[] bucket, double[] bucketDistances) {
+		this.bucket = bucket;
+		this.bucketDistances = bucketDistances;
+	}
+
+}
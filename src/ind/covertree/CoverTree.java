@@ -0,0 +1,522 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package ind.covertree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+import cbir.interfaces.SeededIndex;
+import cbir.interfaces.Metric;
+import cbir.metric.MetricUtility;
+
+/**
+ * Implements a cover tree for exact nearest neighbor search in general metric
+ * spaces.
+ *
+ * The tree is built top-down from a batch of images. A node covering images
+ * up to a distance of base^i is split into children whose images lie within
+ * base^(i-1) of the child image; the images close to the node image itself are
+ * split again on the next lower level (the self-child chain of the classic
+ * cover tree is collapsed into the node, so every image is stored once).
+ * Independent subtrees are built in parallel on a fork/join pool.
+ *
+ * The search is a best-first traversal that skips every subtree whose
+ * covering ball cannot contain an image closer than the current k-th result.
+ * The cost grows with the intrinsic dimensionality of the data instead of the
+ * descriptor length, which makes the tree a good fit for CEDD and MPEG-EHD.
+ * NOTE: the pruning relies on the triangle inequality, so the metric has to be
+ * a true metric (e.g. Euclidean or WeightedEuclidean with fixed weights, but
+ * not Cosine). A tree can be searched with other weights than it was built
+ * with (e.g. the weights of MARS), the distances stored in the tree are then
+ * scaled by how much the weights can stretch them (see
+ * MetricUtility.distortion); for other metrics all images are compared.
+ *
+ * @author Matej Stanic
+ *
+ */
+public class CoverTree implements SeededIndex {
+	/** Default base of the radii of the levels. */
+	public static final double DEFAULT_BASE = 2.d;
+	/** Default amount of images below which a node is not split anymore. */
+	public static final int DEFAULT_LEAF_SIZE = 16;
+	/** Below this amount of distances the computation is not parallelized. */
+	private static final int PARALLEL_THRESHOLD = 4096;
+
+	/** Root node of the cover tree. */
+	private final CoverNode root;
+	/** Descriptor type used. */
+	private final DescriptorType type;
+	/** The metric the tree was built with. */
+	private final Metric metric;
+	/** Base of the radii of the levels. */
+	private final double base;
+	/** Amount of images below which a node is not split anymore. */
+	private final int leafSize;
+	/** All images of the tree. */
+	private final ImageContainer[] images;
+
+	/**
+	 * Constructor. Constructs a cover tree out of a given list of images using
+	 * all available processors and the default parameters.
+	 *
+	 * @param list
+	 *            List of images to construct the tree of.
+	 * @param metric
+	 *            Metric used for building (and later for searching).
+	 * @param type
+	 *            Descriptor type which is indexed.
+	 */
+	public CoverTree(List<ImageContainer> list, Metric metric,
+			DescriptorType type) {
+		this(list, metric, type, DEFAULT_BASE, DEFAULT_LEAF_SIZE, Runtime
+				.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor. Constructs a cover tree out of a given list of images.
+	 *
+	 * @param list
+	 *            List of images to construct the tree of.
+	 * @param metric
+	 *            Metric used for building (and later for searching).
+	 * @param type
+	 *            Descriptor type which is indexed.
+	 * @param base
+	 *            Base of the radii of the levels (has to be bigger than 1).
+	 * @param leafSize
+	 *            Amount of images below which a node is not split anymore.
+	 * @param threads
+	 *            Number of threads used for the construction.
+	 */
+	public CoverTree(List<ImageContainer> list, Metric metric,
+			DescriptorType type, double base, int leafSize, int threads) {
+		if (base <= 1)
+			throw new IllegalArgumentException("base has to be bigger than 1");
+		this.type = type;
+		this.metric = metric;
+		this.base = base;
+		this.leafSize = Math.max(1, leafSize);
+		this.images = list.toArray(new ImageContainer[list.size()]);
+		if (images.length == 0) {
+			root = null;
+			return;
+		}
+
+		// metrics like WeightedEuclidean initialize themselves lazily on the
+		// first call, this must not happen concurrently
+		metric.distance(images[0], images[0], type);
+
+		int[] members = new int[images.length - 1];
+		for (int i = 0; i < members.length; i++)
+			members[i] = i + 1;
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			double[] distances = new double[members.length];
+			pool.invoke(new DistanceTask(0, members, distances, 0,
+					members.length));
+			root = pool.invoke(new BuildTask(0, members, distances));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Computes the distances from one image to a range of other images, splits
+	 * the range if it is big enough.
+	 */
+	private class DistanceTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int center;
+		private final int[] members;
+		private final double[] distances;
+		private final int from, to;
+
+		DistanceTask(int center, int[] members, double[] distances, int from,
+				int to) {
+			this.center = center;
+			this.members = members;
+			this.distances = distances;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_THRESHOLD) {
+				for (int i = from; i < to; i++)
+					distances[i] = metric.distance(images[center],
+							images[members[i]], type);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new DistanceTask(center, members, distances, from,
+					middle), new DistanceTask(center, members, distances,
+					middle, to));
+		}
+	}
+
+	/**
+	 * Builds the subtree of one image given all images it has to cover and
+	 * their distances to it.
+	 */
+	private class BuildTask extends RecursiveTask<CoverNode> {
+		private static final long serialVersionUID = 1L;
+		private final int center;
+		private final int[] members;
+		private final double[] distances;
+
+		BuildTask(int center, int[] members, double[] distances) {
+			this.center = center;
+			this.members = members;
+			this.distances = distances;
+		}
+
+		@Override
+		protected CoverNode compute() {
+			CoverNode node = new CoverNode(images[center]);
+			node.setMaxDistance(max(distances, distances.length));
+
+			List<BuildTask> children = new ArrayList<BuildTask>();
+			int[] near = members;
+			double[] nearDistances = distances;
+			int nearSize = members.length;
+			double radius = max(nearDistances, nearSize);
+			while (nearSize > leafSize && radius > 0) {
+				// images further away than the radius of the next level get
+				// covered by new children, the others stay with this node
+				double childRadius = Math.pow(base,
+						Math.ceil(Math.log(radius) / Math.log(base)) - 1);
+				if (childRadius >= radius) // rounding of the logarithm
+					childRadius = radius / base;
+				int[] far = new int[nearSize];
+				double[] farDistances = new double[nearSize];
+				int farSize = 0, keep = 0;
+				for (int i = 0; i < nearSize; i++) {
+					if (nearDistances[i] > childRadius) {
+						far[farSize] = near[i];
+						farDistances[farSize++] = nearDistances[i];
+					} else {
+						near[keep] = near[i];
+						nearDistances[keep++] = nearDistances[i];
+					}
+				}
+				nearSize = keep;
+				split(far, farDistances, farSize, childRadius, children);
+				radius = max(nearDistances, nearSize);
+			}
+
+			ImageContainer[] bucket = new ImageContainer[nearSize];
+			for (int i = 0; i < nearSize; i++)
+				bucket[i] = images[near[i]];
+			if (nearSize > 0)
+				node.setBucket(bucket, Arrays.copyOf(nearDistances, nearSize));
+
+			if (children.size() > 0) {
+				invokeAll(children);
+				CoverNode[] childNodes = new CoverNode[children.size()];
+				for (int i = 0; i < childNodes.length; i++)
+					childNodes[i] = children.get(i).join();
+				node.setChildren(childNodes);
+			}
+			return node;
+		}
+
+		/**
+		 * Greedily covers the given images by balls of the given radius whose
+		 * centers are the images farthest away from the node image.
+		 */
+		private void split(int[] far, double[] farDistances, int farSize,
+				double childRadius, List<BuildTask> children) {
+			while (farSize > 0) {
+				int first = 0;
+				for (int i = 1; i < farSize; i++)
+					if (farDistances[i] > farDistances[first])
+						first = i;
+				int childCenter = far[first];
+				far[first] = far[farSize - 1];
+				farDistances[first] = farDistances[farSize - 1];
+				farSize--;
+
+				double[] toCenter = new double[farSize];
+				DistanceTask task = new DistanceTask(childCenter, far,
+						toCenter, 0, farSize);
+				if (farSize > PARALLEL_THRESHOLD)
+					task.invoke();
+				else
+					task.compute();
+
+				int[] childMembers = new int[farSize];
+				double[] childDistances = new double[farSize];
+				int childSize = 0, keep = 0;
+				for (int i = 0; i < farSize; i++) {
+					if (toCenter[i] <= childRadius) {
+						childMembers[childSize] = far[i];
+						childDistances[childSize++] = toCenter[i];
+					} else {
+						far[keep] = far[i];
+						farDistances[keep++] = farDistances[i];
+					}
+				}
+				farSize = keep;
+				children.add(new BuildTask(childCenter, Arrays.copyOf(
+						childMembers, childSize), Arrays.copyOf(
+						childDistances, childSize)));
+			}
+		}
+	}
+
+	/**
+	 * Returns the maximum of the first size values of an array, 0 if size is
+	 * 0.
+	 */
+	private static double max(double[] values, int size) {
+		double result = 0;
+		for (int i = 0; i < size; i++)
+			if (values[i] > result)
+				result = values[i];
+		return result;
+	}
+
+	/**
+	 * A node of the tree together with the distance of its image to the query
+	 * and a lower bound for the distance of all images below it.
+	 */
+	private static class Candidate {
+		final CoverNode node;
+		final double distance;
+		final double lowerBound;
+
+		Candidate(CoverNode node, double distance, double stretch) {
+			this.node = node;
+			this.distance = distance;
+			this.lowerBound = Math.max(0, distance - stretch
+					* node.getMaxDistance());
+		}
+	}
+
+	/**
+	 * An image of the result set together with its distance to the query.
+	 */
+	private static class Result {
+		final ImageContainer image;
+		final double distance;
+
+		Result(ImageContainer image, double distance) {
+			this.image = image;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * Search for a certain number of nearest neighbors.
+	 *
+	 * @param num
+	 *            The number of nearest neighbors to be retrieved.
+	 * @param image
+	 *            Image to find neighbors of.
+	 * @param metric
+	 *            Metric used for finding neighbors (the metric the tree was
+	 *            built with or a reweighted one).
+	 * @param type
+	 *            Descriptor type which is considered.
+	 * @return A list of the num nearest neighbors sorted by increasing
+	 *         distance, null if image is null.
+	 */
+	@Override
+	public List<ImageContainer> nearestNeighborSearch(int num,
+			final ImageContainer image, final Metric metric,
+			final DescriptorType type) {
+		return nearestNeighborSearch(num, image, metric, type, null);
+	}
+
+	/**
+	 * Search for a certain number of nearest neighbors, warm started with some
+	 * images: nodes and images farther away than the bound of the seed are
+	 * skipped before num images have been found.
+	 *
+	 * @param num
+	 *            The number of nearest neighbors to be retrieved.
+	 * @param image
+	 *            Image to find neighbors of.
+	 * @param metric
+	 *            Metric used for finding neighbors (the metric the tree was
+	 *            built with or a reweighted one).
+	 * @param type
+	 *            Descriptor type which is considered.
+	 * @param seed
+	 *            Images which are probably close to the image, may be null.
+	 * @return A list of the num nearest neighbors sorted by increasing
+	 *         distance, null if image is null.
+	 */
+	@Override
+	public List<ImageContainer> nearestNeighborSearch(int num,
+			final ImageContainer image, final Metric metric,
+			final DescriptorType type, List<ImageContainer> seed) {
+		if (image == null)
+			return null;
+		List<ImageContainer> list = new ArrayList<ImageContainer>(num);
+		if (root == null || num <= 0)
+			return list;
+
+		// worst result on top
+		PriorityQueue<Result> results = new PriorityQueue<Result>(num + 1,
+				new Comparator<Result>() {
+					@Override
+					public int compare(Result a, Result b) {
+						return Double.compare(b.distance, a.distance);
+					}
+				});
+		// most promising node on top
+		PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>(
+				64, new Comparator<Candidate>() {
+					@Override
+					public int compare(Candidate a, Candidate b) {
+						return Double.compare(a.lowerBound, b.lowerBound);
+					}
+				});
+
+		double rootDistance = metric.distance(image, root.getImage(), type);
+		// lo * d(a,b) <= metric(a,b) <= hi * d(a,b) for the metric d the tree
+		// was built with
+		double[] scale = MetricUtility.distortion(this.metric, metric, image
+				.getDescriptor(type).size());
+		double bound = MetricUtility.seedBound(image, seed, num, metric, type);
+		if (scale == null) {
+			for (ImageContainer curr : images)
+				offer(results, num, curr, metric.distance(image, curr, type));
+			candidates.clear();
+		} else {
+			offer(results, num, root.getImage(), rootDistance);
+			candidates.add(new Candidate(root, rootDistance, scale[1]));
+		}
+
+		while (!candidates.isEmpty()) {
+			Candidate candidate = candidates.poll();
+			if (candidate.lowerBound > limit(results, num, bound))
+				break;
+			CoverNode node = candidate.node;
+
+			ImageContainer[] bucket = node.getBucket();
+			if (bucket != null) {
+				double[] bucketDistances = node.getBucketDistances();
+				for (int i = 0; i < bucket.length; i++) {
+					// triangle inequality: d(q,x) >= |d(q,p) - d(p,x)|
+					double lowerBound = Math.max(candidate.distance
+							- scale[1] * bucketDistances[i], scale[0]
+							* bucketDistances[i] - candidate.distance);
+					if (lowerBound > limit(results, num, bound))
+						continue;
+					offer(results, num, bucket[i],
+							metric.distance(image, bucket[i], type));
+				}
+			}
+
+			CoverNode[] children = node.getChildren();
+			if (children != null) {
+				for (CoverNode child : children) {
+					double distance = metric.distance(image, child.getImage(),
+							type);
+					offer(results, num, child.getImage(), distance);
+					Candidate next = new Candidate(child, distance, scale[1]);
+					if (next.lowerBound <= limit(results, num, bound))
+						candidates.add(next);
+				}
+			}
+		}
+
+		Result[] sorted = new Result[results.size()];
+		for (int i = sorted.length - 1; i >= 0; i--)
+			sorted[i] = results.poll();
+		for (Result result : sorted)
+			list.add(result.image);
+		return list;
+	}
+
+	/**
+	 * @return the distance the nearest neighbors are not farther away than,
+	 *         the distance of the worst result or the bound of the seed if it
+	 *         is smaller or there are not enough results yet.
+	 */
+	private static double limit(PriorityQueue<Result> results, int num,
+			double bound) {
+		if (results.size() < num)
+			return bound;
+		return Math.min(bound, results.peek().distance);
+	}
+
+	/**
+	 * Inserts an image into the result set if it is better than the current
+	 * worst result or if the result set is not full yet.
+	 */
+	private static void offer(PriorityQueue<Result> results, int num,
+			ImageContainer image, double distance) {
+		if (results.size() < num) {
+			results.add(new Result(image, distance));
+		} else if (distance < results.peek().distance) {
+			results.poll();
+			results.add(new Result(image, distance));
+		}
+	}
+
+	public CoverNode getRoot() {
+		return root;
+	}
+
+	public DescriptorType getType() {
+		return type;
+	}
+
+	public Metric getMetric() {
+		return metric;
+	}
+
+	/**
+	 * @return the number of images stored in the tree.
+	 */
+	public int size() {
+		return images.length;
+	}
+
+}
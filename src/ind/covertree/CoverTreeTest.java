@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package ind.covertree;
+
+import ind.kdtree.KDTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import cbir.image.Descriptor;
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+import cbir.interfaces.Metric;
+import cbir.metric.Euclidean;
+import cbir.retriever.ComparatorDistanceBased;
+import cbir.retriever.Utility;
+
+/**
+ * A class for testing and debugging the cover tree. Random CEDD-like
+ * descriptors are indexed and the results of the tree are compared with the
+ * results of a linear scan and of the k-d-tree. For testing purposes.
+ *
+ * @author Matej Stanic
+ *
+ */
+public class CoverTreeTest {
+
+	public static void main(String args[]) {
+		int size = 20000, queries = 50, num = 20;
+		Random rnd = new Random(42);
+		Metric metric = new Euclidean();
+		DescriptorType type = DescriptorType.CEDD;
+
+		// descriptors around a few centers, like images of some categories
+		double[][] centers = new double[10][144];
+		for (double[] center : centers)
+			for (int i = 0; i < center.length; i++)
+				center[i] = rnd.nextInt(8);
+		List<ImageContainer> database = new ArrayList<ImageContainer>(size);
+		for (int j = 0; j < size; j++) {
+			double[] center = centers[rnd.nextInt(centers.length)];
+			double[] values = new double[center.length];
+			for (int i = 0; i < values.length; i++)
+				values[i] = Math.max(0, center[i] + rnd.nextGaussian());
+			database.add(new ImageContainer("image" + j, new Descriptor(type,
+					values, 9.d)));
+		}
+
+		long starttime = System.currentTimeMillis();
+		CoverTree tree = new CoverTree(database, metric, type);
+		System.out.println("cover tree built in "
+				+ (System.currentTimeMillis() - starttime) + " ms");
+		starttime = System.currentTimeMillis();
+		KDTree kdtree = new KDTree(new ArrayList<ImageContainer>(database),
+				144, type);
+		System.out.println("k-d-tree built in "
+				+ (System.currentTimeMillis() - starttime) + " ms");
+
+		long linearTime = 0, coverTime = 0, kdTime = 0;
+		int mistakes = 0;
+		for (int q = 0; q < queries; q++) {
+			ImageContainer query = database.get(rnd.nextInt(size));
+
+			starttime = System.currentTimeMillis();
+			List<ImageContainer> expected = Utility.findNearestNeighbors(
+					database, num, new ComparatorDistanceBased(query, metric,
+							type));
+			linearTime += System.currentTimeMillis() - starttime;
+
+			starttime = System.currentTimeMillis();
+			List<ImageContainer> result = tree.nearestNeighborSearch(num,
+					query, metric, type);
+			coverTime += System.currentTimeMillis() - starttime;
+
+			starttime = System.currentTimeMillis();
+			kdtree.nearestNeighborSearch(num, query, metric, type);
+			kdTime += System.currentTimeMillis() - starttime;
+
+			for (int i = 0; i < num; i++)
+				if (metric.distance(query, expected.get(i), type) != metric
+						.distance(query, result.get(i), type))
+					mistakes++;
+		}
+		System.out.println("linear scan: " + linearTime + " ms");
+		System.out.println("cover tree: " + coverTime + " ms");
+		System.out.println("k-d-tree: " + kdTime + " ms");
+		System.out.println("wrong results: " + mistakes);
+	}
+}
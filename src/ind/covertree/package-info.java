@@ -0,0 +1,5 @@
+/**
+ * This package contains a cover tree index structure for exact nearest neighbor search
+ * with arbitrary metrics, which is built in parallel from a batch of images.
+ */
+package ind.covertree;
@@ -84,11 +84,11 @@ public class KDNode implements Comparable<KDNode> {
 	public static int compareTo(int depth, int k, ImageContainer image1, ImageContainer image2,
 			DescriptorType type) {
 		int dim = depth % k;
-		double[] descriptor1 = image1.getDescriptor(type).getValues();
-		double[] descriptor2 = image2.getDescriptor(type).getValues();
-		if (descriptor1[dim] < descriptor2[dim])
+		double value1 = image1.getDescriptor(type).get(dim);
+		double value2 = image2.getDescriptor(type).get(dim);
+		if (value1 < value2)
 			return -1;
-		if (descriptor1[dim] > descriptor2[dim])
+		if (value1 > value2)
 			return 1;
 		return 0;
 	}
@@ -28,7 +28,9 @@ import java.util.TreeSet;
 
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
+import cbir.interfaces.SeededIndex;
 import cbir.interfaces.Metric;
+import cbir.metric.MetricUtility;
 
 /**
  * Implements a k-d-tree and some essential functions.
@@ -43,7 +45,7 @@ import cbir.interfaces.Metric;
  * 
  */
 
-public class KDTree {
+public class KDTree implements SeededIndex {
 
 	/** Dimensionality of the node descriptor. */
 	private final int k;
@@ -66,6 +68,19 @@ public class KDTree {
 
 	}
 
+	/**
+	 * Constructor. Creates a k-d-tree from an already built tree, e.g. one
+	 * restored from a snapshot.
+	 * 
+	 * @param root
+	 *            The root node of the tree.
+	 */
+	public KDTree(KDNode root, int k, DescriptorType type) {
+		this.k = k;
+		this.type = type;
+		this.root = root;
+	}
+
 	/**
 	 * Create a k-d-tree from a list of Images.
 	 * 
@@ -96,11 +111,11 @@ public class KDTree {
 		Collections.sort(list, new Comparator<ImageContainer>() {
 			@Override
 			public int compare(ImageContainer arg0, ImageContainer arg1) {
-				double[] descriptor0 = arg0.getDescriptor(type).getValues();
-				double[] descriptor1 = arg1.getDescriptor(type).getValues();
-				if (descriptor0[dim] < descriptor1[dim])
+				double value0 = arg0.getDescriptor(type).get(dim);
+				double value1 = arg1.getDescriptor(type).get(dim);
+				if (value0 < value1)
 					return -1;
-				if (descriptor0[dim] > descriptor1[dim])
+				if (value0 > value1)
 					return 1;
 				return 0;
 			}
@@ -345,8 +360,33 @@ public class KDTree {
 	 *            Descriptor type which is considered.
 	 * @return A list of the num nearest neighbors, null if image is null.
 	 */
+	@Override
 	public List<ImageContainer> nearestNeighborSearch(int num, final ImageContainer image,
 			final Metric metric, final DescriptorType type) {
+		return nearestNeighborSearch(num, image, metric, type, null);
+	}
+
+	/**
+	 * Search for a certain number of nearest neighbors, warm started with some
+	 * images: their distances bound the radius of the search before num images
+	 * have been found.
+	 * 
+	 * @param num
+	 *            The number of nearest neighbors to be retrieved.
+	 * @param image
+	 *            Image to find neighbors of.
+	 * @param metric
+	 *            Metric used for finding neighbors.
+	 * @param type
+	 *            Descriptor type which is considered.
+	 * @param seed
+	 *            Images which are probably close to the image, may be null.
+	 * @return A list of the num nearest neighbors, null if image is null.
+	 */
+	@Override
+	public List<ImageContainer> nearestNeighborSearch(int num, final ImageContainer image,
+			final Metric metric, final DescriptorType type,
+			List<ImageContainer> seed) {
 
 		if (image == null)
 			return null;
@@ -388,12 +428,19 @@ public class KDTree {
 		if (leaf != null) {
 			// Used to not re-examine nodes
 			Set<KDNode> examined = new HashSet<KDNode>();
+			// a weighted metric changes the distance to the splitting planes
+			// (its weights are initialized by the first distance)
+			metric.distance(image, leaf.getImage(), type);
+			double[] factors = MetricUtility.axisFactors(metric, k);
+			double bound = MetricUtility.seedBound(image, seed, num, metric,
+					type);
 
 			// Go up the tree, looking for better solutions
 			node = leaf;
 			while (node != null) {
 				// Search node is called for every parent of the nearest leaf
-				searchNode(image, node, num, results, examined, type, metric);
+				searchNode(image, node, num, results, examined, type, metric,
+						factors, bound);
 				node = node.getParent();
 			}
 		}
@@ -420,10 +467,18 @@ public class KDTree {
 	 * current node is less than the distance (overall coordinates) from the
 	 * search point to the current best.
 	 * 
+	 * For a weighted metric the difference along the axis is scaled with the
+	 * square root of the weight of the axis (see MetricUtility.axisFactors),
+	 * so an index can be searched with the weights of every query.
+	 * 
+	 * The radius is never larger than the bound of the seed of the search (see
+	 * MetricUtility.seedBound), so a warm started search prunes from the
+	 * first node on.
+	 * 
 	 */
 	private static final void searchNode(ImageContainer image, KDNode node, int num,
 			TreeSet<KDNode> results, Set<KDNode> examined, DescriptorType type,
-			Metric metric) {
+			Metric metric, double[] factors, double bound) {
 		// search for better results starting from the current node
 		examined.add(node);
 
@@ -460,6 +515,12 @@ public class KDTree {
 
 		// get plane axis of the current node
 		int dim = node.getDepth() % node.getK();
+		// the largest difference along the axis an image within lastDistance
+		// can have
+		double radius = Math.min(lastDistance, bound);
+		if (factors != null)
+			radius = factors[dim] > 0 ? radius / factors[dim]
+					: Double.POSITIVE_INFINITY;
 		// specify children
 		KDNode lesser = node.getLesser();
 		KDNode greater = node.getGreater();
@@ -470,13 +531,14 @@ public class KDTree {
 			double p1 = Double.MIN_VALUE;
 			double p2 = Double.MIN_VALUE;
 
-			p1 = node.getImage().getDescriptor(type).getValues()[dim];
-			p2 = image.getDescriptor(type).getValues()[dim] - lastDistance;
+			p1 = node.getImage().getDescriptor(type).get(dim);
+			p2 = image.getDescriptor(type).get(dim) - radius;
 			boolean lineIntersectsCube = ((p2 <= p1) ? true : false);
 
 			// Continue down lesser branch
 			if (lineIntersectsCube) {
-				searchNode(image, lesser, num, results, examined, type, metric);
+				searchNode(image, lesser, num, results, examined, type,
+						metric, factors, bound);
 			}
 		}
 
@@ -487,13 +549,14 @@ public class KDTree {
 			double p1 = Double.MIN_VALUE;
 			double p2 = Double.MIN_VALUE;
 
-			p1 = node.getImage().getDescriptor(type).getValues()[dim];
-			p2 = image.getDescriptor(type).getValues()[dim] + lastDistance;
+			p1 = node.getImage().getDescriptor(type).get(dim);
+			p2 = image.getDescriptor(type).get(dim) + radius;
 			boolean lineIntersectsCube = ((p2 >= p1) ? true : false);
 
 			// Continue down greater branch
 			if (lineIntersectsCube) {
-				searchNode(image, greater, num, results, examined, type, metric);
+				searchNode(image, greater, num, results, examined, type,
+						metric, factors, bound);
 			}
 		}
 
@@ -503,4 +566,12 @@ public class KDTree {
 		return root;
 	}
 
+	public int getK() {
+		return k;
+	}
+
+	public DescriptorType getType() {
+		return type;
+	}
+
 }
@@ -21,7 +21,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
-import org.dom4j.DocumentException;
+import javax.xml.stream.XMLStreamException;
 
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
@@ -69,7 +69,7 @@ public class KDTreeTest {
 					+ tree.contains(database.get(18)));
 		} catch (IOException e) {
 			e.printStackTrace();
-		} catch (DocumentException e) {
+		} catch (XMLStreamException e) {
 			e.printStackTrace();
 		}
 	}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package ind.permutation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+import cbir.interfaces.Index;
+import cbir.interfaces.Metric;
+import cbir.metric.MetricUtility;
+
+/**
+ * Implements a permutation prefix index for approximate nearest neighbor
+ * search with arbitrary metrics.
+ *
+ * A set of pivot images is chosen at random. Every image is represented by the
+ * numbers of its "prefixLength" closest pivots, ordered by distance (the
+ * prefix of the permutation of the pivots), which takes one byte per pivot.
+ * Images whose permutations share a long prefix are likely close to each
+ * other. The prefixes are kept sorted, so all images sharing a prefix form a
+ * contiguous range that is found by binary search (an implicit prefix tree).
+ *
+ * A search computes the prefix of the query, takes the range of the longest
+ * prefix that still contains enough candidates, picks the candidates whose
+ * permutations agree best with the query (Spearman footrule) and ranks them
+ * exactly with the metric. Since only distances between images are used, the
+ * index works with any metric, e.g. WeightedCosine with learned weights.
+ *
+ * A search with another metric than the one the index was built with (e.g.
+ * with the weights of MARS) computes the prefix of the query with the metric
+ * of the index and ranks more candidates exactly, as many more as the
+ * weights can change the order of the distances (see MetricUtility.stretch).
+ *
+ * @author Matej Stanic
+ *
+ */
+public class PermutationPrefixIndex implements Index {
+	/** Default number of pivots. */
+	public static final int DEFAULT_PIVOTS = 64;
+	/** Default length of the stored permutation prefixes. */
+	public static final int DEFAULT_PREFIX_LENGTH = 6;
+	/** Default number of candidates ranked exactly by a search. */
+	public static final int DEFAULT_CANDIDATES = 1000;
+	/** Maximum factor the candidates are multiplied with for other metrics. */
+	private static final double MAX_STRETCH = 4;
+	/** Below this amount of images the prefixes are computed sequentially. */
+	private static final int PARALLEL_THRESHOLD = 1024;
+
+	/** Descriptor type used. */
+	private final DescriptorType type;
+	/** The metric the prefixes were computed with. */
+	private final Metric metric;
+	/** The pivot images. */
+	private final ImageContainer[] pivots;
+	/** Length of the stored permutation prefixes. */
+	private final int prefixLength;
+	/** The images in the order of their prefixes. */
+	private final ImageContainer[] images;
+	/** The prefixes of all images (prefixLength bytes each), sorted. */
+	private final byte[] prefixes;
+	/** Number of candidates ranked exactly by a search. */
+	private int candidates = DEFAULT_CANDIDATES;
+
+	/**
+	 * Constructor. Builds the index with the default parameters using all
+	 * available processors.
+	 *
+	 * @param list
+	 *            List of images to construct the index of.
+	 * @param metric
+	 *            Metric used to compare images with the pivots.
+	 * @param type
+	 *            Descriptor type which is indexed.
+	 */
+	public PermutationPrefixIndex(List<ImageContainer> list, Metric metric,
+			DescriptorType type) {
+		this(list, metric, type, DEFAULT_PIVOTS, DEFAULT_PREFIX_LENGTH,
+				Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor. Builds the index.
+	 *
+	 * @param list
+	 *            List of images to construct the index of.
+	 * @param metric
+	 *            Metric used to compare images with the pivots.
+	 * @param type
+	 *            Descriptor type which is indexed.
+	 * @param pivotCount
+	 *            Number of pivots (at most 256).
+	 * @param prefixLength
+	 *            Length of the stored permutation prefixes.
+	 * @param threads
+	 *            Number of threads used for the construction.
+	 */
+	public PermutationPrefixIndex(List<ImageContainer> list, Metric metric,
+			DescriptorType type, int pivotCount, int prefixLength, int threads) {
+		if (pivotCount > 256)
+			throw new IllegalArgumentException("at most 256 pivots");
+		this.type = type;
+		this.metric = metric;
+		final ImageContainer[] all = list.toArray(new ImageContainer[list
+				.size()]);
+
+		// choose distinct random pivots
+		Random rnd = new Random(42);
+		int[] shuffled = new int[all.length];
+		for (int i = 0; i < shuffled.length; i++)
+			shuffled[i] = i;
+		pivots = new ImageContainer[Math.min(pivotCount, all.length)];
+		for (int i = 0; i < pivots.length; i++) {
+			int j = i + rnd.nextInt(shuffled.length - i);
+			int tmp = shuffled[i];
+			shuffled[i] = shuffled[j];
+			shuffled[j] = tmp;
+			pivots[i] = all[shuffled[i]];
+		}
+		this.prefixLength = Math.min(prefixLength, pivots.length);
+
+		// metrics like WeightedEuclidean initialize themselves lazily on the
+		// first call, this must not happen concurrently
+		if (all.length > 0)
+			metric.distance(all[0], all[0], type);
+
+		final byte[] unsorted = new byte[all.length * this.prefixLength];
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.invoke(new PrefixTask(all, unsorted, 0, all.length));
+		} finally {
+			pool.shutdown();
+		}
+
+		// sort the images by their prefixes
+		Integer[] order = new Integer[all.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		final int length = this.prefixLength;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return comparePrefix(unsorted, a * length, unsorted, b
+						* length, length);
+			}
+		});
+		images = new ImageContainer[all.length];
+		prefixes = new byte[unsorted.length];
+		for (int i = 0; i < order.length; i++) {
+			images[i] = all[order[i]];
+			System.arraycopy(unsorted, order[i] * length, prefixes, i
+					* length, length);
+		}
+	}
+
+	/**
+	 * Computes the prefixes of a range of images, splits the range if it is
+	 * big enough.
+	 */
+	private class PrefixTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ImageContainer[] all;
+		private final byte[] target;
+		private final int from, to;
+
+		PrefixTask(ImageContainer[] all, byte[] target, int from, int to) {
+			this.all = all;
+			this.target = target;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					int[] permutation = permutation(all[i], metric);
+					for (int j = 0; j < prefixLength; j++)
+						target[i * prefixLength + j] = (byte) permutation[j];
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new PrefixTask(all, target, from, middle),
+					new PrefixTask(all, target, middle, to));
+		}
+	}
+
+	/**
+	 * Computes the numbers of all pivots ordered by their distance to the
+	 * given image.
+	 */
+	private int[] permutation(ImageContainer image, Metric metric) {
+		final double[] distances = new double[pivots.length];
+		Integer[] order = new Integer[pivots.length];
+		for (int i = 0; i < pivots.length; i++) {
+			distances[i] = metric.distance(image, pivots[i], type);
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(distances[a], distances[b]);
+			}
+		});
+		int[] result = new int[order.length];
+		for (int i = 0; i < order.length; i++)
+			result[i] = order[i];
+		return result;
+	}
+
+	/**
+	 * Compares the first "length" pivot numbers of two prefixes.
+	 */
+	private static int comparePrefix(byte[] a, int offsetA, byte[] b,
+			int offsetB, int length) {
+		for (int i = 0; i < length; i++) {
+			int x = a[offsetA + i] & 0xff;
+			int y = b[offsetB + i] & 0xff;
+			if (x != y)
+				return x < y ? -1 : 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * Finds the first position whose prefix is not smaller (upper == false) or
+	 * bigger (upper == true) than the first "length" numbers of the query
+	 * prefix.
+	 */
+	private int bound(byte[] query, int length, boolean upper) {
+		int low = 0, high = images.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			int cmp = comparePrefix(prefixes, middle * prefixLength, query, 0,
+					length);
+			if (cmp < 0 || (upper && cmp == 0))
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * A position of the index together with the disagreement of its
+	 * permutation prefix with the one of the query.
+	 */
+	private static class Candidate {
+		final int position;
+		final int footrule;
+
+		Candidate(int position, int footrule) {
+			this.position = position;
+			this.footrule = footrule;
+		}
+	}
+
+	/**
+	 * An image of the result set together with its distance to the query.
+	 */
+	private static class Result {
+		final ImageContainer image;
+		final double distance;
+
+		Result(ImageContainer image, double distance) {
+			this.image = image;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * Search for a certain number of approximate nearest neighbors.
+	 *
+	 * @param num
+	 *            The number of nearest neighbors to be retrieved.
+	 * @param image
+	 *            Image to find neighbors of.
+	 * @param metric
+	 *            Metric used for finding neighbors.
+	 * @param type
+	 *            Descriptor type which is considered.
+	 * @return A list of the num nearest neighbors sorted by increasing
+	 *         distance, null if image is null.
+	 */
+	@Override
+	public List<ImageContainer> nearestNeighborSearch(int num,
+			final ImageContainer image, final Metric metric,
+			final DescriptorType type) {
+		if (image == null)
+			return null;
+		List<ImageContainer> list = new ArrayList<ImageContainer>(num);
+		if (images.length == 0)
+			return list;
+
+		// the prefixes of the images were computed with the metric of the
+		// index
+		int[] permutation = permutation(image, this.metric);
+		byte[] query = new byte[prefixLength];
+		for (int j = 0; j < prefixLength; j++)
+			query[j] = (byte) permutation[j];
+		// position of every pivot in the permutation of the query
+		int[] rank = new int[pivots.length];
+		for (int i = 0; i < permutation.length; i++)
+			rank[permutation[i]] = i;
+
+		double stretch = MetricUtility.stretch(this.metric, metric, image
+				.getDescriptor(type).size(), MAX_STRETCH);
+		int budget = Math.max(num, (int) Math.min(images.length, candidates
+				* stretch));
+		// shorten the prefix until its range contains enough candidates
+		int length = prefixLength, from = 0, to = 0;
+		for (; length > 0; length--) {
+			from = bound(query, length, false);
+			to = bound(query, length, true);
+			if (to - from >= budget)
+				break;
+		}
+		if (length == 0) {
+			from = 0;
+			to = images.length;
+		}
+
+		// choose the candidates with the best agreeing permutations
+		PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(
+				budget + 1, new Comparator<Candidate>() {
+					@Override
+					public int compare(Candidate a, Candidate b) {
+						return b.footrule - a.footrule;
+					}
+				});
+		for (int i = from; i < to; i++) {
+			int footrule = 0;
+			for (int j = 0; j < prefixLength; j++)
+				footrule += Math.abs(j
+						- rank[prefixes[i * prefixLength + j] & 0xff]);
+			if (best.size() < budget) {
+				best.add(new Candidate(i, footrule));
+			} else if (footrule < best.peek().footrule) {
+				best.poll();
+				best.add(new Candidate(i, footrule));
+			}
+		}
+
+		// rank the candidates exactly
+		PriorityQueue<Result> results = new PriorityQueue<Result>(num + 1,
+				new Comparator<Result>() {
+					@Override
+					public int compare(Result a, Result b) {
+						return Double.compare(b.distance, a.distance);
+					}
+				});
+		for (Candidate candidate : best) {
+			ImageContainer curr = images[candidate.position];
+			double distance = metric.distance(image, curr, type);
+			if (results.size() < num) {
+				results.add(new Result(curr, distance));
+			} else if (distance < results.peek().distance) {
+				results.poll();
+				results.add(new Result(curr, distance));
+			}
+		}
+
+		Result[] sorted = new Result[results.size()];
+		for (int i = sorted.length - 1; i >= 0; i--)
+			sorted[i] = results.poll();
+		for (Result result : sorted)
+			list.add(result.image);
+		return list;
+	}
+
+	public DescriptorType getType() {
+		return type;
+	}
+
+	public Metric getMetric() {
+		return metric;
+	}
+
+	public int getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * Sets the number of candidates that are ranked exactly by a search. More
+	 * candidates give better results but slower searches.
+	 */
+	public void setCandidates(int candidates) {
+		this.candidates = Math.max(1, candidates);
+	}
+
+}
@@ -0,0 +1,5 @@
+/**
+ * This package contains a permutation prefix index, an approximate nearest neighbor index
+ * for arbitrary metrics that stores only a few pivot numbers per image.
+ */
+package ind.permutation;
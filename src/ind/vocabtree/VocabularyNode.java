@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package ind.vocabtree;
+
+import cbir.image.ImageContainer;
+
+/**
+ * Implements a node of a vocabulary tree. Every node has a centroid (stored as
+ * an image so that any metric can be used to compare it with a query), and
+ * either child nodes or the number of its posting block if it is a leaf.
+ *
+ * @author Matej Stanic
+ */
+public class VocabularyNode {
+	/** The centroid of all images below this node. */
+	private final ImageContainer centroid;
+	/** The child nodes, null for a leaf. */
+	private VocabularyNode[] children = null;
+	/** The number of the posting block of a leaf, -1 for inner nodes. */
+	private int leaf = -1;
+
+	/**
+	 * Constructor of VocabularyNode.
+	 */
+	public VocabularyNode(ImageContainer centroid) {
+		super();
+		this.centroid = centroid;
+	}
+
+	public ImageContainer getCentroid() {
+		return centroid;
+	}
+
+	public VocabularyNode[] getChildren() {
+		return children;
+	}
+
+	public void setChildren(VocabularyNode[] children) {
+		this.children = children;
+	}
+
+	public int getLeaf() {
+		return leaf;
+	}
+
+	public void setLeaf(int leaf) {
+		this.leaf = leaf;
+	}
+
+	public boolean isLeaf() {
+		return children == null;
+	}
+
+}
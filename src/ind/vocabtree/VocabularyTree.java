@@ -0,0 +1,532 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package ind.vocabtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import cbir.image.Descriptor;
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+import cbir.interfaces.Index;
+import cbir.interfaces.Metric;
+import cbir.metric.MetricUtility;
+
+/**
+ * Implements a hierarchical k-means tree (vocabulary tree) for approximate
+ * nearest neighbor search.
+ *
+ * The images are clustered into "branching" clusters by k-means, every
+ * cluster is clustered again and so on until the tree has the given depth or
+ * a cluster is too small to be split. The images of the leaves are stored in
+ * one array, every leaf owns a contiguous block of it (posting block).
+ * Subtrees are trained in parallel on a fork/join pool.
+ *
+ * A search descends the tree best-first: all nodes whose centroid has been
+ * compared with the query are kept in a priority queue and the closest one is
+ * expanded next. The images of the first "leafBudget" leaves reached this way
+ * are ranked exactly with the metric. Since the clusters adapt to the data,
+ * categories with many images get more (and smaller) leaves than rare ones.
+ *
+ * A search with another metric than the one the tree was trained with (e.g.
+ * with the weights of MARS) visits more leaves, as many more as the weights
+ * can change the order of the distances (see MetricUtility.stretch).
+ *
+ * @author Matej Stanic
+ *
+ */
+public class VocabularyTree implements Index {
+	/** Default number of children of a node. */
+	public static final int DEFAULT_BRANCHING = 10;
+	/** Default depth of the tree. */
+	public static final int DEFAULT_DEPTH = 3;
+	/** Default number of leaves that are visited during a search. */
+	public static final int DEFAULT_LEAF_BUDGET = 32;
+	/** Maximum factor the leaf budget is multiplied with for other metrics. */
+	private static final double MAX_STRETCH = 4;
+	/** Default number of k-means iterations per node. */
+	public static final int DEFAULT_ITERATIONS = 10;
+	/** Below this amount of images an assignment step is not parallelized. */
+	private static final int PARALLEL_THRESHOLD = 2048;
+
+	/** Root node of the tree. */
+	private final VocabularyNode root;
+	/** Descriptor type used. */
+	private final DescriptorType type;
+	/** The metric the tree was trained with. */
+	private final Metric metric;
+	/** Number of children of a node. */
+	private final int branching;
+	/** Maximum depth of the tree. */
+	private final int depth;
+	/** Number of k-means iterations per node. */
+	private final int iterations;
+	/** Number of leaves that are visited during a search. */
+	private int leafBudget = DEFAULT_LEAF_BUDGET;
+	/** All images of the tree. */
+	private final ImageContainer[] images;
+	/** The posting blocks of all leaves (indices into images). */
+	private final int[] postings;
+	/** Leaf i owns postings[leafStart[i]] to postings[leafStart[i + 1] - 1]. */
+	private final int[] leafStart;
+
+	/**
+	 * Constructor. Trains a vocabulary tree with the default parameters using
+	 * all available processors.
+	 *
+	 * @param list
+	 *            List of images to construct the tree of.
+	 * @param metric
+	 *            Metric used for the clustering and the search.
+	 * @param type
+	 *            Descriptor type which is indexed.
+	 */
+	public VocabularyTree(List<ImageContainer> list, Metric metric,
+			DescriptorType type) {
+		this(list, metric, type, DEFAULT_BRANCHING, DEFAULT_DEPTH,
+				DEFAULT_ITERATIONS, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructor. Trains a vocabulary tree.
+	 *
+	 * @param list
+	 *            List of images to construct the tree of.
+	 * @param metric
+	 *            Metric used for the clustering and the search.
+	 * @param type
+	 *            Descriptor type which is indexed.
+	 * @param branching
+	 *            Number of children of a node (b).
+	 * @param depth
+	 *            Maximum depth of the tree (L).
+	 * @param iterations
+	 *            Number of k-means iterations per node.
+	 * @param threads
+	 *            Number of threads used for the training.
+	 */
+	public VocabularyTree(List<ImageContainer> list, Metric metric,
+			DescriptorType type, int branching, int depth, int iterations,
+			int threads) {
+		if (branching < 2)
+			throw new IllegalArgumentException("branching has to be at least 2");
+		if (depth < 1)
+			throw new IllegalArgumentException("depth has to be at least 1");
+		if (iterations < 1)
+			throw new IllegalArgumentException(
+					"iterations has to be at least 1");
+		this.type = type;
+		this.metric = metric;
+		this.branching = branching;
+		this.depth = depth;
+		this.iterations = iterations;
+		this.images = list.toArray(new ImageContainer[list.size()]);
+
+		int[] members = new int[images.length];
+		for (int i = 0; i < members.length; i++)
+			members[i] = i;
+
+		// metrics like WeightedEuclidean initialize themselves lazily on the
+		// first call, this must not happen concurrently
+		if (images.length > 0)
+			metric.distance(images[0], images[0], type);
+
+		ConcurrentHashMap<VocabularyNode, int[]> leaves = new ConcurrentHashMap<VocabularyNode, int[]>();
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			root = pool.invoke(new TrainTask(null, members, 0, 42, leaves));
+		} finally {
+			pool.shutdown();
+		}
+
+		// lay out the posting blocks in depth-first order
+		postings = new int[images.length];
+		List<Integer> starts = new ArrayList<Integer>();
+		layout(root, leaves, starts, 0);
+		leafStart = new int[starts.size() + 1];
+		for (int i = 0; i < starts.size(); i++)
+			leafStart[i] = starts.get(i);
+		leafStart[starts.size()] = images.length;
+	}
+
+	/**
+	 * Numbers the leaves in depth-first order and copies their images into
+	 * the posting array.
+	 *
+	 * @return the position in the posting array after the subtree.
+	 */
+	private int layout(VocabularyNode node,
+			ConcurrentHashMap<VocabularyNode, int[]> leaves,
+			List<Integer> starts, int position) {
+		if (node.isLeaf()) {
+			int[] members = leaves.get(node);
+			node.setLeaf(starts.size());
+			starts.add(position);
+			System.arraycopy(members, 0, postings, position, members.length);
+			return position + members.length;
+		}
+		for (VocabularyNode child : node.getChildren())
+			position = layout(child, leaves, starts, position);
+		return position;
+	}
+
+	/**
+	 * Clusters the images of one node and trains the subtrees of the clusters.
+	 */
+	private class TrainTask extends RecursiveTask<VocabularyNode> {
+		private static final long serialVersionUID = 1L;
+		private final ImageContainer centroid;
+		private final int[] members;
+		private final int level;
+		private final long seed;
+		private final ConcurrentHashMap<VocabularyNode, int[]> leaves;
+
+		TrainTask(ImageContainer centroid, int[] members, int level, long seed,
+				ConcurrentHashMap<VocabularyNode, int[]> leaves) {
+			this.centroid = centroid;
+			this.members = members;
+			this.level = level;
+			this.seed = seed;
+			this.leaves = leaves;
+		}
+
+		@Override
+		protected VocabularyNode compute() {
+			VocabularyNode node = new VocabularyNode(centroid);
+			if (level >= depth || members.length <= branching) {
+				leaves.put(node, members);
+				return node;
+			}
+
+			Random rnd = new Random(seed);
+			int k = branching;
+			// initial centroids: k distinct random images
+			int[] shuffled = members.clone();
+			ImageContainer[] centroids = new ImageContainer[k];
+			for (int c = 0; c < k; c++) {
+				int j = c + rnd.nextInt(shuffled.length - c);
+				int tmp = shuffled[c];
+				shuffled[c] = shuffled[j];
+				shuffled[j] = tmp;
+				centroids[c] = toCentroid(images[shuffled[c]].getDescriptor(
+						type).getValues().clone());
+			}
+
+			int[] assignment = new int[members.length];
+			Arrays.fill(assignment, -1);
+			for (int iteration = 0; iteration < iterations; iteration++) {
+				AssignTask assign = new AssignTask(centroids, assignment, 0,
+						members.length);
+				if (members.length > PARALLEL_THRESHOLD)
+					assign.invoke();
+				else
+					assign.compute();
+				if (!assign.changed)
+					break;
+				centroids = means(assignment, k, centroids);
+			}
+
+			// group the images by cluster, empty clusters are dropped
+			int[] counts = new int[k];
+			for (int c : assignment)
+				counts[c]++;
+			List<TrainTask> children = new ArrayList<TrainTask>(k);
+			for (int c = 0; c < k; c++) {
+				if (counts[c] == 0)
+					continue;
+				int[] cluster = new int[counts[c]];
+				int size = 0;
+				for (int i = 0; i < members.length; i++)
+					if (assignment[i] == c)
+						cluster[size++] = members[i];
+				children.add(new TrainTask(centroids[c], cluster, level + 1,
+						seed * 31 + c + 1, leaves));
+			}
+			if (children.size() < 2) {
+				// all images are identical for the metric
+				leaves.put(node, members);
+				return node;
+			}
+
+			invokeAll(children);
+			VocabularyNode[] childNodes = new VocabularyNode[children.size()];
+			for (int i = 0; i < childNodes.length; i++)
+				childNodes[i] = children.get(i).join();
+			node.setChildren(childNodes);
+			return node;
+		}
+
+		/**
+		 * Computes the means of the clusters, a cluster that became empty
+		 * keeps its old centroid.
+		 */
+		private ImageContainer[] means(int[] assignment, int k,
+				ImageContainer[] old) {
+			int length = images[members[0]].getDescriptor(type).size();
+			double[][] sums = new double[k][length];
+			int[] counts = new int[k];
+			for (int i = 0; i < members.length; i++) {
+				Descriptor values = images[members[i]].getDescriptor(type);
+				double[] sum = sums[assignment[i]];
+				for (int j = 0; j < length; j++)
+					sum[j] += values.get(j);
+				counts[assignment[i]]++;
+			}
+			ImageContainer[] result = new ImageContainer[k];
+			for (int c = 0; c < k; c++) {
+				if (counts[c] == 0) {
+					result[c] = old[c];
+					continue;
+				}
+				for (int j = 0; j < length; j++)
+					sums[c][j] /= counts[c];
+				result[c] = toCentroid(sums[c]);
+			}
+			return result;
+		}
+
+		/**
+		 * Assigns a range of the images of the node to their closest
+		 * centroids, splits the range if it is big enough.
+		 */
+		private class AssignTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			private final ImageContainer[] centroids;
+			private final int[] assignment;
+			private final int from, to;
+			/** Whether any image changed its cluster. */
+			private boolean changed = false;
+
+			AssignTask(ImageContainer[] centroids, int[] assignment, int from,
+					int to) {
+				this.centroids = centroids;
+				this.assignment = assignment;
+				this.from = from;
+				this.to = to;
+			}
+
+			@Override
+			protected void compute() {
+				if (to - from <= PARALLEL_THRESHOLD) {
+					for (int i = from; i < to; i++) {
+						int best = nearest(images[members[i]], centroids);
+						if (best != assignment[i]) {
+							assignment[i] = best;
+							changed = true;
+						}
+					}
+					return;
+				}
+				int middle = (from + to) >>> 1;
+				AssignTask lower = new AssignTask(centroids, assignment, from,
+						middle);
+				AssignTask upper = new AssignTask(centroids, assignment,
+						middle, to);
+				invokeAll(lower, upper);
+				changed = lower.changed || upper.changed;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the centroid closest to the given image.
+	 */
+	private int nearest(ImageContainer image, ImageContainer[] centroids) {
+		int best = 0;
+		double bestDistance = Double.MAX_VALUE;
+		for (int c = 0; c < centroids.length; c++) {
+			double distance = metric.distance(image, centroids[c], type);
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Wraps a centroid vector into an image so that it can be passed to a
+	 * metric.
+	 */
+	private ImageContainer toCentroid(double[] values) {
+		return new ImageContainer("centroid", new Descriptor(type, values, 1));
+	}
+
+	/**
+	 * A node of the tree together with the distance of its centroid to the
+	 * query.
+	 */
+	private static class Branch {
+		final VocabularyNode node;
+		final double distance;
+
+		Branch(VocabularyNode node, double distance) {
+			this.node = node;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * An image of the result set together with its distance to the query.
+	 */
+	private static class Result {
+		final ImageContainer image;
+		final double distance;
+
+		Result(ImageContainer image, double distance) {
+			this.image = image;
+			this.distance = distance;
+		}
+	}
+
+	/**
+	 * Search for a certain number of approximate nearest neighbors. At least
+	 * "leafBudget" leaves are visited, more if they do not contain num images.
+	 *
+	 * @param num
+	 *            The number of nearest neighbors to be retrieved.
+	 * @param image
+	 *            Image to find neighbors of.
+	 * @param metric
+	 *            Metric used for finding neighbors.
+	 * @param type
+	 *            Descriptor type which is considered.
+	 * @return A list of the num nearest neighbors sorted by increasing
+	 *         distance, null if image is null.
+	 */
+	@Override
+	public List<ImageContainer> nearestNeighborSearch(int num,
+			final ImageContainer image, final Metric metric,
+			final DescriptorType type) {
+		if (image == null)
+			return null;
+
+		// closest branch on top
+		PriorityQueue<Branch> branches = new PriorityQueue<Branch>(64,
+				new Comparator<Branch>() {
+					@Override
+					public int compare(Branch a, Branch b) {
+						return Double.compare(a.distance, b.distance);
+					}
+				});
+		// worst result on top
+		PriorityQueue<Result> results = new PriorityQueue<Result>(num + 1,
+				new Comparator<Result>() {
+					@Override
+					public int compare(Result a, Result b) {
+						return Double.compare(b.distance, a.distance);
+					}
+				});
+
+		double stretch = MetricUtility.stretch(this.metric, metric, image
+				.getDescriptor(type).size(), MAX_STRETCH);
+		int budget = (int) Math.ceil(leafBudget * stretch);
+
+		branches.add(new Branch(root, 0));
+		int visited = 0, candidates = 0;
+		while (!branches.isEmpty() && (visited < budget || candidates < num)) {
+			VocabularyNode node = branches.poll().node;
+			if (node.isLeaf()) {
+				for (int i = leafStart[node.getLeaf()]; i < leafStart[node
+						.getLeaf() + 1]; i++) {
+					ImageContainer curr = images[postings[i]];
+					double distance = metric.distance(image, curr, type);
+					if (results.size() < num) {
+						results.add(new Result(curr, distance));
+					} else if (distance < results.peek().distance) {
+						results.poll();
+						results.add(new Result(curr, distance));
+					}
+					candidates++;
+				}
+				visited++;
+				continue;
+			}
+			for (VocabularyNode child : node.getChildren())
+				branches.add(new Branch(child, metric.distance(image,
+						child.getCentroid(), type)));
+		}
+
+		Result[] sorted = new Result[results.size()];
+		for (int i = sorted.length - 1; i >= 0; i--)
+			sorted[i] = results.poll();
+		List<ImageContainer> list = new ArrayList<ImageContainer>(num);
+		for (Result result : sorted)
+			list.add(result.image);
+		return list;
+	}
+
+	public VocabularyNode getRoot() {
+		return root;
+	}
+
+	public DescriptorType getType() {
+		return type;
+	}
+
+	public Metric getMetric() {
+		return metric;
+	}
+
+	/**
+	 * @return the number of leaves (posting blocks) of the tree.
+	 */
+	public int getLeafCount() {
+		return leafStart.length - 1;
+	}
+
+	public int getLeafBudget() {
+		return leafBudget;
+	}
+
+	/**
+	 * Sets the number of leaves that are visited during a search. More leaves
+	 * give better results but slower searches.
+	 */
+	public void setLeafBudget(int leafBudget) {
+		this.leafBudget = Math.max(1, leafBudget);
+	}
+
+}
@@ -0,0 +1,5 @@
+/**
+ * This package contains a hierarchical k-means tree (vocabulary tree) for approximate
+ * nearest neighbor search, which can be used as index structure of the distance based retriever.
+ */
+package ind.vocabtree;
@@ -40,7 +40,12 @@ import java.util.List;
 
 import cbir.Utils;
 import cbir.image.DescriptorType;
+import cbir.image.ImageCatalog;
 import cbir.image.ImageContainer;
+import cbir.interfaces.Metric;
+import cbir.interfaces.Retriever;
+import cbir.retriever.RetrieverCandidatePool;
+import cbir.retriever.RetrieverDistanceBased;
 
 /**
  * This is a Utility class for all RF methods and provides methods to normalize
@@ -64,6 +69,48 @@ public class Utility {
 		GAUSSIAN, GAUSSIAN_0to1, JUSTUS, IDF
 	};
 
+	/**
+	 * The statistics a normalization was computed with, they are needed to
+	 * normalize further images the same way.
+	 */
+	public static class Statistics {
+		/** The applied normalization. */
+		private final Normalization normalization;
+		/** The normalized descriptor type. */
+		private final DescriptorType type;
+		/** The means of the components. */
+		private final double[] means;
+		/**
+		 * The standard deviations of the components (the variances for
+		 * JUSTUS).
+		 */
+		private final double[] deviations;
+
+		public Statistics(Normalization normalization, DescriptorType type,
+				double[] means, double[] deviations) {
+			this.normalization = normalization;
+			this.type = type;
+			this.means = means;
+			this.deviations = deviations;
+		}
+
+		public Normalization getNormalization() {
+			return normalization;
+		}
+
+		public DescriptorType getType() {
+			return type;
+		}
+
+		public double[] getMeans() {
+			return means;
+		}
+
+		public double[] getDeviations() {
+			return deviations;
+		}
+	}
+
 	/**
 	 * Normalizes the descriptors of given type and given database.
 	 * 
@@ -80,11 +127,13 @@ public class Utility {
 	 *            dividing each entry by the corresponding variance. IDF:
 	 *            denotes the inverse document frequency normalization for
 	 *            images.
+	 * @return the statistics of the normalization.
 	 */
-	public static void normalizeDescriptors(List<ImageContainer> database,
-			DescriptorType descriptorOfInterest, Normalization type) {
+	public static Statistics normalizeDescriptors(
+			List<ImageContainer> database, DescriptorType descriptorOfInterest,
+			Normalization type) {
 		double[] means = calculateMeans(database, descriptorOfInterest);
-		double[] deviations;
+		double[] deviations = null;
 
 		switch (type) {
 		case GAUSSIAN:
@@ -111,6 +160,7 @@ public class Utility {
 
 			break;
 		}
+		return new Statistics(type, descriptorOfInterest, means, deviations);
 	}
 
 	/**
@@ -320,7 +370,8 @@ public class Utility {
 
 	/**
 	 * A utility function that combines to image lists to one, every Image
-	 * should occur only once in the resulting list.
+	 * should occur only once in the resulting list. Images with an id (see
+	 * ImageCatalog) are compared by their ids.
 	 * 
 	 * @param list
 	 *            the list where the new images should be added.
@@ -329,9 +380,40 @@ public class Utility {
 	 */
 	public static void addImagesToList(List<ImageContainer> list,
 			List<ImageContainer> toAdd) {
-		for (ImageContainer curr : toAdd)
-			if (!list.contains(curr))
-				list.add(curr);
+		ImageCatalog.addImages(list, ImageCatalog.toBitSet(list), toAdd);
+	}
+
+	/**
+	 * Searches with a metric learned by an RF method. A distance based
+	 * retriever is searched with the metric directly, so its index structures
+	 * are reused, a candidate pool reranks its candidates with the metric,
+	 * other retrievers are replaced by a linear scan.
+	 * 
+	 * @param retriever
+	 *            the retriever of the query.
+	 * @param query
+	 *            the query image.
+	 * @param type
+	 *            the descriptortype of the query.
+	 * @param resultAmount
+	 *            the number of desired results.
+	 * @param metric
+	 *            the learned metric.
+	 * @return the results.
+	 */
+	public static List<ImageContainer> search(Retriever retriever,
+			ImageContainer query, DescriptorType type, int resultAmount,
+			Metric metric) {
+		if (retriever instanceof RetrieverDistanceBased)
+			return ((RetrieverDistanceBased) retriever).search(query, type,
+					resultAmount, metric);
+		if (retriever instanceof RetrieverCandidatePool)
+			return ((RetrieverCandidatePool) retriever).search(query, type,
+					resultAmount, metric);
+		// the retriever is used once, so its search is neither warm started
+		// nor kept in the query session
+		return new RetrieverDistanceBased(retriever.getDatabase(), metric)
+				.search(query, type, resultAmount, metric, null);
 	}
 
 }
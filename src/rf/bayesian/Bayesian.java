@@ -38,7 +38,6 @@ package rf.bayesian;
 
 import java.util.List;
 
-import rf.Utility;
 import cbir.image.Descriptor;
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
@@ -47,26 +46,15 @@ import cbir.interfaces.RelevanceFeedback;
 import cbir.interfaces.Retriever;
 
 /**
- * This class implements the Bayesian Query Shifting.
+ * This class implements the Bayesian Query Shifting. The statistics of the
+ * marked images are kept by the query (see FeedbackStatistics), so one
+ * instance can shift the queries of many sessions concurrently.
  * 
  * @author Chris Wendler
  */
 public class Bayesian implements RelevanceFeedback {
 
-	/** The expectated descriptor vector of the relevant images. **/
-	private double[] expectationRelevant;
-	/** The expectated descriptor vector of the irrelevant images. **/
-	private double[] expectationIrrelevant;
-	/**
-	 * Scatter within is the averaged deviation from the two expectation vectors
-	 * of the image classes.
-	 **/
-	private double scatterWithin;
-	/** Scatter between is the distance between the expectation vectors. **/
-	private double scatterBetween;
-	/** The approximation of the variance. **/
-	private double sigmaSquare;
-	/** The expectated descriptor vector of the relevant images. **/
+	/** Denotes which approximation is used for sigma. **/
 	private boolean useScatterSigma = true;
 
 	/**
@@ -92,179 +80,85 @@ public class Bayesian implements RelevanceFeedback {
 	}
 
 	/**
-	 * Calculates the scatter within, which is necessary for the approximation
-	 * of the Variance.
-	 * 
-	 * @param positives
-	 *            is the list of positively marked images.
-	 * @param negatives
-	 *            is the list of negatively marked images.
-	 * @param expectationsRelevant
-	 *            is the expectation value of the relevant images.
-	 * @param expectationsIrrelevant
-	 *            is the expectation value of the irrelevant images.
-	 * @param type
-	 *            is the descriptor type which is considered for the
-	 *            calculation.
-	 * @return the calculated value for scatter within.
-	 */
-	private double calculateScatterWithin(List<ImageContainer> positives,
-			List<ImageContainer> negatives, double[] expectationsRelevant,
-			double[] expectationsIrrelevant, DescriptorType type) {
-		int NN = negatives.size();
-		int NR = positives.size();
-		int N = NN + NR;
-		int length = expectationsRelevant.length;
-		double result = 0;
-		double deviationRelevant = 0;
-		double deviationIrrelevant = 0;
-
-		for (ImageContainer curr : positives) {
-			for (int i = 0; i < length; i++) {
-				deviationRelevant += Math.pow(curr.getDescriptor(type)
-						.getValues()[i] - expectationRelevant[i], 2);
-			}
-		}
-		if (NR > 1)
-			deviationRelevant /= (NR - 1);
-		else
-			deviationRelevant = 0;
-
-		for (ImageContainer curr : negatives) {
-			for (int i = 0; i < length; i++) {
-				deviationIrrelevant += Math.pow(curr.getDescriptor(type)
-						.getValues()[i] - expectationIrrelevant[i], 2);
-			}
-		}
-		if (NN > 1)
-			deviationIrrelevant /= (NN - 1);
-		else
-			deviationIrrelevant = 0;
-
-		result = ((double) NR / (double) N) * deviationRelevant
-				+ ((double) NN / (double) N) * deviationIrrelevant;
-		result = Math.sqrt(result);
-
-		return result;
-	}
-
-	/**
-	 * Calculates the value scatter between which is used to approximate the
-	 * variance.
-	 * 
-	 * @param expectationsRelevant
-	 *            is the expectation value of the relevant images.
-	 * @param expectationsIrrelevant
-	 *            is the expectation value of the irrelevant images.
-	 * @return the calculated value for scatter between.
-	 */
-	private double calculateScatterBetween(double[] expectationsRelevant,
-			double[] expectationsIrrelevant) {
-		double result = 0;
-		for (int i = 0; i < expectationsRelevant.length; i++) {
-			result += Math.pow(expectationsRelevant[i]
-					- expectationsIrrelevant[i], 2);
-
-		}
-		result = Math.sqrt(result);
-		return result;
-	}
-
-	/**
-	 * Calculates a different approximation for the variance by adding up the
-	 * variance of the relevant images with the variance of the irrelevant
-	 * images.
+	 * Performs the query shifting.
 	 * 
-	 * @param positives
-	 *            is the list of positively marked images.
-	 * @param negatives
-	 *            is the list of negatively marked images.
-	 * @param expectationsRelevant
-	 *            is the expectation value of the relevant images.
-	 * @param expectationsIrrelevant
-	 *            is the expectation value of the irrelevant images.
+	 * @param query
+	 *            the old query image.
 	 * @param type
-	 *            is the descriptor type which is considered for the
-	 *            calculation.
-	 * @return an approximation for the variance.
+	 *            the type of descriptor which has to be considered.
+	 * @return The new (shifted) query image is returned.
 	 */
-	private double calculateAverageVariance(List<ImageContainer> positives,
-			List<ImageContainer> negatives, double[] expectationsRelevant,
-			double[] expectationsIrrelevant, DescriptorType type) {
-		double result = 0;
-		int length = expectationsRelevant.length;
-		int NN = negatives.size();
-		int NR = positives.size();
-		int N = NN + NR;
-		for (ImageContainer curr : positives) {
-			for (int i = 0; i < length; i++)
-				result += Math.pow(curr.getDescriptor(type).getValues()[i]
-						- expectationsRelevant[i], 2);
-		}
-		for (ImageContainer curr : negatives) {
-			for (int i = 0; i < length; i++)
-				result += Math.pow(curr.getDescriptor(type).getValues()[i]
-						- expectationsIrrelevant[i], 2);
-		}
-		result /= N;
-		return result;
-
+	public ImageContainer shiftQuery(ImageContainer query, DescriptorType type) {
+		return shiftQuery(query, type, FeedbackStatistics.get(query, type));
 	}
 
 	/**
-	 * Performs the query shifting.
+	 * Performs the query shifting with the statistics of the marked images.
+	 * The descriptor of the query is changed in place.
 	 * 
 	 * @param query
 	 *            the old query image.
 	 * @param type
 	 *            the type of descriptor which has to be considered.
+	 * @param statistics
+	 *            the statistics of the marked images of the query.
 	 * @return The new (shifted) query image is returned.
 	 */
-	public ImageContainer shiftQuery(ImageContainer query, DescriptorType type) {
+	public ImageContainer shiftQuery(ImageContainer query,
+			DescriptorType type, FeedbackStatistics statistics) {
 		int NN = query.getNegatives().size();
 		int NR = query.getPositives().size();
-		if (NR > 0)
-			expectationRelevant = Utility.calculateMeans(query.getPositives(),
-					type);
-		else
-			expectationRelevant = new double[query.getDescriptor(type)
-					.getValues().length];
-
-		if (NN > 0)
-			expectationIrrelevant = Utility.calculateMeans(
-					query.getNegatives(), type);
-		else
-			expectationIrrelevant = new double[query.getDescriptor(type)
-					.getValues().length];
+		int N = NN + NR;
+		Descriptor descriptor = query.getWritableDescriptor(type);
+		int length = descriptor.size();
+
+		// the expectated descriptor vectors of the relevant and irrelevant
+		// images
+		double[] expectationRelevant = statistics.getPositiveMeans();
+		if (NR == 0 || expectationRelevant == null)
+			expectationRelevant = new double[length];
+		double[] expectationIrrelevant = statistics.getNegativeMeans();
+		if (NN == 0 || expectationIrrelevant == null)
+			expectationIrrelevant = new double[length];
+
+		// squared distance between the expectation vectors
+		double normSquare = 0;
+		for (int j = 0; j < length; j++) {
+			double difference = expectationRelevant[j]
+					- expectationIrrelevant[j];
+			normSquare += difference * difference;
+		}
+		double scatterBetween = Math.sqrt(normSquare);
 
-		scatterBetween = calculateScatterBetween(expectationRelevant,
-				expectationIrrelevant);
-		scatterWithin = calculateScatterWithin(query.getPositives(),
-				query.getNegatives(), expectationRelevant,
-				expectationIrrelevant, type);
+		// scatter within: the averaged deviation from the two expectation
+		// vectors of the image classes
+		double deviationRelevant = 0, deviationIrrelevant = 0;
+		if (NR > 1)
+			deviationRelevant = statistics.getPositiveDeviation() / (NR - 1);
+		if (NN > 1)
+			deviationIrrelevant = statistics.getNegativeDeviation() / (NN - 1);
+		double scatterWithin = Math.sqrt(((double) NR / (double) N)
+				* deviationRelevant + ((double) NN / (double) N)
+				* deviationIrrelevant);
 
+		// the approximation of the variance
+		double sigmaSquare;
 		if (useScatterSigma)
 			sigmaSquare = scatterBetween * scatterWithin;
 		else
-			sigmaSquare = calculateAverageVariance(query.getPositives(),
-					query.getNegatives(), expectationRelevant,
-					expectationIrrelevant, type);
-
-		int length = query.getDescriptor(type).getValues().length;
-		double[] shiftedQuery = new double[length];
-		double normSquare = 0;
-		for (int j = 0; j < length; j++)
-			normSquare += Math.pow(expectationRelevant[j]
-					- expectationIrrelevant[j], 2);
-
-		for (int i = 0; i < length; i++) {
-			shiftedQuery[i] = expectationRelevant[i];
-			shiftedQuery[i] += (sigmaSquare / normSquare)
-					* (1 - ((NR - NN) / Math.max(NR, NN)))
+			// the average variance of the relevant and irrelevant images
+			sigmaSquare = (statistics.getPositiveDeviation() + statistics
+					.getNegativeDeviation()) / N;
+
+		double factor = (sigmaSquare / normSquare)
+				* (1 - ((NR - NN) / Math.max(NR, NN)));
+		double[] shiftedQuery = descriptor.hasArray() ? descriptor.getValues()
+				: new double[length];
+		for (int i = 0; i < length; i++)
+			shiftedQuery[i] = expectationRelevant[i] + factor
 					* (expectationRelevant[i] - expectationIrrelevant[i]);
-		}
-		Descriptor descriptor = query.getDescriptor(type);
-		descriptor.setValues(shiftedQuery);
+		if (!descriptor.hasArray())
+			descriptor.setValues(shiftedQuery);
 		return query;
 	}
 
@@ -292,8 +186,7 @@ public class Bayesian implements RelevanceFeedback {
 			ImageContainer query, DescriptorType type, Metric metric,
 			List<ImageContainer> positives, List<ImageContainer> negatives,
 			int resultAmount) {
-		Utility.addImagesToList(query.getPositives(), positives);
-		Utility.addImagesToList(query.getNegatives(), negatives);
+		query.addFeedback(positives, negatives);
 		int NN = query.getNegatives().size();
 		int NR = query.getPositives().size();
 		if ((NR == 0 && NN == 0) || (NR == resultAmount))
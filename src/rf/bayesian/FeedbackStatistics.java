@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2013 Justus Piater,
+ * Intelligent and Interactive Systems Group,
+ * University of Innsbruck, Austria.
+ */
+/*
+ * This file is part of simple-cbir.
+ *
+ *  simple-cbir is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ * 
+ *  simple-cbir is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with simple-cbir.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Diese Datei ist Teil von simple-cbir.
+ *
+ *  simple-cbir ist Freie Software: Sie knnen es unter den Bedingungen
+ *  der GNU General Public License, wie von der Free Software Foundation,
+ *  Version 3 der Lizenz oder (nach Ihrer Wahl) jeder spteren
+ *  verffentlichten Version, weiterverbreiten und/oder modifizieren.
+ *
+ *  simple-cbir wird in der Hoffnung, dass es ntzlich sein wird, aber
+ *  OHNE JEDE GEWHELEISTUNG, bereitgestellt; sogar ohne die implizite
+ *  Gewhrleistung der MARKTFHIGKEIT oder EIGNUNG FR EINEN BESTIMMTEN ZWECK.
+ *  Siehe die GNU General Public License fr weitere Details.
+ *
+ *  Sie sollten eine Kopie der GNU General Public License zusammen mit diesem
+ *  Programm erhalten haben. Wenn nicht, siehe <http://www.gnu.org/licenses/>.
+ */
+package rf.bayesian;
+
+import java.util.List;
+
+import cbir.image.Descriptor;
+import cbir.image.DescriptorType;
+import cbir.image.ImageContainer;
+import cbir.image.QuerySession;
+
+/**
+ * Keeps the running means and deviations of the positively and negatively
+ * marked images of a query, which is all the Bayesian Query Shifting needs.
+ * They are updated with the images marked since the last update only (using
+ * Welford's algorithm), an RF iteration costs O(newly marked images *
+ * descriptor length) instead of several passes over all marked images.
+ * 
+ * The statistics of a query session are kept in the session. They start over
+ * when a list of marked images has been replaced (see
+ * ImageContainer.getFeedbackReset()).
+ * 
+ * @author Chris Wendler
+ */
+public class FeedbackStatistics {
+	/** The descriptor type the statistics are computed for. **/
+	private final DescriptorType type;
+	/** The feedback version of the query at the last update. **/
+	private volatile int version = -1;
+	/** The statistics of the positively marked images. **/
+	private final Moments positives = new Moments();
+	/** The statistics of the negatively marked images. **/
+	private final Moments negatives = new Moments();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param type
+	 *            the descriptor type of interest.
+	 */
+	public FeedbackStatistics(DescriptorType type) {
+		this.type = type;
+	}
+
+	/**
+	 * Returns the statistics of a query, updated with the images marked since
+	 * the last call. For queries which are not a query session they are
+	 * computed from all marked images.
+	 * 
+	 * @param query
+	 *            the query image.
+	 * @param type
+	 *            the descriptor type of interest.
+	 * @return the statistics.
+	 */
+	public static FeedbackStatistics get(ImageContainer query,
+			DescriptorType type) {
+		FeedbackStatistics statistics = null;
+		if (query instanceof QuerySession) {
+			QuerySession session = (QuerySession) query;
+			synchronized (session) {
+				statistics = (FeedbackStatistics) session
+						.getState(FeedbackStatistics.class);
+				if (statistics == null || statistics.type != type
+						|| statistics.version < session.getFeedbackReset()) {
+					statistics = new FeedbackStatistics(type);
+					// the means of the positive and negative images
+					session.cacheState(FeedbackStatistics.class, statistics,
+							16L * session.getDescriptor(type).size());
+				}
+			}
+		} else
+			statistics = new FeedbackStatistics(type);
+		statistics.update(query);
+		return statistics;
+	}
+
+	/**
+	 * Adds the images marked since the last update, starts over if images
+	 * were removed.
+	 */
+	public synchronized void update(ImageContainer query) {
+		int version = query.getFeedbackVersion();
+		positives.update(query.getPositives(), type);
+		negatives.update(query.getNegatives(), type);
+		this.version = version;
+	}
+
+	/**
+	 * @return the mean descriptor of the positive images (null if there are
+	 *         none), it is changed by the next update.
+	 */
+	public double[] getPositiveMeans() {
+		return positives.means;
+	}
+
+	/**
+	 * @return the mean descriptor of the negative images (null if there are
+	 *         none), it is changed by the next update.
+	 */
+	public double[] getNegativeMeans() {
+		return negatives.means;
+	}
+
+	/**
+	 * @return the sum of the squared deviations of the positive images from
+	 *         their mean.
+	 */
+	public double getPositiveDeviation() {
+		return positives.deviation;
+	}
+
+	/**
+	 * @return the sum of the squared deviations of the negative images from
+	 *         their mean.
+	 */
+	public double getNegativeDeviation() {
+		return negatives.deviation;
+	}
+
+	/**
+	 * The count, mean and sum of squared deviations of a list of images.
+	 */
+	private static class Moments {
+		private int count = 0;
+		private double[] means = null;
+		private double deviation = 0;
+
+		void update(List<ImageContainer> images, DescriptorType type) {
+			if (count > images.size()) {
+				count = 0;
+				means = null;
+				deviation = 0;
+			}
+			if (count == images.size())
+				return;
+			for (ImageContainer image : images.subList(count, images.size()))
+				add(image.getDescriptor(type));
+		}
+
+		private void add(Descriptor descriptor) {
+			double[] values = descriptor.getValues();
+			if (means == null)
+				means = new double[values.length];
+			count++;
+			for (int i = 0; i < means.length; i++) {
+				double delta = values[i] - means[i];
+				means[i] += delta / count;
+				deviation += delta * (values[i] - means[i]);
+			}
+		}
+	}
+
+}
@@ -45,7 +45,6 @@ import cbir.interfaces.Metric;
 import cbir.interfaces.RelevanceFeedback;
 import cbir.interfaces.Retriever;
 import cbir.metric.WeightedEuclidean;
-import cbir.retriever.RetrieverDistanceBased;
 
 /**
  * Provides the reweighting rf functionality.
@@ -104,12 +103,10 @@ public class MarsGaussian implements RelevanceFeedback {
 			ImageContainer query, DescriptorType type, Metric metric,
 			List<ImageContainer> positives, List<ImageContainer> negatives,
 			int resultAmount) {
-		Utility.addImagesToList(query.getPositives(), positives);
-		Utility.addImagesToList(query.getNegatives(), negatives);
-		return new RetrieverDistanceBased(retriever.getDatabase(),
+		query.addFeedback(positives, negatives);
+		return Utility.search(retriever, query, type, resultAmount,
 				new WeightedEuclidean(reweightFeatures(query,
-						query.getPositives(), type))).search(query, type,
-				resultAmount);
+						query.getPositives(), type)));
 	}
 
 }
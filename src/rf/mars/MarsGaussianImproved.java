@@ -41,11 +41,11 @@ import java.util.List;
 import rf.Utility;
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
+import cbir.image.QuerySession;
 import cbir.interfaces.Metric;
 import cbir.interfaces.RelevanceFeedback;
 import cbir.interfaces.Retriever;
 import cbir.metric.WeightedEuclidean;
-import cbir.retriever.RetrieverDistanceBased;
 
 /**
  * This was an attempt to improve the reweighting approach which did not improve
@@ -53,6 +53,10 @@ import cbir.retriever.RetrieverDistanceBased;
  * approach uses a weighted sum of the weight vectors where the weight of each
  * weight vector is 1 divided by the current iteration number.
  * 
+ * The weights of a query session are kept in the session, so one instance can
+ * serve many sessions concurrently. Other queries share the weights of the
+ * instance.
+ * 
  * @author Chris Wendler
  * 
  */
@@ -61,6 +65,17 @@ public class MarsGaussianImproved implements RelevanceFeedback {
 	private double[] lastweights;
 	private int iteration = 1;
 
+	/** The weights of the previous iteration of a query session. **/
+	private static final class State {
+		private final double[] lastweights;
+		private final int iteration;
+
+		State(double[] lastweights, int iteration) {
+			this.lastweights = lastweights;
+			this.iteration = iteration;
+		}
+	}
+
 	/**
 	 * calculates the new weight matrix for a given set of positive examples
 	 * 
@@ -111,11 +126,17 @@ public class MarsGaussianImproved implements RelevanceFeedback {
 			ImageContainer query, DescriptorType type, Metric metric,
 			List<ImageContainer> positives, List<ImageContainer> negatives,
 			int resultAmount) {
-		Utility.addImagesToList(query.getPositives(), positives);
-		Utility.addImagesToList(query.getNegatives(), negatives);
+		query.addFeedback(positives, negatives);
 
 		double[] weights = reweightFeatures(query, query.getPositives(), type);
 
+		double[] lastweights = this.lastweights;
+		int iteration = this.iteration;
+		if (query instanceof QuerySession) {
+			State state = (State) ((QuerySession) query).getState(this);
+			lastweights = state == null ? null : state.lastweights;
+			iteration = state == null ? 1 : state.iteration;
+		}
 		if (lastweights != null) {
 
 			for (int i = 0; i < weights.length; i++) {
@@ -123,12 +144,16 @@ public class MarsGaussianImproved implements RelevanceFeedback {
 						+ 1 / ((double) iteration) * weights[i];
 			}
 		}
-		lastweights = weights;
-		iteration++;
+		if (query instanceof QuerySession)
+			((QuerySession) query).setState(this, new State(weights,
+					iteration + 1), 8L * weights.length);
+		else {
+			this.lastweights = weights;
+			this.iteration = iteration + 1;
+		}
 
-		return new RetrieverDistanceBased(retriever.getDatabase(),
-				new WeightedEuclidean(weights)).search(query, type,
-				resultAmount);
+		return Utility.search(retriever, query, type, resultAmount,
+				new WeightedEuclidean(weights));
 	}
 
 }
@@ -105,8 +105,9 @@ public class MarsIDF implements RelevanceFeedback {
 	public ImageContainer learnQueryVector(ImageContainer query,
 			List<ImageContainer> positives, List<ImageContainer> negatives,
 			DescriptorType type) {
-		int length = query.getDescriptor(type).getValues().length;
-		double[] movedQuery = query.getDescriptor(type).getValues();
+		Descriptor result = query.getWritableDescriptor(type);
+		double[] movedQuery = result.getValues();
+		int length = movedQuery.length;
 		double[] meanPositives;
 		double[] meanNegatives;
 		if (positives.size() > 0)
@@ -123,7 +124,6 @@ public class MarsIDF implements RelevanceFeedback {
 			movedQuery[i] = weightQuery * movedQuery[i] + weightPositives
 					* meanPositives[i] - weightNegatives * meanNegatives[i];
 		}
-		Descriptor result = query.getDescriptor(type);
 		result.setValues(movedQuery);
 		return query;
 	}
@@ -152,8 +152,7 @@ public class MarsIDF implements RelevanceFeedback {
 			ImageContainer query, DescriptorType type, Metric metric,
 			List<ImageContainer> positives, List<ImageContainer> negatives,
 			int resultAmount) {
-		Utility.addImagesToList(query.getPositives(), positives);
-		Utility.addImagesToList(query.getNegatives(), negatives);
+		query.addFeedback(positives, negatives);
 
 		query = learnQueryVector(query, query.getPositives(),
 				query.getNegatives(), type);
@@ -38,13 +38,13 @@ package rf.nn;
 
 import java.util.List;
 
-import rf.Utility;
 import cbir.image.DescriptorType;
 import cbir.image.ImageContainer;
 import cbir.interfaces.Metric;
 import cbir.interfaces.RelevanceFeedback;
 import cbir.interfaces.Retriever;
 import cbir.interfaces.Score;
+import cbir.retriever.RetrieverCandidatePool;
 import cbir.retriever.RetrieverScoreBased;
 
 /**
@@ -55,7 +55,7 @@ import cbir.retriever.RetrieverScoreBased;
  */
 public class NearestNeighbors implements RelevanceFeedback {
 	/** The score based retriever which is used for the reranking. **/
-	private RetrieverScoreBased retriever = null;
+	private volatile RetrieverScoreBased retriever = null;
 	/**
 	 * The score object that is used to calculate the scores of the images in
 	 * the database.
@@ -99,15 +99,27 @@ public class NearestNeighbors implements RelevanceFeedback {
 			List<ImageContainer> positives, List<ImageContainer> negatives,
 			int resultAmount) {
 		List<ImageContainer> results;
-		Utility.addImagesToList(query.getPositives(), positives);
-		Utility.addImagesToList(query.getNegatives(), negatives);
+		query.addFeedback(positives, negatives);
 
 		if (this.retriever == null)
-			this.retriever = new RetrieverScoreBased(retriever.getDatabase(),
-					score);
-		if (query.getNegatives().size() > 0 && query.getPositives().size() > 0)
-			results = this.retriever.search(query, type, resultAmount);
-		else
+			synchronized (this) {
+				// the score based retriever is shared by all sessions
+				if (this.retriever == null)
+					this.retriever = new RetrieverScoreBased(
+							retriever.getDatabase(), score);
+			}
+		if (query.getNegatives().size() > 0
+				&& query.getPositives().size() > 0) {
+			if (retriever instanceof RetrieverCandidatePool
+					&& resultAmount <= ((RetrieverCandidatePool) retriever)
+							.getPoolSize())
+				// only the candidate pool of the query is reranked
+				results = this.retriever.search(query, type, resultAmount,
+						((RetrieverCandidatePool) retriever).getPool(query,
+								type));
+			else
+				results = this.retriever.search(query, type, resultAmount);
+		} else
 			results = retriever.search(query, type, resultAmount);
 
 		return results;